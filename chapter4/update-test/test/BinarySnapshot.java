@@ -0,0 +1,304 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.sparqlbook.update;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.jena.atlas.web.ContentType;
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.LangBuilder;
+import org.apache.jena.riot.RDFLanguages;
+import org.apache.jena.riot.RDFParserRegistry;
+import org.apache.jena.riot.ReaderRIOT;
+import org.apache.jena.riot.ReaderRIOTFactory;
+import org.apache.jena.riot.RiotException;
+import org.apache.jena.riot.out.NodeFmtLib;
+import org.apache.jena.riot.system.StreamRDF;
+import org.apache.jena.riot.system.StreamRDFLib;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.shared.JenaException;
+import com.hp.hpl.jena.sparql.core.DatasetGraph;
+import com.hp.hpl.jena.sparql.core.Quad;
+import com.hp.hpl.jena.sparql.util.Context;
+import com.hp.hpl.jena.sparql.util.NodeFactoryExtra;
+
+/**
+ * DatasetGraphをバイナリ形式で保存・復元する。
+ *
+ * 形式は先頭の「RDFSNAP1」に続けて、グラフごとのセクションを並べたもの。
+ * セクションはグラフ名の項、トリプルの項(主語・述語・目的語)の並び、終端の0からなる。
+ * 項は可変長整数で、奇数なら直後にN-Triples形式のノードが続き、新しいIDを割り当てる。
+ * 偶数なら(値 / 2 - 1)が既に現れたノードのIDを表す。
+ * ノードの文字列は最初に現れたときに1度だけ書くので、Turtleより小さく、パースも不要になる。
+ * register()の後は「LOAD &lt;file:/data/snapshot.rdfsnap&gt;」でも復元できる。
+ */
+public class BinarySnapshot {
+
+    /** スナップショットのファイルの拡張子 */
+    public static final String EXTENSION = ".rdfsnap";
+
+    private static final byte[] MAGIC = "RDFSNAP1".getBytes(Charset.forName("US-ASCII"));
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    /** RIOTに登録するスナップショットの言語 */
+    public static final Lang LANG = LangBuilder.create("RDFSNAP", "application/x-rdfsnap").addFileExtensions("rdfsnap")
+            .build();
+
+    private static boolean registered = false;
+
+    private BinarySnapshot() {
+    }
+
+    /**
+     * @param source
+     *            LOADのIRIまたはファイル名
+     * @return スナップショットのファイルであればtrue
+     */
+    public static boolean isSnapshot(String source) {
+        return source.endsWith(EXTENSION);
+    }
+
+    /**
+     * データセットの全てのグラフをファイルに保存する。
+     *
+     * @param dsg
+     *            保存するデータセット
+     * @param file
+     *            保存先のファイル
+     */
+    public static void write(DatasetGraph dsg, File file) {
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE)) {
+            out.write(MAGIC);
+            Map<Node, Long> ids = new HashMap<Node, Long>();
+            writeGraph(out, ids, Quad.defaultGraphIRI, dsg.find(Quad.defaultGraphIRI, Node.ANY, Node.ANY, Node.ANY));
+            Iterator<Node> names = dsg.listGraphNodes();
+            while (names.hasNext()) {
+                Node name = names.next();
+                writeGraph(out, ids, name, dsg.find(name, Node.ANY, Node.ANY, Node.ANY));
+            }
+        } catch (IOException e) {
+            throw new JenaException(e);
+        }
+    }
+
+    /**
+     * データセットの1つのグラフをファイルに保存する。グラフが空でもファイルは作る。
+     *
+     * @param dsg
+     *            保存するデータセット
+     * @param graph
+     *            保存するグラフ名。デフォルトグラフはQuad.defaultGraphIRI
+     * @param file
+     *            保存先のファイル
+     */
+    public static void write(DatasetGraph dsg, Node graph, File file) {
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE)) {
+            out.write(MAGIC);
+            writeGraph(out, new HashMap<Node, Long>(), graph, dsg.find(graph, Node.ANY, Node.ANY, Node.ANY));
+        } catch (IOException e) {
+            throw new JenaException(e);
+        }
+    }
+
+    /**
+     * ファイルの内容をデータセットに追加する。
+     *
+     * @param file
+     *            スナップショットのファイル
+     * @param dsg
+     *            追加先のデータセット
+     * @param dest
+     *            追加先のグラフ名。nullの場合はファイルに記録されたグラフにそれぞれ追加する
+     */
+    public static void read(File file, DatasetGraph dsg, Node dest) {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE)) {
+            read(in, StreamRDFLib.dataset(dsg), dest);
+        } catch (IOException e) {
+            throw new JenaException(e);
+        }
+    }
+
+    /**
+     * RIOTにスナップショットの言語を登録する。2回目以降の呼び出しは何もしない。
+     * 登録後は「LOAD &lt;file:/data/snapshot.rdfsnap&gt;」やRDFDataMgr.readでも復元できる。
+     * クワッドの言語として登録するので、LOADにINTO GRAPHは指定できない。
+     */
+    public static synchronized void register() {
+        if (registered) {
+            return;
+        }
+        RDFLanguages.register(LANG);
+        RDFParserRegistry.registerLangQuads(LANG, new ReaderRIOTFactory() {
+            @Override
+            public ReaderRIOT create(Lang language) {
+                return new SnapshotReader();
+            }
+        });
+        registered = true;
+    }
+
+    /**
+     * ストリームからスナップショットを読み、クワッドを出力先に渡す。
+     */
+    private static void read(InputStream in, StreamRDF output, Node dest) throws IOException {
+        byte[] magic = new byte[MAGIC.length];
+        readFully(in, magic);
+        if (!Arrays.equals(magic, MAGIC)) {
+            throw new JenaException("Not a binary snapshot");
+        }
+        List<Node> nodes = new ArrayList<Node>();
+        Node graph;
+        while ((graph = readTerm(in, nodes, true)) != null) {
+            Node target = dest != null ? dest : graph;
+            Node s;
+            while ((s = readTerm(in, nodes, false)) != null) {
+                Node p = readTerm(in, nodes, false);
+                Node o = readTerm(in, nodes, false);
+                output.quad(new Quad(target, s, p, o));
+            }
+        }
+    }
+
+    private static void writeGraph(OutputStream out, Map<Node, Long> ids, Node name, Iterator<Quad> quads)
+            throws IOException {
+        if (!quads.hasNext()) {
+            return;
+        }
+        writeTerm(out, ids, name);
+        while (quads.hasNext()) {
+            Quad quad = quads.next();
+            writeTerm(out, ids, quad.getSubject());
+            writeTerm(out, ids, quad.getPredicate());
+            writeTerm(out, ids, quad.getObject());
+        }
+        writeVarLong(out, 0);
+    }
+
+    private static void writeTerm(OutputStream out, Map<Node, Long> ids, Node node) throws IOException {
+        Long id = ids.get(node);
+        if (id != null) {
+            writeVarLong(out, (id + 1) * 2);
+            return;
+        }
+        ids.put(node, Long.valueOf(ids.size()));
+        byte[] bytes = NodeFmtLib.str(node).getBytes(UTF8);
+        writeVarLong(out, 1);
+        writeVarLong(out, bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * 項を1つ読む。セクションの終端(0)ならnullを返す。
+     * ファイルの終端で読めない場合は、atSectionStartがtrueならnull、そうでなければ例外とする。
+     */
+    private static Node readTerm(InputStream in, List<Node> nodes, boolean atSectionStart) throws IOException {
+        long v = readVarLong(in, atSectionStart);
+        if (v < 0 || v == 0) {
+            return null;
+        }
+        if ((v & 1) == 0) {
+            return nodes.get((int) (v / 2 - 1));
+        }
+        byte[] bytes = new byte[(int) readVarLong(in, false)];
+        readFully(in, bytes);
+        Node node = NodeFactoryExtra.parseNode(new String(bytes, UTF8));
+        nodes.add(node);
+        return node;
+    }
+
+    /**
+     * LOADやRDFDataMgrからスナップショットを読むReaderRIOT
+     */
+    private static class SnapshotReader implements ReaderRIOT {
+        @Override
+        public void read(InputStream in, String baseURI, ContentType ct, StreamRDF output, Context context) {
+            output.start();
+            try {
+                BinarySnapshot.read(new BufferedInputStream(in, BUFFER_SIZE), output, null);
+            } catch (IOException e) {
+                throw new RiotException(e);
+            }
+            output.finish();
+        }
+
+        @Override
+        public void read(Reader reader, String baseURI, ContentType ct, StreamRDF output, Context context) {
+            throw new RiotException("A binary snapshot cannot be read from a character stream");
+        }
+    }
+
+    private static void writeVarLong(OutputStream out, long v) throws IOException {
+        while ((v & ~0x7FL) != 0) {
+            out.write((int) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        out.write((int) v);
+    }
+
+    /**
+     * 可変長整数を読む。eofOkがtrueでファイルの終端に達した場合は-1を返す。
+     */
+    private static long readVarLong(InputStream in, boolean eofOk) throws IOException {
+        long v = 0;
+        int shift = 0;
+        while (true) {
+            int b = in.read();
+            if (b == -1) {
+                if (eofOk && shift == 0) {
+                    return -1;
+                }
+                throw new EOFException();
+            }
+            v |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return v;
+            }
+            shift += 7;
+        }
+    }
+
+    private static void readFully(InputStream in, byte[] bytes) throws IOException {
+        int off = 0;
+        while (off < bytes.length) {
+            int n = in.read(bytes, off, bytes.length - off);
+            if (n < 0) {
+                throw new EOFException();
+            }
+            off += n;
+        }
+    }
+}
@@ -0,0 +1,374 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.sparqlbook.update;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.query.ARQ;
+import com.hp.hpl.jena.query.Query;
+import com.hp.hpl.jena.query.QueryExecution;
+import com.hp.hpl.jena.query.QueryExecutionFactory;
+import com.hp.hpl.jena.query.QueryExecException;
+import com.hp.hpl.jena.query.ResultSet;
+import com.hp.hpl.jena.sparql.algebra.OpAsQuery;
+import com.hp.hpl.jena.sparql.algebra.OpVars;
+import com.hp.hpl.jena.sparql.algebra.op.OpService;
+import com.hp.hpl.jena.sparql.core.Var;
+import com.hp.hpl.jena.sparql.engine.ExecutionContext;
+import com.hp.hpl.jena.sparql.engine.QueryIterator;
+import com.hp.hpl.jena.sparql.engine.binding.Binding;
+import com.hp.hpl.jena.sparql.engine.binding.BindingFactory;
+import com.hp.hpl.jena.sparql.engine.binding.BindingMap;
+import com.hp.hpl.jena.sparql.engine.binding.BindingProject;
+import com.hp.hpl.jena.sparql.engine.iterator.QueryIter1;
+import com.hp.hpl.jena.sparql.expr.NodeValue;
+import com.hp.hpl.jena.sparql.syntax.Element;
+import com.hp.hpl.jena.sparql.syntax.ElementData;
+import com.hp.hpl.jena.sparql.syntax.ElementGroup;
+import com.hp.hpl.jena.sparql.util.Context;
+
+/**
+ * SERVICEを、ローカルの解をまとめてVALUESで送るバインド結合で実行する。
+ *
+ * 通常のARQは「?friend foaf:interest ?actor . SERVICE &lt;http://dbpedia.org/sparql&gt; { ... }」
+ * (chapter3/query/3-31.rq)の左側の解1つごとにリモートへ問い合わせる。
+ * 登録後は、解をblockSize件ずつ「VALUES (?actor) { ... }」にしてSERVICEのパターンの前に置き、
+ * 最大concurrency個のブロックを同時に問い合わせる。VALUESの各行には行番号の変数を付けておき、
+ * 返ってきた解はその行番号が示す行のブロックの解とだけ結合し、
+ * ブロックの順に1つずつ返すので、全ての問い合わせが終わるのを待たない。
+ * SERVICE SILENTで問い合わせに失敗した場合は、ARQと同じくブロックの解をそのまま返す。
+ * SERVICE ?varのようにエンドポイントが変数の場合は通常どおり実行する。
+ *
+ * redirectでエンドポイントを差し替えると、クエリを書き換えずにローカルのエンドポイントで試せる。
+ *
+ * <pre>
+ * BindJoinService service = new BindJoinService(100, 4);
+ * service.redirect("http://dbpedia.org/sparql", "http://localhost:3030/dbpedia/query");
+ * service.register(ARQ.getContext());
+ * </pre>
+ */
+public class BindJoinService {
+
+    /** 1回の問い合わせで送る解の数の既定値 */
+    public static final int DEFAULT_BLOCK_SIZE = 100;
+
+    /** VALUESの行番号を入れる変数。リモートの解がどの行から求めたものかを表す */
+    static final Var ROW = Var.alloc("_bindJoinRow");
+
+    private final int blockSize;
+    private final int concurrency;
+    private final ExecutorService pool;
+    private final Map<String, String> redirects = new ConcurrentHashMap<String, String>();
+
+    /**
+     * エンドポイントがIRIのSERVICEをバインド結合で実行するハンドラー
+     */
+    private final ExtensionOpExecutor.Handler<OpService> handler = new ExtensionOpExecutor.Handler<OpService>() {
+        @Override
+        public QueryIterator execute(OpService op, QueryIterator input, ExtensionOpExecutor executor) {
+            if (!op.getService().isURI()) {
+                return null;
+            }
+            return new BindJoinIterator(op, input, executor.getExecContext());
+        }
+    };
+
+    /**
+     * DEFAULT_BLOCK_SIZE件ずつ、4つまで同時に問い合わせるBindJoinServiceを生成する。
+     */
+    public BindJoinService() {
+        this(DEFAULT_BLOCK_SIZE, 4);
+    }
+
+    /**
+     * @param blockSize
+     *            1回の問い合わせで送る解の数
+     * @param concurrency
+     *            同時に問い合わせるブロックの数
+     */
+    public BindJoinService(int blockSize, int concurrency) {
+        if (blockSize < 1 || concurrency < 1) {
+            throw new IllegalArgumentException("blockSize and concurrency must be positive");
+        }
+        this.blockSize = blockSize;
+        this.concurrency = concurrency;
+        this.pool = Executors.newFixedThreadPool(concurrency);
+    }
+
+    /**
+     * コンテキストにハンドラーとExtensionOpExecutorのファクトリを登録する。
+     * ARQ.getContext()に登録すると全てのクエリのSERVICEがバインド結合で実行される。
+     * TopKQueryと同じコンテキストに登録してもよい。
+     * TDBのデータセットでは、全体のコンテキストではなくDataset.getContext()に登録する。
+     *
+     * @param context
+     *            登録先のコンテキスト
+     */
+    public void register(Context context) {
+        ExtensionOpExecutor.register(context, ExtensionOpExecutor.SERVICE, handler);
+    }
+
+    /**
+     * 全体のコンテキストに登録する。
+     */
+    public void register() {
+        register(ARQ.getContext());
+    }
+
+    /**
+     * SERVICEのエンドポイントを別のURLに差し替える。
+     *
+     * @param endpoint
+     *            クエリに書かれたエンドポイント
+     * @param target
+     *            実際に問い合わせるエンドポイント
+     */
+    public void redirect(String endpoint, String target) {
+        redirects.put(endpoint, target);
+    }
+
+    /**
+     * 問い合わせに使うスレッドを止める。
+     */
+    public void close() {
+        pool.shutdownNow();
+    }
+
+    /**
+     * ブロックの解をVALUESにしてSERVICEのパターンの前に置いたクエリを組み立てる。
+     * VALUESの各行には、rowsの中での位置をROWの変数で付ける。
+     */
+    static Query blockQuery(Element pattern, List<Var> vars, List<Binding> rows) {
+        ElementData data = new ElementData();
+        data.add(ROW);
+        for (Var var : vars) {
+            data.add(var);
+        }
+        for (int i = 0; i < rows.size(); i++) {
+            BindingMap row = BindingFactory.create(rows.get(i));
+            row.add(ROW, NodeValue.makeInteger(i).asNode());
+            data.add(row);
+        }
+        ElementGroup group = new ElementGroup();
+        group.addElement(data);
+        group.addElement(pattern);
+        Query query = new Query();
+        query.setQuerySelectType();
+        query.setQueryResultStar(true);
+        query.setQueryPattern(group);
+        return query;
+    }
+
+    /**
+     * ブロックの解を共通変数に射影し、重複を除いて返す。VALUESの行になる。
+     */
+    static List<Binding> rows(List<Binding> block, List<Var> vars) {
+        Set<Binding> rows = new LinkedHashSet<Binding>();
+        for (Binding binding : block) {
+            rows.add(new BindingProject(vars, binding));
+        }
+        return new ArrayList<Binding>(rows);
+    }
+
+    /**
+     * リモートの解とブロックの解を結合する。リモートの解はROWの値が示すVALUESの行から求めたものなので、
+     * 射影がその行になるブロックの解とだけ結合する。行ごとに束縛された変数が違っても、
+     * 別の行から求めた解と結合して重複することはない。
+     */
+    static List<Binding> join(List<Binding> block, List<Binding> rows, List<Binding> remote, List<Var> vars) {
+        Map<Binding, List<Binding>> byRow = new HashMap<Binding, List<Binding>>();
+        for (Binding left : block) {
+            Binding row = new BindingProject(vars, left);
+            List<Binding> lefts = byRow.get(row);
+            if (lefts == null) {
+                lefts = new ArrayList<Binding>();
+                byRow.put(row, lefts);
+            }
+            lefts.add(left);
+        }
+        List<Binding> result = new ArrayList<Binding>();
+        for (Binding right : remote) {
+            Node index = right.get(ROW);
+            if (index == null || !index.isLiteral()) {
+                continue;
+            }
+            int i = Integer.parseInt(index.getLiteralLexicalForm());
+            if (i < 0 || i >= rows.size()) {
+                continue;
+            }
+            for (Binding left : byRow.get(rows.get(i))) {
+                result.add(merge(left, right));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * ブロックの解にリモートの解の変数を加える。ROWの変数は加えない。
+     */
+    private static Binding merge(Binding left, Binding right) {
+        BindingMap merged = BindingFactory.create(left);
+        Iterator<Var> it = right.vars();
+        while (it.hasNext()) {
+            Var var = it.next();
+            if (!var.equals(ROW) && !left.contains(var)) {
+                merged.add(var, right.get(var));
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * 入力をブロックに分けて問い合わせ、結合した解をブロックの順に返すイテレータ
+     */
+    private class BindJoinIterator extends QueryIter1 {
+        private final OpService op;
+        private final String endpoint;
+        private final Element pattern;
+        private final Set<Var> patternVars;
+        private final Deque<Future<List<Binding>>> pending = new ArrayDeque<Future<List<Binding>>>();
+        private Iterator<Binding> current = Collections.<Binding> emptyList().iterator();
+
+        BindJoinIterator(OpService op, QueryIterator input, ExecutionContext execCxt) {
+            super(input, execCxt);
+            this.op = op;
+            String uri = op.getService().getURI();
+            String target = redirects.get(uri);
+            this.endpoint = target != null ? target : uri;
+            this.pattern = op.getServiceElement() != null ? op.getServiceElement().getElement()
+                    : OpAsQuery.asQuery(op.getSubOp()).getQueryPattern();
+            this.patternVars = new HashSet<Var>(OpVars.mentionedVars(op.getSubOp()));
+        }
+
+        @Override
+        protected boolean hasNextBinding() {
+            while (!current.hasNext()) {
+                fill();
+                if (pending.isEmpty()) {
+                    return false;
+                }
+                current = take(pending.removeFirst()).iterator();
+            }
+            return true;
+        }
+
+        @Override
+        protected Binding moveToNextBinding() {
+            return current.next();
+        }
+
+        /**
+         * 同時に問い合わせるブロックがconcurrency個になるまで入力を読む。
+         */
+        private void fill() {
+            QueryIterator input = getInput();
+            while (pending.size() < concurrency && input.hasNext()) {
+                final List<Binding> block = new ArrayList<Binding>(blockSize);
+                while (block.size() < blockSize && input.hasNext()) {
+                    block.add(input.nextBinding());
+                }
+                pending.addLast(pool.submit(new Callable<List<Binding>>() {
+                    @Override
+                    public List<Binding> call() {
+                        return execute(block);
+                    }
+                }));
+            }
+        }
+
+        private List<Binding> take(Future<List<Binding>> future) {
+            try {
+                return future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new QueryExecException(e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new QueryExecException(e.getCause());
+            }
+        }
+
+        private List<Binding> execute(List<Binding> block) {
+            Set<Var> shared = new LinkedHashSet<Var>();
+            for (Binding binding : block) {
+                Iterator<Var> it = binding.vars();
+                while (it.hasNext()) {
+                    Var var = it.next();
+                    if (patternVars.contains(var)) {
+                        shared.add(var);
+                    }
+                }
+            }
+            List<Var> vars = new ArrayList<Var>(shared);
+            List<Binding> rows = rows(block, vars);
+            List<Binding> remote = new ArrayList<Binding>();
+            QueryExecution qexec = QueryExecutionFactory.sparqlService(endpoint, blockQuery(pattern, vars, rows));
+            try {
+                ResultSet rs = qexec.execSelect();
+                while (rs.hasNext()) {
+                    remote.add(rs.nextBinding());
+                }
+            } catch (RuntimeException e) {
+                if (op.getSilent()) {
+                    return block;
+                }
+                throw e;
+            } finally {
+                qexec.close();
+            }
+            return join(block, rows, remote, vars);
+        }
+
+        @Override
+        protected void requestSubCancel() {
+            cancelPending();
+        }
+
+        @Override
+        protected void closeSubIterator() {
+            cancelPending();
+        }
+
+        private void cancelPending() {
+            for (Future<List<Binding>> future : pending) {
+                future.cancel(true);
+            }
+            pending.clear();
+        }
+    }
+}
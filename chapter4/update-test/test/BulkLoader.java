@@ -0,0 +1,219 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.sparqlbook.update;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.jena.atlas.lib.Tuple;
+import org.apache.jena.riot.system.StreamRDF;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.shared.Lock;
+import com.hp.hpl.jena.sparql.core.Quad;
+import com.hp.hpl.jena.update.GraphStore;
+import com.hp.hpl.jena.update.UpdateException;
+
+/**
+ * 複数のファイルを並列にパースしてGraphStoreへロードする。
+ *
+ * 「LOAD ... ; LOAD ...」を1つずつ実行する代わりに、パースはワーカースレッドで並列に行い、
+ * パース済みのクワッドをまとめてキューに渡す。GraphStoreへの書き込みは呼び出し元のスレッド1つで行う。
+ * ローカルファイルはMappedFileSourceでメモリマップして読む。
+ */
+public class BulkLoader {
+
+    /** ワーカーからライターへまとめて渡すクワッドの数 */
+    public static final int DEFAULT_BATCH_SIZE = 10000;
+
+    /** ファイルの終わりを表す目印 */
+    private static final List<Quad> END = Collections.emptyList();
+
+    private final int threads;
+    private final int batchSize;
+    private final List<String> files = new ArrayList<String>();
+    private final List<Node> graphs = new ArrayList<Node>();
+
+    /**
+     * CPUのコア数だけワーカーを使うBulkLoaderを生成する。
+     */
+    public BulkLoader() {
+        this(Runtime.getRuntime().availableProcessors(), DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * @param threads
+     *            パースに使うワーカースレッド数
+     * @param batchSize
+     *            ライターへまとめて渡すクワッドの数
+     */
+    public BulkLoader(int threads, int batchSize) {
+        this.threads = threads;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * ロードするファイルを追加する。「LOAD &lt;file&gt; INTO GRAPH &lt;graph&gt;」に相当する。
+     *
+     * @param file
+     *            ロードするファイルのIRIまたはパス
+     * @param graph
+     *            ロード先のグラフ名。nullの場合はデフォルトグラフ
+     * @return このBulkLoader
+     */
+    public BulkLoader add(String file, Node graph) {
+        files.add(file);
+        graphs.add(graph == null ? Quad.defaultGraphIRI : graph);
+        return this;
+    }
+
+    /**
+     * 追加した全てのファイルをGraphStoreにロードする。
+     *
+     * @param graphStore
+     *            ロード先のGraphStore
+     */
+    public void execute(GraphStore graphStore) {
+        BlockingQueue<List<Quad>> queue = new ArrayBlockingQueue<List<Quad>>(threads * 4);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        try {
+            for (int i = 0; i < files.size(); i++) {
+                futures.add(pool.submit(new Parser(files.get(i), graphs.get(i), queue)));
+            }
+            write(graphStore, queue, files.size());
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UpdateException(e);
+        } catch (ExecutionException e) {
+            throw new UpdateException("Failed to load: " + e.getCause().getMessage(), e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * 全てのワーカーが終わるまで、キューのクワッドをGraphStoreに書き込む。
+     */
+    private void write(GraphStore graphStore, BlockingQueue<List<Quad>> queue, int sources)
+            throws InterruptedException {
+        int finished = 0;
+        while (finished < sources) {
+            List<Quad> batch = queue.take();
+            if (batch == END) {
+                finished++;
+                continue;
+            }
+            graphStore.getLock().enterCriticalSection(Lock.WRITE);
+            try {
+                for (Quad quad : batch) {
+                    graphStore.add(quad);
+                }
+            } finally {
+                graphStore.getLock().leaveCriticalSection();
+            }
+        }
+    }
+
+    /**
+     * 1つのファイルをパースし、batchSize件ごとにキューへ渡すワーカー。
+     */
+    private class Parser implements Runnable, StreamRDF {
+        private final String file;
+        private final Node graph;
+        private final BlockingQueue<List<Quad>> queue;
+        private List<Quad> batch = new ArrayList<Quad>(batchSize);
+
+        Parser(String file, Node graph, BlockingQueue<List<Quad>> queue) {
+            this.file = file;
+            this.graph = graph;
+            this.queue = queue;
+        }
+
+        @Override
+        public void run() {
+            try {
+                MappedFileSource.parse(this, file);
+            } finally {
+                put(END);
+            }
+        }
+
+        @Override
+        public void start() {
+        }
+
+        @Override
+        public void triple(Triple triple) {
+            quad(new Quad(graph, triple));
+        }
+
+        @Override
+        public void quad(Quad quad) {
+            batch.add(quad);
+            if (batch.size() >= batchSize) {
+                flush();
+            }
+        }
+
+        @Override
+        public void tuple(Tuple<Node> tuple) {
+        }
+
+        @Override
+        public void base(String base) {
+        }
+
+        @Override
+        public void prefix(String prefix, String iri) {
+        }
+
+        @Override
+        public void finish() {
+            flush();
+        }
+
+        private void flush() {
+            if (!batch.isEmpty()) {
+                put(batch);
+                batch = new ArrayList<Quad>(batchSize);
+            }
+        }
+
+        private void put(List<Quad> quads) {
+            try {
+                queue.put(quads);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new UpdateException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.sparqlbook.update;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import org.apache.jena.atlas.lib.Tuple;
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.RDFLanguages;
+import org.apache.jena.riot.RiotReader;
+import org.apache.jena.riot.lang.LabelToNode;
+import org.apache.jena.riot.lang.LangRIOT;
+import org.apache.jena.riot.system.StreamRDF;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.NodeFactory;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.query.Dataset;
+import com.hp.hpl.jena.query.ReadWrite;
+import com.hp.hpl.jena.rdf.model.AnonId;
+import com.hp.hpl.jena.sparql.core.DatasetGraph;
+import com.hp.hpl.jena.sparql.core.Quad;
+import com.hp.hpl.jena.update.UpdateException;
+
+/**
+ * N-Triples/N-Quadsのファイルを一定の行数ごとにコミットしながらロードし、途中から再開できるようにする。
+ *
+ * チャンクをコミットするたびに、次に読むバイト位置と空白ノードのスコープを「ファイル名.ckpt」に記録する。
+ * ロードが途中で失敗した場合は、同じファイルに対してもう一度loadを呼ぶと記録した位置から再開する。
+ * 最後までロードできたらチェックポイントは削除する。
+ * コミット後、チェックポイントを書く前に止まった場合はそのチャンクをもう一度ロードするが、
+ * 同じクワッドの追加は結果を変えないので問題ない。
+ * Turtleは接頭辞の宣言がファイルの先頭にあり途中から読めないため対象外とする。
+ */
+public class CheckpointLoader {
+
+    /** 1回のトランザクションでコミットする行数の既定値 */
+    public static final int DEFAULT_CHUNK_LINES = 100000;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Dataset dataset;
+    private final int chunkLines;
+
+    /**
+     * @param dataset
+     *            ロード先のトランザクション対応Dataset(TDB)
+     * @param chunkLines
+     *            1回のトランザクションでコミットする行数
+     */
+    public CheckpointLoader(Dataset dataset, int chunkLines) {
+        this.dataset = dataset;
+        this.chunkLines = chunkLines;
+    }
+
+    /**
+     * ファイルをロードする。チェックポイントがあればその位置から再開する。
+     *
+     * @param file
+     *            N-TriplesまたはN-Quadsのファイル
+     * @param graph
+     *            N-Triplesのロード先のグラフ名。nullの場合はデフォルトグラフ
+     * @return ロードしたクワッド数(今回の呼び出しでロードした分)
+     */
+    public long load(File file, Node graph) {
+        Lang lang = RDFLanguages.filenameToLang(file.getName());
+        if (!RDFLanguages.sameLang(lang, Lang.NTRIPLES) && !RDFLanguages.sameLang(lang, Lang.NQUADS)) {
+            throw new IllegalArgumentException("Only N-Triples and N-Quads can be resumed: " + file);
+        }
+        File checkpoint = new File(file.getPath() + ".ckpt");
+        String[] saved = readCheckpoint(checkpoint);
+        long offset = saved == null ? 0 : Long.parseLong(saved[0]);
+        String scope = saved == null ? UUID.randomUUID().toString() : saved[1];
+        long loaded = 0;
+        try (InputStream in = new FileInputStream(file)) {
+            skipFully(in, offset);
+            ByteArrayOutputStream chunk = new ByteArrayOutputStream();
+            byte[] buf = new byte[BUFFER_SIZE];
+            int lines = 0;
+            int n;
+            while ((n = in.read(buf)) != -1) {
+                int start = 0;
+                for (int i = 0; i < n; i++) {
+                    if (buf[i] == '\n' && ++lines == chunkLines) {
+                        chunk.write(buf, start, i + 1 - start);
+                        start = i + 1;
+                        loaded += commit(chunk.toByteArray(), lang, graph, scope);
+                        offset += chunk.size();
+                        writeCheckpoint(checkpoint, offset, scope);
+                        chunk.reset();
+                        lines = 0;
+                    }
+                }
+                chunk.write(buf, start, n - start);
+            }
+            if (chunk.size() > 0) {
+                loaded += commit(chunk.toByteArray(), lang, graph, scope);
+            }
+        } catch (IOException e) {
+            throw new UpdateException("Failed to load " + file + " at byte " + offset, e);
+        }
+        checkpoint.delete();
+        return loaded;
+    }
+
+    /**
+     * 1チャンクをパースし、1つのトランザクションでコミットする。
+     * 空白ノードはラベルをそのまま使ってパースし、ロードごとのスコープを付けた空白ノードに置き換える。
+     * これによりチャンクをまたいでも、再開した後でも同じラベルは同じ空白ノードになる。
+     */
+    private long commit(byte[] chunk, Lang lang, Node graph, final String scope) {
+        final List<Quad> quads = new ArrayList<Quad>();
+        final Node target = graph == null ? Quad.defaultGraphIRI : graph;
+        LangRIOT parser = RiotReader.createParser(new ByteArrayInputStream(chunk), lang, null, new StreamRDF() {
+            @Override
+            public void start() {
+            }
+
+            @Override
+            public void triple(Triple triple) {
+                quads.add(new Quad(target, scoped(triple.getSubject()), triple.getPredicate(),
+                        scoped(triple.getObject())));
+            }
+
+            @Override
+            public void quad(Quad quad) {
+                quads.add(new Quad(scoped(quad.getGraph()), scoped(quad.getSubject()), quad.getPredicate(),
+                        scoped(quad.getObject())));
+            }
+
+            @Override
+            public void tuple(Tuple<Node> tuple) {
+            }
+
+            @Override
+            public void base(String base) {
+            }
+
+            @Override
+            public void prefix(String prefix, String iri) {
+            }
+
+            @Override
+            public void finish() {
+            }
+
+            private Node scoped(Node node) {
+                if (!node.isBlank()) {
+                    return node;
+                }
+                return NodeFactory.createAnon(new AnonId(scope + "/" + node.getBlankNodeLabel()));
+            }
+        });
+        parser.getProfile().setLabelToNode(LabelToNode.createUseLabelAsGiven());
+        parser.parse();
+        dataset.begin(ReadWrite.WRITE);
+        try {
+            DatasetGraph dsg = dataset.asDatasetGraph();
+            for (Quad quad : quads) {
+                dsg.add(quad);
+            }
+            dataset.commit();
+        } catch (RuntimeException e) {
+            dataset.abort();
+            throw e;
+        } finally {
+            dataset.end();
+        }
+        return quads.size();
+    }
+
+    /**
+     * チェックポイントを読み、次に読むバイト位置と空白ノードのスコープを返す。チェックポイントがなければnull
+     */
+    private static String[] readCheckpoint(File checkpoint) {
+        if (!checkpoint.exists()) {
+            return null;
+        }
+        try {
+            String[] saved = new String(Files.readAllBytes(checkpoint.toPath()), UTF8).trim().split("\\s+");
+            if (saved.length != 2) {
+                throw new UpdateException("Malformed checkpoint " + checkpoint);
+            }
+            return saved;
+        } catch (IOException e) {
+            throw new UpdateException("Failed to read checkpoint " + checkpoint, e);
+        }
+    }
+
+    /**
+     * 一時ファイルに書いてから置き換えることで、チェックポイントが中途半端な状態で残らないようにする。
+     */
+    private static void writeCheckpoint(File checkpoint, long offset, String scope) throws IOException {
+        File tmp = new File(checkpoint.getPath() + ".tmp");
+        try (OutputStream out = new FileOutputStream(tmp)) {
+            out.write((offset + " " + scope).getBytes(UTF8));
+        }
+        Files.move(tmp.toPath(), checkpoint.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void skipFully(InputStream in, long n) throws IOException {
+        while (n > 0) {
+            long skipped = in.skip(n);
+            if (skipped <= 0) {
+                throw new IOException("Checkpoint is beyond the end of the file");
+            }
+            n -= skipped;
+        }
+    }
+}
@@ -21,7 +21,6 @@ package jp.sparqlbook.update;
 import org.apache.jena.atlas.lib.StrUtils;
 
 import com.hp.hpl.jena.query.Dataset;
-import com.hp.hpl.jena.sparql.sse.SSE;
 import com.hp.hpl.jena.tdb.TDBFactory;
 import com.hp.hpl.jena.update.GraphStore;
 import com.hp.hpl.jena.update.GraphStoreFactory;
@@ -45,6 +44,7 @@ public class CopyExamples {
         }
         copy6();
         copy7();
+        copy8();
     }
 
     /**
@@ -53,7 +53,17 @@ public class CopyExamples {
      * @return ロード後のGraphStore
      */
     public static GraphStore loadData() {
-        GraphStore graphStore = createGraphStore();
+        return loadData(createGraphStore());
+    }
+
+    /**
+     * 指定したGraphStoreにデータをロードする。
+     * 
+     * @param graphStore
+     *            ロード先のGraphStore
+     * @return ロード後のGraphStore
+     */
+    public static GraphStore loadData(GraphStore graphStore) {
         String cmd = StrUtils.strjoin(" ;\n",
                 "LOAD <file:/data/rdf/update-data1.ttl> INTO GRAPH <http://sparqlbook.jp/graph1>",
                 "LOAD <file:/data/rdf/update-data2.ttl> INTO GRAPH <http://sparqlbook.jp/graph2>",
@@ -149,6 +159,18 @@ public class CopyExamples {
         printDebug(graphStore, "after");
     }
 
+    /**
+     * 既存の名前付きグラフのデータを別の既存の名前付きグラフにコピーする(copy1)。
+     * CowDatasetGraphを使い、トリプルを複製せずにグラフの中身を共有する。
+     */
+    public static void copy8() {
+        System.out.println("##### copy8 #####");
+        GraphStore graphStore = loadData(CowDatasetGraph.createGraphStore());
+        printDebug(graphStore, "before");
+        UpdateAction.parseExecute("COPY <http://sparqlbook.jp/graph1> TO <http://sparqlbook.jp/graph2>", graphStore);
+        printDebug(graphStore, "after");
+    }
+
     /**
      * 空のGraphStore(TDB)のオブジェクトを生成して返す。
      * 
@@ -169,8 +191,6 @@ public class CopyExamples {
      */
     public static void printDebug(GraphStore graphStore, String title) {
         System.out.println("##### " + title + " #####");
-        SSE.write(graphStore);
-        // System.out.println("# N-Quads: S P O G") ;
-        // RDFDataMgr.write(System.out, graphStore, Lang.NQUADS) ;
+        QuadDump.write(graphStore, System.out);
     }
 }
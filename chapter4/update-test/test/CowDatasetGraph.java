@@ -0,0 +1,164 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.sparqlbook.update;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.GraphUtil;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.sparql.core.DatasetGraphCollection;
+import com.hp.hpl.jena.sparql.core.Quad;
+import com.hp.hpl.jena.update.GraphStore;
+import com.hp.hpl.jena.update.GraphStoreFactory;
+
+/**
+ * 名前付きグラフごとにCowGraphを持つメモリ上のデータセット
+ *
+ * グラフ単位で中身を共有できるので、名前付きグラフ間のCOPYとMOVEはトリプルを1つずつ
+ * 削除・挿入せずに済む。CLEARとDROPもグラフの中身を手放すだけで、領域はGCが後から回収する。
+ * TDBと同じく、空のグラフは存在しないものとして扱う。
+ */
+public class CowDatasetGraph extends DatasetGraphCollection {
+
+    private final CowGraph defaultGraph = new CowGraph();
+    private final Map<Node, CowGraph> graphs = new LinkedHashMap<Node, CowGraph>();
+
+    /**
+     * CowDatasetGraphを使う空のGraphStoreを生成する。
+     * COPY/MOVE/CLEAR/DROPをグラフ単位で実行するGraphLevelUpdateEngineも登録する。
+     *
+     * @return 空のGraphStoreオブジェクト
+     */
+    public static GraphStore createGraphStore() {
+        GraphLevelUpdateEngine.register();
+        return GraphStoreFactory.create(new CowDatasetGraph());
+    }
+
+    @Override
+    public Graph getDefaultGraph() {
+        return defaultGraph;
+    }
+
+    @Override
+    public synchronized Graph getGraph(Node graphNode) {
+        return cowGraph(graphNode);
+    }
+
+    @Override
+    public synchronized boolean containsGraph(Node graphNode) {
+        if (Quad.isDefaultGraph(graphNode)) {
+            return true;
+        }
+        CowGraph graph = graphs.get(graphNode);
+        return graph != null && !graph.isEmpty();
+    }
+
+    @Override
+    public synchronized void addGraph(Node graphName, Graph graph) {
+        CowGraph target = cowGraph(graphName);
+        target.clear();
+        GraphUtil.addInto(target, graph);
+    }
+
+    @Override
+    public synchronized void removeGraph(Node graphName) {
+        if (Quad.isDefaultGraph(graphName)) {
+            defaultGraph.clear();
+        } else {
+            graphs.remove(graphName);
+        }
+    }
+
+    @Override
+    public void setDefaultGraph(Graph graph) {
+        addGraph(Quad.defaultGraphIRI, graph);
+    }
+
+    @Override
+    public synchronized Iterator<Node> listGraphNodes() {
+        List<Node> nodes = new ArrayList<Node>(graphs.size());
+        for (Map.Entry<Node, CowGraph> e : graphs.entrySet()) {
+            if (!e.getValue().isEmpty()) {
+                nodes.add(e.getKey());
+            }
+        }
+        return nodes.iterator();
+    }
+
+    /**
+     * srcの中身でdestを置き換える(COPY)。トリプル数に関係なく定数時間で終わる。
+     *
+     * @param src
+     *            コピー元のグラフ名
+     * @param dest
+     *            コピー先のグラフ名
+     */
+    public synchronized void copy(Node src, Node dest) {
+        cowGraph(dest).shareFrom(cowGraph(src));
+    }
+
+    /**
+     * srcの中身をdestに移し、srcを削除する(MOVE)。トリプル数に関係なく定数時間で終わる。
+     *
+     * @param src
+     *            移動元のグラフ名
+     * @param dest
+     *            移動先のグラフ名
+     */
+    public synchronized void move(Node src, Node dest) {
+        if (src.equals(dest)) {
+            return;
+        }
+        copy(src, dest);
+        removeGraph(src);
+    }
+
+    /**
+     * 全ての名前付きグラフを空にする(CLEAR NAMED)。トリプル数に関係なく、グラフ数に比例する時間で終わる。
+     */
+    public synchronized void clearNamed() {
+        for (CowGraph graph : graphs.values()) {
+            graph.clear();
+        }
+    }
+
+    /**
+     * 全ての名前付きグラフを削除する(DROP NAMED)。トリプル数に関係なく定数時間で終わる。
+     */
+    public synchronized void dropNamed() {
+        graphs.clear();
+    }
+
+    private CowGraph cowGraph(Node graphNode) {
+        if (Quad.isDefaultGraph(graphNode)) {
+            return defaultGraph;
+        }
+        CowGraph graph = graphs.get(graphNode);
+        if (graph == null) {
+            graph = new CowGraph();
+            graphs.put(graphNode, graph);
+        }
+        return graph;
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.sparqlbook.update;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import com.hp.hpl.jena.graph.Factory;
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.GraphEvents;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.graph.TripleMatch;
+import com.hp.hpl.jena.graph.impl.GraphBase;
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
+import com.hp.hpl.jena.util.iterator.Filter;
+import com.hp.hpl.jena.util.iterator.NullIterator;
+
+/**
+ * 他のグラフとトリプルを共有できるコピーオンライトのグラフ
+ *
+ * 中身は、変更しない共有の層(Layer)と、その上でこのグラフだけが持つ差分(追加と削除)からなる。
+ * shareFromで別のCowGraphの中身を共有すると、共有元の差分を新しい層として固定し、両方がその層の上に空の差分を持つ。
+ * 以降の書き込みはそれぞれの差分にだけ入るので、COPYもその後の書き込みもトリプル数に関係なく、差分の大きさだけで済む。
+ * 層の重なりがMAX_DEPTHを超えたら、共有するときに1つの層にまとめ直す。
+ */
+public class CowGraph extends GraphBase {
+
+    /** 層の重なりがこれを超えたら1つにまとめる */
+    private static final int MAX_DEPTH = 8;
+
+    /** 共有の層。空であればnull */
+    private Layer base;
+
+    /** baseにないトリプルのうち、このグラフに追加したもの */
+    private Graph added = Factory.createDefaultGraph();
+
+    /** baseにあるトリプルのうち、このグラフから削除したもの */
+    private Set<Triple> deleted = new HashSet<Triple>();
+
+    /**
+     * otherと同じ中身を共有する。これまでの中身は捨てる。
+     *
+     * @param other
+     *            共有元のグラフ
+     */
+    public synchronized void shareFrom(CowGraph other) {
+        if (other == this) {
+            return;
+        }
+        Layer layer;
+        synchronized (other) {
+            layer = other.freeze();
+        }
+        this.base = layer;
+        this.added = Factory.createDefaultGraph();
+        this.deleted = new HashSet<Triple>();
+    }
+
+    /**
+     * 中身を空にする。共有している中身には触れないので、トリプル数に関係なく定数時間で終わる。
+     */
+    @Override
+    public synchronized void clear() {
+        base = null;
+        added = Factory.createDefaultGraph();
+        deleted = new HashSet<Triple>();
+        getEventManager().notifyEvent(this, GraphEvents.removeAll);
+    }
+
+    @Override
+    protected synchronized ExtendedIterator<Triple> graphBaseFind(TripleMatch m) {
+        Triple pattern = m.asTriple();
+        if (base == null) {
+            return added.find(pattern);
+        }
+        return base.find(pattern, deleted).andThen(added.find(pattern));
+    }
+
+    @Override
+    protected synchronized int graphBaseSize() {
+        return (base == null ? 0 : base.size) + added.size() - deleted.size();
+    }
+
+    @Override
+    public synchronized void performAdd(Triple t) {
+        if (deleted.remove(t)) {
+            return;
+        }
+        if (base == null || !base.contains(t)) {
+            added.add(t);
+        }
+    }
+
+    @Override
+    public synchronized void performDelete(Triple t) {
+        if (added.contains(t)) {
+            added.delete(t);
+        } else if (base != null && base.contains(t)) {
+            deleted.add(t);
+        }
+    }
+
+    /**
+     * 現在の差分を層として固定して返し、自分もその層の上に空の差分を持つ。差分が空なら今の層をそのまま返す。
+     */
+    private Layer freeze() {
+        if (added.isEmpty() && deleted.isEmpty()) {
+            return base;
+        }
+        Layer layer = new Layer(base, added, deleted);
+        if (layer.depth > MAX_DEPTH) {
+            layer = layer.flatten();
+        }
+        base = layer;
+        added = Factory.createDefaultGraph();
+        deleted = new HashSet<Triple>();
+        return layer;
+    }
+
+    /**
+     * 変更しない共有の層。parentの上にaddedを足し、deletedを除いたものが中身になる。
+     */
+    private static final class Layer {
+        private final Layer parent;
+        private final Graph added;
+        private final Set<Triple> deleted;
+        private final int depth;
+        private final int size;
+
+        Layer(Layer parent, Graph added, Set<Triple> deleted) {
+            this.parent = parent;
+            this.added = added;
+            this.deleted = deleted;
+            this.depth = parent == null ? 1 : parent.depth + 1;
+            this.size = (parent == null ? 0 : parent.size) + added.size() - deleted.size();
+        }
+
+        boolean contains(Triple t) {
+            if (added.contains(t)) {
+                return true;
+            }
+            if (deleted.contains(t)) {
+                return false;
+            }
+            return parent != null && parent.contains(t);
+        }
+
+        /**
+         * パターンに一致するトリプルのうち、上の層で削除されたもの(hidden)を除いて返す。
+         */
+        ExtendedIterator<Triple> find(Triple pattern, final Set<Triple> hidden) {
+            ExtendedIterator<Triple> it = parent == null ? NullIterator.<Triple> instance()
+                    : parent.find(pattern, deleted);
+            it = it.andThen(added.find(pattern));
+            if (hidden.isEmpty()) {
+                return it;
+            }
+            return it.filterDrop(new Filter<Triple>() {
+                @Override
+                public boolean accept(Triple t) {
+                    return hidden.contains(t);
+                }
+            });
+        }
+
+        /**
+         * 全ての層を1つにまとめた層を返す。
+         */
+        Layer flatten() {
+            Graph graph = Factory.createDefaultGraph();
+            ExtendedIterator<Triple> it = find(Triple.create(Node.ANY, Node.ANY, Node.ANY),
+                    new HashSet<Triple>());
+            try {
+                while (it.hasNext()) {
+                    graph.add(it.next());
+                }
+            } finally {
+                it.close();
+            }
+            return new Layer(null, graph, new HashSet<Triple>());
+        }
+    }
+}
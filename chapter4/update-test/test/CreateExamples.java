@@ -19,7 +19,6 @@
 package jp.sparqlbook.update;
 
 import com.hp.hpl.jena.query.Dataset;
-import com.hp.hpl.jena.sparql.sse.SSE;
 import com.hp.hpl.jena.tdb.TDBFactory;
 import com.hp.hpl.jena.update.GraphStore;
 import com.hp.hpl.jena.update.GraphStoreFactory;
@@ -67,8 +66,6 @@ public class CreateExamples {
      */
     public static void printDebug(GraphStore graphStore, String title) {
         System.out.println("##### " + title + " #####");
-        SSE.write(graphStore);
-        // System.out.println("# N-Quads: S P O G") ;
-        // RDFDataMgr.write(System.out, graphStore, Lang.NQUADS) ;
+        QuadDump.write(graphStore, System.out);
     }
 }
@@ -0,0 +1,558 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.sparqlbook.update;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.shared.JenaException;
+import com.hp.hpl.jena.sparql.core.DatasetGraphBase;
+import com.hp.hpl.jena.sparql.core.GraphView;
+import com.hp.hpl.jena.sparql.core.Quad;
+import com.hp.hpl.jena.sparql.expr.NodeValue;
+import com.hp.hpl.jena.update.GraphStore;
+import com.hp.hpl.jena.update.GraphStoreFactory;
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
+
+/**
+ * 全てのノードをlongのIDに置き換えて保持するメモリ上のデータセット
+ *
+ * ノードはNodeDictionaryで1度だけ保持し、クワッドはIDの組としてGSPO、GPOS、GOSP、SPOGの4つのQuadIndexに置く。
+ * 数値や日付などの小さなリテラルは辞書に登録せず、InlineNodeCodecでIDそのものに埋め込む。
+ * パターンの検索では、指定された成分を先頭から最も長く絞り込める索引を選ぶ。
+ * グラフはGraphViewとして返すので、例のGraphStoreのAPIはそのまま使える。
+ * CowDatasetGraphやTDBと同じく、空のグラフは存在しないものとして扱う。
+ *
+ * <pre>
+ * GraphStore graphStore = DatasetGraphDict.createGraphStore();
+ * UpdateAction.parseExecute("LOAD &lt;file:/data/rdf/update-data1.ttl&gt;", graphStore);
+ * </pre>
+ */
+public class DatasetGraphDict extends DatasetGraphBase {
+
+    private final NodeDictionary dictionary;
+    private final long defaultGraphId;
+
+    private final QuadIndex gspo = new QuadIndex(QuadIndex.GSPO);
+    private final QuadIndex gpos = new QuadIndex(QuadIndex.GPOS);
+    private final QuadIndex gosp = new QuadIndex(QuadIndex.GOSP);
+    private final QuadIndex spog = new QuadIndex(QuadIndex.SPOG);
+    private final QuadIndex[] indexes = { gspo, gpos, gosp, spog };
+
+    /**
+     * HeapNodeDictionaryを使うデータセットを生成する。
+     */
+    public DatasetGraphDict() {
+        this(new HeapNodeDictionary());
+    }
+
+    /**
+     * @param dictionary
+     *            ノードの辞書
+     */
+    public DatasetGraphDict(NodeDictionary dictionary) {
+        this.dictionary = new InlineNodeCodec(dictionary);
+        this.defaultGraphId = dictionary.encode(Quad.defaultGraphIRI);
+    }
+
+    /**
+     * DatasetGraphDictを使う空のGraphStoreを生成する。
+     *
+     * @return 空のGraphStoreオブジェクト
+     */
+    public static GraphStore createGraphStore() {
+        return GraphStoreFactory.create(new DatasetGraphDict());
+    }
+
+    /**
+     * 指定した辞書を使う空のGraphStoreを生成する。
+     *
+     * @param dictionary
+     *            ノードの辞書。OffHeapNodeTableを渡すとノードの文字列をヒープの外に置く
+     * @return 空のGraphStoreオブジェクト
+     */
+    public static GraphStore createGraphStore(NodeDictionary dictionary) {
+        return GraphStoreFactory.create(new DatasetGraphDict(dictionary));
+    }
+
+    /**
+     * @return ノードの辞書。小さなリテラルはInlineNodeCodecでIDに埋め込む
+     */
+    public NodeDictionary getDictionary() {
+        return dictionary;
+    }
+
+    @Override
+    public Graph getDefaultGraph() {
+        return GraphView.createDefaultGraph(this);
+    }
+
+    @Override
+    public Graph getGraph(Node graphNode) {
+        if (Quad.isDefaultGraph(graphNode)) {
+            return getDefaultGraph();
+        }
+        return GraphView.createNamedGraph(this, graphNode);
+    }
+
+    @Override
+    public boolean containsGraph(Node graphNode) {
+        if (Quad.isDefaultGraph(graphNode)) {
+            return true;
+        }
+        long g = dictionary.lookup(graphNode);
+        return g != NodeDictionary.NOT_FOUND && gspo.find(g, QuadIndex.ANY, QuadIndex.ANY, QuadIndex.ANY).hasNext();
+    }
+
+    @Override
+    public void setDefaultGraph(Graph g) {
+        removeGraph(Quad.defaultGraphIRI);
+        addAll(Quad.defaultGraphIRI, g);
+    }
+
+    @Override
+    public void addGraph(Node graphName, Graph graph) {
+        removeGraph(graphName);
+        addAll(graphName, graph);
+    }
+
+    @Override
+    public void removeGraph(Node graphName) {
+        deleteAny(graphNode(graphName), Node.ANY, Node.ANY, Node.ANY);
+    }
+
+    @Override
+    public Iterator<Node> listGraphNodes() {
+        List<Node> nodes = new ArrayList<Node>();
+        for (long g : gspo.leadingValues()) {
+            if (g != defaultGraphId) {
+                nodes.add(dictionary.decode(g));
+            }
+        }
+        return nodes.iterator();
+    }
+
+    @Override
+    public void add(Quad quad) {
+        long g = dictionary.encode(graphNode(quad.getGraph()));
+        long s = dictionary.encode(quad.getSubject());
+        long p = dictionary.encode(quad.getPredicate());
+        long o = dictionary.encode(quad.getObject());
+        for (QuadIndex index : indexes) {
+            index.add(g, s, p, o);
+        }
+    }
+
+    @Override
+    public void delete(Quad quad) {
+        long g = dictionary.lookup(graphNode(quad.getGraph()));
+        long s = dictionary.lookup(quad.getSubject());
+        long p = dictionary.lookup(quad.getPredicate());
+        long o = dictionary.lookup(quad.getObject());
+        if (g == NodeDictionary.NOT_FOUND || s == NodeDictionary.NOT_FOUND || p == NodeDictionary.NOT_FOUND
+                || o == NodeDictionary.NOT_FOUND) {
+            return;
+        }
+        delete(g, s, p, o);
+    }
+
+    @Override
+    public void add(Node g, Node s, Node p, Node o) {
+        add(new Quad(g, s, p, o));
+    }
+
+    @Override
+    public void delete(Node g, Node s, Node p, Node o) {
+        delete(new Quad(g, s, p, o));
+    }
+
+    /**
+     * 一致するクワッドをIDのまま集めてから削除する。ノードには戻さない。
+     */
+    @Override
+    public void deleteAny(Node g, Node s, Node p, Node o) {
+        long[] pattern = pattern(g, s, p, o);
+        if (pattern == null) {
+            return;
+        }
+        List<long[]> matches = new ArrayList<long[]>();
+        Iterator<long[]> it = scan(pattern);
+        while (it.hasNext()) {
+            matches.add(it.next());
+        }
+        for (QuadIndex index : indexes) {
+            index.deleteAll(matches);
+        }
+    }
+
+    @Override
+    public Iterator<Quad> find(Node g, Node s, Node p, Node o) {
+        if (g != null && Quad.isUnionGraph(g)) {
+            return findUnion(s, p, o);
+        }
+        long[] pattern = pattern(g, s, p, o);
+        if (pattern == null) {
+            return Collections.<Quad> emptyIterator();
+        }
+        return decode(scan(pattern), false);
+    }
+
+    @Override
+    public Iterator<Quad> findNG(Node g, Node s, Node p, Node o) {
+        if (g != null && Quad.isDefaultGraph(g)) {
+            return Collections.<Quad> emptyIterator();
+        }
+        if (g != null && Quad.isUnionGraph(g)) {
+            return findUnion(s, p, o);
+        }
+        long[] pattern = pattern(g, s, p, o);
+        if (pattern == null) {
+            return Collections.<Quad> emptyIterator();
+        }
+        return decode(scan(pattern), true);
+    }
+
+    @Override
+    public long size() {
+        return gspo.leadingValues().length - (gspo.find(defaultGraphId, QuadIndex.ANY, QuadIndex.ANY,
+                QuadIndex.ANY).hasNext() ? 1 : 0);
+    }
+
+    /**
+     * 述語の目的語の数値がminからmaxまで(両端を含む)のクワッドを返す。
+     * 「FILTER (?height &gt;= 3000)」のような範囲の条件を、目的語を1つずつ辞書から戻して比べずに求める。
+     * IDに埋め込んだxsd:integerとxsd:doubleは値の順に並んでいるので、GPOSの索引の範囲を二分探索で求める。
+     * 埋め込めなかった数値(xsd:decimalや範囲外の整数など)は辞書のIDの範囲にあるので、そこだけノードに戻して比べる。
+     * 返す順は値の順とは限らない。
+     * ARQのクエリの評価(FILTERやORDER BY)からは使われないので、範囲の検索が必要なところで直接呼び出す。
+     *
+     * @param g
+     *            グラフ名。nullまたはNode.ANYの場合は全てのグラフ
+     * @param p
+     *            述語
+     * @param min
+     *            最小値
+     * @param max
+     *            最大値
+     * @return 一致するクワッド
+     */
+    public Iterator<Quad> findRange(Node g, Node p, double min, double max) {
+        if (p == null || !p.isConcrete()) {
+            throw new IllegalArgumentException("Predicate must be concrete: " + p);
+        }
+        if (Double.isNaN(min) || Double.isNaN(max)) {
+            throw new IllegalArgumentException("Range must not be NaN");
+        }
+        long[] pattern = pattern(g, Node.ANY, p, Node.ANY);
+        if (pattern == null) {
+            return Collections.<Quad> emptyIterator();
+        }
+        long[] graphs = pattern[0] == QuadIndex.ANY ? gspo.leadingValues() : new long[] { pattern[0] };
+        List<QuadIndex.Range> ranges = new ArrayList<QuadIndex.Range>();
+        for (long graph : graphs) {
+            ranges.add(gpos.between(graph, pattern[2], 0, InlineNodeCodec.INLINE - 1));
+            ranges.add(gpos.between(graph, pattern[2], InlineNodeCodec.integerCeiling(min),
+                    InlineNodeCodec.integerFloor(max)));
+            ranges.add(gpos.between(graph, pattern[2], InlineNodeCodec.doubleCeiling(min),
+                    InlineNodeCodec.doubleFloor(max)));
+        }
+        return decode(new RangeScan(ranges, min, max), false);
+    }
+
+    /**
+     * @return 全てのグラフのクワッドの数
+     */
+    public long quadCount() {
+        return gspo.size();
+    }
+
+    /**
+     * 辞書がCloseableであれば閉じる。
+     */
+    @Override
+    public void close() {
+        if (dictionary instanceof Closeable) {
+            try {
+                ((Closeable) dictionary).close();
+            } catch (IOException e) {
+                throw new JenaException(e);
+            }
+        }
+    }
+
+    private void delete(long g, long s, long p, long o) {
+        for (QuadIndex index : indexes) {
+            index.delete(g, s, p, o);
+        }
+    }
+
+    private void addAll(Node graphName, Graph graph) {
+        ExtendedIterator<Triple> it = graph.find(Node.ANY, Node.ANY, Node.ANY);
+        try {
+            while (it.hasNext()) {
+                add(new Quad(graphName, it.next()));
+            }
+        } finally {
+            it.close();
+        }
+    }
+
+    /**
+     * 名前付きグラフ全体の和集合から、トリプルとして重複しないものを返す。
+     * SPOGの索引ではグラフだけが異なるクワッドは隣り合うので、直前と比べるだけで重複を除ける。
+     */
+    private Iterator<Quad> findUnion(Node s, Node p, Node o) {
+        long[] pattern = pattern(Node.ANY, s, p, o);
+        if (pattern == null) {
+            return Collections.<Quad> emptyIterator();
+        }
+        final Iterator<long[]> it = spog.find(QuadIndex.ANY, pattern[1], pattern[2], pattern[3]);
+        return new Iterator<Quad>() {
+            private long[] last;
+            private Quad next = advance();
+
+            private Quad advance() {
+                while (it.hasNext()) {
+                    long[] q = it.next();
+                    if (q[0] == defaultGraphId
+                            || (last != null && last[1] == q[1] && last[2] == q[2] && last[3] == q[3])) {
+                        continue;
+                    }
+                    last = q;
+                    return new Quad(Quad.unionGraph, dictionary.decode(q[1]), dictionary.decode(q[2]),
+                            dictionary.decode(q[3]));
+                }
+                return null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public Quad next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                Quad result = next;
+                next = advance();
+                return result;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * パターンをIDの組にする。値を指定しない成分はQuadIndex.ANY。辞書にないノードがあれば一致するクワッドはないのでnull。
+     */
+    private long[] pattern(Node g, Node s, Node p, Node o) {
+        Node[] nodes = { g == null || !g.isConcrete() ? null : graphNode(g), s, p, o };
+        long[] pattern = new long[4];
+        for (int i = 0; i < 4; i++) {
+            if (nodes[i] == null || !nodes[i].isConcrete()) {
+                pattern[i] = QuadIndex.ANY;
+                continue;
+            }
+            // ANYとNOT_FOUNDはどちらも-1なので、具体的なノードだけ辞書にあるかを調べる
+            pattern[i] = dictionary.lookup(nodes[i]);
+            if (pattern[i] == NodeDictionary.NOT_FOUND) {
+                return null;
+            }
+        }
+        return pattern;
+    }
+
+    /**
+     * 指定された成分を最も長く絞り込める索引でスキャンする。
+     */
+    private Iterator<long[]> scan(long[] pattern) {
+        return choose(pattern).find(pattern[0], pattern[1], pattern[2], pattern[3]);
+    }
+
+    /**
+     * パターンに一致するクワッドを含む索引の範囲を返す。辞書にないノードがあればnull。
+     * 値を指定しない成分はnullまたはNode.ANY。
+     */
+    QuadIndex.Range range(Node g, Node s, Node p, Node o) {
+        long[] pattern = pattern(g, s, p, o);
+        if (pattern == null) {
+            return null;
+        }
+        return choose(pattern).range(pattern[0], pattern[1], pattern[2], pattern[3]);
+    }
+
+    /**
+     * パターンに一致するクワッドを、IDの組afterより後から最大limit件、IDの組(g, s, p, o)で返す。
+     * 辞書にないノードがあればnull。値を指定しない成分はnullまたはNode.ANY。
+     */
+    List<long[]> seek(Node g, Node s, Node p, Node o, long[] after, int limit) {
+        long[] pattern = pattern(g, s, p, o);
+        if (pattern == null) {
+            return null;
+        }
+        return choose(pattern).seek(pattern[0], pattern[1], pattern[2], pattern[3], after, limit);
+    }
+
+    /**
+     * @return デフォルトグラフのID
+     */
+    long defaultGraphId() {
+        return defaultGraphId;
+    }
+
+    private QuadIndex choose(long[] pattern) {
+        QuadIndex best = indexes[0];
+        int bestLength = -1;
+        for (QuadIndex index : indexes) {
+            int length = index.prefixLength(pattern[0], pattern[1], pattern[2], pattern[3]);
+            if (length > bestLength) {
+                best = index;
+                bestLength = length;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * findRangeの範囲を順にスキャンする。辞書のIDの範囲(3つごとの先頭)だけは、ノードに戻して数値を比べる。
+     */
+    private class RangeScan implements Iterator<long[]> {
+        private final List<QuadIndex.Range> ranges;
+        private final double min;
+        private final double max;
+        private int index = 0;
+        private int pos;
+        private long[] next;
+
+        RangeScan(List<QuadIndex.Range> ranges, double min, double max) {
+            this.ranges = ranges;
+            this.min = min;
+            this.max = max;
+            this.pos = ranges.isEmpty() ? 0 : ranges.get(0).from;
+            this.next = advance();
+        }
+
+        private long[] advance() {
+            while (index < ranges.size()) {
+                QuadIndex.Range range = ranges.get(index);
+                for (; pos < range.to; pos++) {
+                    long o = range.get(pos, QuadIndex.O);
+                    if (index % 3 == 0 && !inRange(dictionary.decode(o))) {
+                        continue;
+                    }
+                    long[] q = { range.get(pos, QuadIndex.G), range.get(pos, QuadIndex.S),
+                            range.get(pos, QuadIndex.P), o };
+                    pos++;
+                    return q;
+                }
+                if (++index < ranges.size()) {
+                    pos = ranges.get(index).from;
+                }
+            }
+            return null;
+        }
+
+        private boolean inRange(Node node) {
+            if (!node.isLiteral()) {
+                return false;
+            }
+            NodeValue value = NodeValue.makeNode(node);
+            if (!value.isNumber()) {
+                return false;
+            }
+            double v = value.getDouble();
+            return v >= min && v <= max;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public long[] next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            long[] result = next;
+            next = advance();
+            return result;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private Iterator<Quad> decode(final Iterator<long[]> it, final boolean namedOnly) {
+        return new Iterator<Quad>() {
+            private Quad next = advance();
+
+            private Quad advance() {
+                while (it.hasNext()) {
+                    long[] q = it.next();
+                    if (namedOnly && q[0] == defaultGraphId) {
+                        continue;
+                    }
+                    return new Quad(dictionary.decode(q[0]), dictionary.decode(q[1]), dictionary.decode(q[2]),
+                            dictionary.decode(q[3]));
+                }
+                return null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public Quad next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                Quad result = next;
+                next = advance();
+                return result;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    private static Node graphNode(Node g) {
+        return g == null || Quad.isDefaultGraph(g) ? Quad.defaultGraphIRI : g;
+    }
+}
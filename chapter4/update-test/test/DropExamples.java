@@ -21,7 +21,6 @@ package jp.sparqlbook.update;
 import org.apache.jena.atlas.lib.StrUtils;
 
 import com.hp.hpl.jena.query.Dataset;
-import com.hp.hpl.jena.sparql.sse.SSE;
 import com.hp.hpl.jena.tdb.TDBFactory;
 import com.hp.hpl.jena.update.GraphStore;
 import com.hp.hpl.jena.update.GraphStoreFactory;
@@ -39,6 +38,7 @@ public class DropExamples {
         drop3();
         drop4();
         drop5();
+        drop6();
     }
 
     /**
@@ -47,7 +47,17 @@ public class DropExamples {
      * @return ロード後のGraphStore
      */
     public static GraphStore loadData() {
-        GraphStore graphStore = createGraphStore();
+        return loadData(createGraphStore());
+    }
+
+    /**
+     * 指定したGraphStoreにデータをロードする。
+     * 
+     * @param graphStore
+     *            ロード先のGraphStore
+     * @return ロード後のGraphStore
+     */
+    public static GraphStore loadData(GraphStore graphStore) {
         // load
         String cmd = StrUtils.strjoin(" ;\n",
                 "LOAD <file:/data/rdf/update-data1.ttl> INTO GRAPH <http://sparqlbook.jp/graph1>",
@@ -112,6 +122,18 @@ public class DropExamples {
         printDebug(graphStore, "after");
     }
 
+    /**
+     * 指定した名前付きグラフを削除する(drop1)。
+     * CowDatasetGraphを使い、トリプルを1つずつ削除せずにグラフごと手放す。
+     */
+    public static void drop6() {
+        System.out.println("##### drop6 #####");
+        GraphStore graphStore = loadData(CowDatasetGraph.createGraphStore());
+        printDebug(graphStore, "before");
+        UpdateAction.parseExecute("DROP GRAPH <http://sparqlbook.jp/graph1>", graphStore);
+        printDebug(graphStore, "after");
+    }
+
     /**
      * 新しいTDBのGraphStoreオブジェクトを生成して返す。
      * 
@@ -132,8 +154,6 @@ public class DropExamples {
      */
     public static void printDebug(GraphStore graphStore, String title) {
         System.out.println("##### " + title + " #####");
-        SSE.write(graphStore);
-        // System.out.println("# N-Quads: S P O G") ;
-        // RDFDataMgr.write(System.out, graphStore, Lang.NQUADS) ;
+        QuadDump.write(graphStore, System.out);
     }
 }
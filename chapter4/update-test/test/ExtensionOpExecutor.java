@@ -0,0 +1,120 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.sparqlbook.update;
+
+import com.hp.hpl.jena.sparql.algebra.Op;
+import com.hp.hpl.jena.sparql.algebra.op.OpService;
+import com.hp.hpl.jena.sparql.algebra.op.OpTopN;
+import com.hp.hpl.jena.sparql.engine.ExecutionContext;
+import com.hp.hpl.jena.sparql.engine.QueryIterator;
+import com.hp.hpl.jena.sparql.engine.main.OpExecutor;
+import com.hp.hpl.jena.sparql.engine.main.OpExecutorFactory;
+import com.hp.hpl.jena.sparql.engine.main.QC;
+import com.hp.hpl.jena.sparql.util.Context;
+import com.hp.hpl.jena.sparql.util.Symbol;
+import com.hp.hpl.jena.tdb.solver.OpExecutorTDB;
+
+/**
+ * コンテキストに登録されたハンドラーで、SERVICEとOpTopNの実行を置き換えるOpExecutor
+ *
+ * QC.setFactoryで登録できるOpExecutorのファクトリはコンテキストに1つだけなので、
+ * BindJoinServiceとTopKQueryはそれぞれのハンドラーをコンテキストに置き、ファクトリはこのクラスのものを共有する。
+ * これにより両方を同じコンテキストに登録できる。
+ * TDBのデータセットは自身のコンテキストにOpExecutorTDBのファクトリを持ち、クエリの実行時には全体のコンテキストより優先される。
+ * TDBのデータセットで使うにはDataset.getContext()に登録する必要があり、
+ * その際にTDBの索引による評価を失わないように、このクラスはOpExecutorTDBを継承する。
+ * ハンドラーのない演算子はOpExecutorTDBで実行し、TDB以外のデータセットではOpExecutorTDBが通常のOpExecutorの実行を使う。
+ * ARQとTDB以外のファクトリが登録されたコンテキストには、そのファクトリを置き換えないように登録しない。
+ */
+public class ExtensionOpExecutor extends OpExecutorTDB {
+
+    /** SERVICEを実行するハンドラーのキー */
+    static final Symbol SERVICE = Symbol.create("http://sparqlbook.jp/update#serviceHandler");
+
+    /** OpTopNを実行するハンドラーのキー */
+    static final Symbol TOP_N = Symbol.create("http://sparqlbook.jp/update#topNHandler");
+
+    /**
+     * ExtensionOpExecutorを生成するファクトリ
+     */
+    public static final OpExecutorFactory factory = new OpExecutorFactory() {
+        @Override
+        public OpExecutor create(ExecutionContext execCxt) {
+            return new ExtensionOpExecutor(execCxt);
+        }
+    };
+
+    /**
+     * 演算子の実行を置き換えるハンドラー
+     */
+    interface Handler<T extends Op> {
+        /**
+         * @return 実行結果。このハンドラーで扱わない場合はnull(入力はまだ読んでいないこと)
+         */
+        QueryIterator execute(T op, QueryIterator input, ExtensionOpExecutor executor);
+    }
+
+    /**
+     * コンテキストにハンドラーを置き、ファクトリを登録する。
+     *
+     * @throws IllegalArgumentException
+     *             コンテキストにこのクラスとOpExecutorTDB以外のファクトリが登録されている場合
+     */
+    static <T extends Op> void register(Context context, Symbol key, Handler<T> handler) {
+        OpExecutorFactory current = QC.getFactory(context);
+        if (current != null && current != factory && current != OpExecutorTDB.OpExecFactoryTDB) {
+            throw new IllegalArgumentException("Context already has another OpExecutorFactory: " + current);
+        }
+        context.set(key, handler);
+        QC.setFactory(context, factory);
+    }
+
+    ExtensionOpExecutor(ExecutionContext execCxt) {
+        super(execCxt);
+    }
+
+    ExecutionContext getExecContext() {
+        return execCxt;
+    }
+
+    /**
+     * 部分式をこのOpExecutorで実行する。
+     */
+    QueryIterator executeSub(Op op, QueryIterator input) {
+        return executeOp(op, input);
+    }
+
+    @Override
+    protected QueryIterator execute(OpService opService, QueryIterator input) {
+        QueryIterator result = handle(SERVICE, opService, input);
+        return result != null ? result : super.execute(opService, input);
+    }
+
+    @Override
+    protected QueryIterator execute(OpTopN opTop, QueryIterator input) {
+        QueryIterator result = handle(TOP_N, opTop, input);
+        return result != null ? result : super.execute(opTop, input);
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T extends Op> QueryIterator handle(Symbol key, T op, QueryIterator input) {
+        Object handler = execCxt.getContext().get(key);
+        return handler == null ? null : ((Handler<T>) handler).execute(op, input, this);
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.sparqlbook.update;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.sparql.core.DatasetGraph;
+import com.hp.hpl.jena.sparql.core.DatasetGraphWrapper;
+import com.hp.hpl.jena.sparql.core.Quad;
+import com.hp.hpl.jena.sparql.engine.binding.Binding;
+import com.hp.hpl.jena.sparql.modify.UpdateEngine;
+import com.hp.hpl.jena.sparql.modify.UpdateEngineFactory;
+import com.hp.hpl.jena.sparql.modify.UpdateEngineMain;
+import com.hp.hpl.jena.sparql.modify.UpdateEngineRegistry;
+import com.hp.hpl.jena.sparql.modify.UpdateEngineWorker;
+import com.hp.hpl.jena.sparql.modify.request.Target;
+import com.hp.hpl.jena.sparql.modify.request.UpdateAdd;
+import com.hp.hpl.jena.sparql.modify.request.UpdateClear;
+import com.hp.hpl.jena.sparql.modify.request.UpdateCopy;
+import com.hp.hpl.jena.sparql.modify.request.UpdateDrop;
+import com.hp.hpl.jena.sparql.modify.request.UpdateMove;
+import com.hp.hpl.jena.sparql.modify.request.UpdateVisitor;
+import com.hp.hpl.jena.sparql.util.Context;
+import com.hp.hpl.jena.update.GraphStore;
+import com.hp.hpl.jena.update.UpdateException;
+
+/**
+ * CowDatasetGraphに対するグラフ単位の操作を、トリプル単位の削除・挿入ではなく
+ * グラフの付け替えで実行する更新エンジン
+ *
+ * COPYとMOVEはCowDatasetGraphのcopy/moveで実行する。ADDはコピー先が空の場合だけCOPYと同じ扱いにする。
+ * CLEARとDROPはグラフの中身を手放すだけで、トリプルを1つずつ削除しない。
+ * それ以外の更新とCowDatasetGraph以外のデータセットは通常のUpdateEngineMainに任せる。
+ */
+public class GraphLevelUpdateEngine extends UpdateEngineMain {
+
+    private static boolean registered = false;
+
+    private final GraphStore graphStore;
+    private final Binding inputBinding;
+    private final Context context;
+
+    /**
+     * GraphLevelUpdateEngineを生成するファクトリ
+     */
+    public static final UpdateEngineFactory factory = new UpdateEngineFactory() {
+        @Override
+        public boolean accept(GraphStore graphStore, Context context) {
+            return unwrap(graphStore) instanceof CowDatasetGraph;
+        }
+
+        @Override
+        public UpdateEngine create(GraphStore graphStore, Binding inputBinding, Context context) {
+            return new GraphLevelUpdateEngine(graphStore, inputBinding, context);
+        }
+    };
+
+    /**
+     * UpdateEngineRegistryにファクトリを登録する。2回目以降の呼び出しは何もしない。
+     */
+    public static synchronized void register() {
+        if (!registered) {
+            UpdateEngineRegistry.addFactory(factory);
+            registered = true;
+        }
+    }
+
+    public GraphLevelUpdateEngine(GraphStore graphStore, Binding inputBinding, Context context) {
+        super(graphStore, inputBinding, context);
+        this.graphStore = graphStore;
+        this.inputBinding = inputBinding;
+        this.context = context;
+    }
+
+    @Override
+    protected UpdateVisitor prepareWorker() {
+        return new Worker(graphStore, inputBinding, context);
+    }
+
+    /**
+     * ラッパーを外して実体のDatasetGraphを返す。
+     */
+    static DatasetGraph unwrap(DatasetGraph dsg) {
+        while (dsg instanceof DatasetGraphWrapper) {
+            dsg = ((DatasetGraphWrapper) dsg).getWrapped();
+        }
+        return dsg;
+    }
+
+    /**
+     * グラフ単位の操作を置き換えたUpdateEngineWorker
+     */
+    static class Worker extends UpdateEngineWorker {
+        private final CowDatasetGraph dataset;
+
+        Worker(GraphStore graphStore, Binding inputBinding, Context context) {
+            super(graphStore, inputBinding, context);
+            this.dataset = (CowDatasetGraph) unwrap(graphStore);
+        }
+
+        @Override
+        public void visit(UpdateCopy update) {
+            if (!checkSource(update.getSrc(), update.getSilent())) {
+                return;
+            }
+            dataset.copy(node(update.getSrc()), node(update.getDest()));
+        }
+
+        @Override
+        public void visit(UpdateMove update) {
+            if (!checkSource(update.getSrc(), update.getSilent())) {
+                return;
+            }
+            dataset.move(node(update.getSrc()), node(update.getDest()));
+        }
+
+        @Override
+        public void visit(UpdateAdd update) {
+            if (dataset.getGraph(node(update.getDest())).isEmpty()) {
+                if (checkSource(update.getSrc(), update.getSilent())) {
+                    dataset.copy(node(update.getSrc()), node(update.getDest()));
+                }
+                return;
+            }
+            super.visit(update);
+        }
+
+        @Override
+        public void visit(UpdateClear update) {
+            Target target = update.getTarget();
+            if (target.isOneNamedGraph() && !checkSource(target, update.isSilent())) {
+                return;
+            }
+            if (target.isDefault() || target.isOneNamedGraph()) {
+                dataset.getGraph(node(target)).clear();
+                return;
+            }
+            dataset.clearNamed();
+            if (target.isAll()) {
+                dataset.getDefaultGraph().clear();
+            }
+        }
+
+        @Override
+        public void visit(UpdateDrop update) {
+            Target target = update.getTarget();
+            if (target.isOneNamedGraph() && !checkSource(target, update.isSilent())) {
+                return;
+            }
+            if (target.isDefault() || target.isOneNamedGraph()) {
+                dataset.removeGraph(node(target));
+                return;
+            }
+            dataset.dropNamed();
+            if (target.isAll()) {
+                dataset.getDefaultGraph().clear();
+            }
+        }
+
+        /**
+         * 対象のグラフが存在しなければ、SILENTの場合はfalseを返し、そうでなければ例外を投げる。
+         */
+        private boolean checkSource(Target src, boolean silent) {
+            if (dataset.containsGraph(node(src))) {
+                return true;
+            }
+            if (silent) {
+                return false;
+            }
+            throw new UpdateException("No such graph: " + src);
+        }
+
+        static Node node(Target target) {
+            return target.isDefault() ? Quad.defaultGraphIRI : target.getGraph();
+        }
+    }
+}
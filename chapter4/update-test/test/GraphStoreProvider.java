@@ -0,0 +1,191 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.sparqlbook.update;
+
+import java.io.File;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.NodeFactory;
+import com.hp.hpl.jena.query.Dataset;
+import com.hp.hpl.jena.shared.JenaException;
+import com.hp.hpl.jena.shared.Lock;
+import com.hp.hpl.jena.sparql.core.Quad;
+import com.hp.hpl.jena.tdb.TDB;
+import com.hp.hpl.jena.tdb.TDBFactory;
+import com.hp.hpl.jena.update.GraphStore;
+import com.hp.hpl.jena.update.GraphStoreFactory;
+import com.hp.hpl.jena.update.UpdateAction;
+
+/**
+ * ディスク上のTDBを一度だけ開き、同じGraphStoreを使い回すためのクラス
+ *
+ * TDBFactory.createDataset()で毎回空のTDBを作る代わりに、場所ごとに1つのDatasetを開いたままにする。
+ * 開いている間はノードテーブルやB+木のキャッシュが温まったまま残る。
+ * シナリオごとの初期状態は、グラフのスナップショットをTDBの外(「ディレクトリ名.snapshots」)に
+ * BinarySnapshot形式で保存し、そこから戻すことで作る。Turtleを再パースする必要はない。
+ * スナップショットはデータセットに含まれないので、GRAPH ?gの結果に現れず、CLEAR NAMEDやDROP ALLでも消えない。
+ *
+ * <pre>
+ * GraphStoreProvider provider = GraphStoreProvider.open("/data/tdb");
+ * provider.prepare("http://sparqlbook.jp/graph1", "file:/data/rdf/update-data1.ttl");
+ * GraphStore graphStore = provider.getGraphStore();
+ * </pre>
+ */
+public class GraphStoreProvider {
+
+    private static final String DEFAULT = "default";
+
+    private static final Map<String, GraphStoreProvider> providers = new HashMap<String, GraphStoreProvider>();
+
+    private final Dataset dataset;
+    private final GraphStore graphStore;
+    private final File snapshots;
+
+    private GraphStoreProvider(String location) {
+        this.dataset = TDBFactory.createDataset(location);
+        this.graphStore = GraphStoreFactory.create(dataset);
+        this.snapshots = new File(new File(location).getAbsolutePath() + ".snapshots");
+    }
+
+    /**
+     * 指定した場所のTDBを開く。同じ場所に対しては同じインスタンスを返す。
+     *
+     * @param location
+     *            TDBのディレクトリ
+     * @return GraphStoreProvider
+     */
+    public static synchronized GraphStoreProvider open(String location) {
+        GraphStoreProvider provider = providers.get(location);
+        if (provider == null) {
+            provider = new GraphStoreProvider(location);
+            providers.put(location, provider);
+        }
+        return provider;
+    }
+
+    /**
+     * @return 開いているTDBのGraphStore
+     */
+    public GraphStore getGraphStore() {
+        return graphStore;
+    }
+
+    /**
+     * グラフを初期状態にする。スナップショットがあればそこから戻し、なければファイルをロードしてスナップショットを作る。
+     *
+     * @param graphIri
+     *            対象のグラフ名。nullの場合はデフォルトグラフ
+     * @param file
+     *            スナップショットがない場合にロードするファイル
+     */
+    public void prepare(String graphIri, String file) {
+        if (hasSnapshot(graphIri)) {
+            reset(graphIri);
+            return;
+        }
+        String target = graphIri == null ? "" : " INTO GRAPH <" + graphIri + ">";
+        UpdateAction.parseExecute("CLEAR SILENT " + graphRef(graphIri) + " ;\n"
+                + "LOAD <" + file + ">" + target, graphStore);
+        snapshot(graphIri);
+    }
+
+    /**
+     * グラフの現在の状態をスナップショットとして保存する。
+     *
+     * @param graphIri
+     *            対象のグラフ名。nullの場合はデフォルトグラフ
+     */
+    public void snapshot(String graphIri) {
+        if (!snapshots.isDirectory() && !snapshots.mkdirs()) {
+            throw new JenaException("Cannot create " + snapshots);
+        }
+        graphStore.getLock().enterCriticalSection(Lock.READ);
+        try {
+            BinarySnapshot.write(graphStore, graphNode(graphIri), snapshotFile(graphIri));
+        } finally {
+            graphStore.getLock().leaveCriticalSection();
+        }
+    }
+
+    /**
+     * グラフをスナップショットの状態に戻す。
+     *
+     * @param graphIri
+     *            対象のグラフ名。nullの場合はデフォルトグラフ
+     */
+    public void reset(String graphIri) {
+        Node graph = graphNode(graphIri);
+        graphStore.getLock().enterCriticalSection(Lock.WRITE);
+        try {
+            graphStore.deleteAny(graph, Node.ANY, Node.ANY, Node.ANY);
+            BinarySnapshot.read(snapshotFile(graphIri), graphStore, graph);
+        } finally {
+            graphStore.getLock().leaveCriticalSection();
+        }
+        sync();
+    }
+
+    /**
+     * @param graphIri
+     *            対象のグラフ名。nullの場合はデフォルトグラフ
+     * @return スナップショットがあればtrue
+     */
+    public boolean hasSnapshot(String graphIri) {
+        return snapshotFile(graphIri).isFile();
+    }
+
+    /**
+     * 変更をディスクに書き出す。
+     */
+    public void sync() {
+        TDB.sync(dataset);
+    }
+
+    /**
+     * TDBを閉じる。
+     */
+    public void close() {
+        synchronized (GraphStoreProvider.class) {
+            providers.values().remove(this);
+        }
+        sync();
+        dataset.close();
+    }
+
+    private static String graphRef(String graphIri) {
+        return graphIri == null ? "DEFAULT" : "GRAPH <" + graphIri + ">";
+    }
+
+    private static Node graphNode(String graphIri) {
+        return graphIri == null ? Quad.defaultGraphIRI : NodeFactory.createURI(graphIri);
+    }
+
+    private File snapshotFile(String graphIri) {
+        try {
+            String name = graphIri == null ? DEFAULT : URLEncoder.encode(graphIri, "UTF-8");
+            return new File(snapshots, name + BinarySnapshot.EXTENSION);
+        } catch (UnsupportedEncodingException e) {
+            throw new JenaException(e);
+        }
+    }
+}
@@ -0,0 +1,275 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.sparqlbook.update;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.hp.hpl.jena.query.Dataset;
+import com.hp.hpl.jena.query.ReadWrite;
+import com.hp.hpl.jena.sparql.modify.request.UpdateDataDelete;
+import com.hp.hpl.jena.sparql.modify.request.UpdateDataInsert;
+import com.hp.hpl.jena.update.GraphStore;
+import com.hp.hpl.jena.update.GraphStoreFactory;
+import com.hp.hpl.jena.update.Update;
+import com.hp.hpl.jena.update.UpdateAction;
+import com.hp.hpl.jena.update.UpdateException;
+import com.hp.hpl.jena.update.UpdateFactory;
+import com.hp.hpl.jena.update.UpdateRequest;
+
+/**
+ * 複数の呼び出し元からのINSERT DATA/DELETE DATAをまとめて1つの書き込みトランザクションで実行する。
+ *
+ * 受け付けた更新はキューに溜め、maxBatchSize件に達するか最初の更新からmaxDelayミリ秒が経った時点で
+ * まとめてコミットする。submitが返すFutureはそのバッチがコミットされた時点で完了する。
+ * バッチの途中で失敗した場合はバッチを破棄し、更新を1件ずつ実行し直して失敗したものだけをエラーにする。
+ */
+public class GroupCommitUpdater {
+
+    /** close()でキューに入れる停止の目印 */
+    private static final Pending CLOSE = new Pending(null);
+
+    private final Dataset dataset;
+    private final int maxBatchSize;
+    private final long maxDelay;
+    private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<Pending>();
+    private final Thread committer;
+    private boolean closed = false;
+
+    /**
+     * @param dataset
+     *            更新対象のトランザクション対応Dataset(TDB)
+     * @param maxBatchSize
+     *            1つのトランザクションにまとめる更新の最大件数
+     * @param maxDelay
+     *            最初の更新を受け付けてからコミットするまでの最大待ち時間(ミリ秒)
+     */
+    public GroupCommitUpdater(Dataset dataset, int maxBatchSize, long maxDelay) {
+        this.dataset = dataset;
+        this.maxBatchSize = maxBatchSize;
+        this.maxDelay = maxDelay;
+        this.committer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                commitLoop();
+            }
+        }, "group-commit");
+        this.committer.setDaemon(true);
+        this.committer.start();
+    }
+
+    /**
+     * INSERT DATA/DELETE DATAを受け付ける。パースは呼び出し元のスレッドで行う。
+     *
+     * @param cmd
+     *            INSERT DATAまたはDELETE DATAのみからなる更新
+     * @return コミット後に完了するFuture
+     */
+    public Future<Void> submit(String cmd) {
+        return submit(UpdateFactory.create(cmd));
+    }
+
+    /**
+     * INSERT DATA/DELETE DATAを受け付ける。
+     *
+     * @param request
+     *            INSERT DATAまたはDELETE DATAのみからなる更新
+     * @return コミット後に完了するFuture
+     */
+    public synchronized Future<Void> submit(UpdateRequest request) {
+        if (closed) {
+            throw new IllegalStateException("GroupCommitUpdater is closed");
+        }
+        for (Update update : request.getOperations()) {
+            if (!(update instanceof UpdateDataInsert) && !(update instanceof UpdateDataDelete)) {
+                throw new IllegalArgumentException("Only INSERT DATA and DELETE DATA can be batched: " + update);
+            }
+        }
+        Pending pending = new Pending(request);
+        queue.add(pending);
+        return pending;
+    }
+
+    /**
+     * 受け付け済みの更新をすべてコミットしてから停止する。
+     */
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            queue.add(CLOSE);
+        }
+        try {
+            committer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void commitLoop() {
+        List<Pending> batch = new ArrayList<Pending>(maxBatchSize);
+        try {
+            boolean stop = false;
+            while (!stop) {
+                try {
+                    Pending next = queue.take();
+                    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxDelay);
+                    while (next != null) {
+                        if (next == CLOSE) {
+                            stop = true;
+                            break;
+                        }
+                        batch.add(next);
+                        if (batch.size() >= maxBatchSize) {
+                            break;
+                        }
+                        next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    }
+                } catch (InterruptedException e) {
+                    stop = true;
+                }
+                if (!batch.isEmpty()) {
+                    commit(batch);
+                    batch.clear();
+                }
+            }
+        } finally {
+            failRemaining(batch);
+        }
+    }
+
+    /**
+     * コミットスレッドが止まった後は受け付けないようにし、完了していない更新を全て失敗させる。
+     * 割り込みやErrorでループを抜けた場合も、submitの呼び出し元がFutureを待ち続けないようにする。
+     */
+    private void failRemaining(List<Pending> batch) {
+        synchronized (this) {
+            closed = true;
+        }
+        List<Pending> remaining = new ArrayList<Pending>(batch);
+        queue.drainTo(remaining);
+        UpdateException stopped = new UpdateException("GroupCommitUpdater stopped before the update was committed");
+        for (Pending pending : remaining) {
+            if (pending != CLOSE && !pending.isDone()) {
+                pending.done(stopped);
+            }
+        }
+    }
+
+    private void commit(List<Pending> batch) {
+        try {
+            executeInTransaction(batch);
+            for (Pending pending : batch) {
+                pending.done(null);
+            }
+        } catch (RuntimeException e) {
+            // どの更新が失敗したのか分かるように1件ずつやり直す
+            for (Pending pending : batch) {
+                List<Pending> single = new ArrayList<Pending>(1);
+                single.add(pending);
+                try {
+                    executeInTransaction(single);
+                    pending.done(null);
+                } catch (RuntimeException e2) {
+                    pending.done(e2);
+                }
+            }
+        }
+    }
+
+    private void executeInTransaction(List<Pending> batch) {
+        dataset.begin(ReadWrite.WRITE);
+        try {
+            GraphStore graphStore = GraphStoreFactory.create(dataset);
+            for (Pending pending : batch) {
+                UpdateAction.execute(pending.request, graphStore);
+            }
+            dataset.commit();
+        } catch (RuntimeException e) {
+            dataset.abort();
+            throw e;
+        } finally {
+            dataset.end();
+        }
+    }
+
+    /**
+     * 受け付けた更新と、そのコミット結果
+     */
+    private static class Pending implements Future<Void> {
+        private final UpdateRequest request;
+        private final CountDownLatch latch = new CountDownLatch(1);
+        private volatile Throwable error;
+
+        Pending(UpdateRequest request) {
+            this.request = request;
+        }
+
+        void done(Throwable error) {
+            this.error = error;
+            latch.countDown();
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return false;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public boolean isDone() {
+            return latch.getCount() == 0;
+        }
+
+        @Override
+        public Void get() throws InterruptedException, ExecutionException {
+            latch.await();
+            return result();
+        }
+
+        @Override
+        public Void get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException,
+                TimeoutException {
+            if (!latch.await(timeout, unit)) {
+                throw new TimeoutException();
+            }
+            return result();
+        }
+
+        private Void result() throws ExecutionException {
+            if (error != null) {
+                throw new ExecutionException(new UpdateException("Update failed in group commit", error));
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.sparqlbook.update;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.hp.hpl.jena.graph.Node;
+
+/**
+ * ヒープ上のハッシュ表と配列で実装したNodeDictionary
+ *
+ * decodeは配列の参照だけで済むので、スキャン中に何度呼んでも安い。encodeは同期するが、lookupとdecodeは同期しない。
+ */
+public class HeapNodeDictionary implements NodeDictionary {
+
+    private final ConcurrentMap<Node, Long> ids = new ConcurrentHashMap<Node, Long>();
+    private volatile Node[] nodes = new Node[1024];
+    private volatile int size = 0;
+
+    @Override
+    public synchronized long encode(Node node) {
+        Long id = ids.get(node);
+        if (id != null) {
+            return id;
+        }
+        if (size == nodes.length) {
+            nodes = Arrays.copyOf(nodes, size * 2);
+        }
+        nodes[size] = node;
+        ids.put(node, Long.valueOf(size));
+        return size++;
+    }
+
+    @Override
+    public long lookup(Node node) {
+        Long id = ids.get(node);
+        return id == null ? NOT_FOUND : id;
+    }
+
+    @Override
+    public Node decode(long id) {
+        return nodes[(int) id];
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+}
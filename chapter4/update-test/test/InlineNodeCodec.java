@@ -0,0 +1,479 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.sparqlbook.update;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+import com.hp.hpl.jena.datatypes.xsd.XSDDatatype;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.NodeFactory;
+
+/**
+ * 小さなリテラルをIDそのものに埋め込み、それ以外のノードを元の辞書に任せるNodeDictionary
+ *
+ * 埋め込むIDは62ビット目を立て、56〜61ビット目に種類、下位56ビットに値を置く。
+ * 辞書のIDは2^62未満なので、索引では同じ述語の目的語のうち辞書のIDが先、埋め込んだIDが種類ごとに後に並ぶ。
+ * 値は種類の中で大小の順になるように符号化するので、数値の範囲はIDの範囲になり、
+ * 比較にも範囲の検索にも辞書を引かなくて済む(DatasetGraphDict.findRange。ARQのFILTERからは使われない)。
+ * 埋め込むのは字句が正規形で元のノードに戻せる次のリテラルだけで、それ以外は辞書に登録する。
+ * <ul>
+ * <li>xsd:integer(-2^55以上2^55未満)</li>
+ * <li>xsd:double(Double.toStringの形で、仮数の下位8ビットが0のもの。3776.0など)</li>
+ * <li>xsd:date(「2014-01-31」の形)</li>
+ * <li>xsd:dateTime(「2014-01-31T12:00:00Z」の形。小数秒は3桁まで。Zのないものは埋め込まない)</li>
+ * <li>xsd:boolean(「true」と「false」)</li>
+ * <li>言語タグもデータ型もない、UTF-8で7バイト以下の文字列</li>
+ * </ul>
+ */
+public class InlineNodeCodec implements NodeDictionary, Closeable {
+
+    /** 埋め込んだIDを表すビット。これより小さいIDは辞書のID */
+    static final long INLINE = 1L << 62;
+
+    static final int INTEGER = 1;
+    static final int DOUBLE = 2;
+    static final int DATE = 3;
+    static final int DATETIME = 4;
+    static final int BOOLEAN = 5;
+    static final int STRING = 6;
+
+    /** 埋め込めないリテラルを表す値 */
+    static final long NOT_INLINE = -1;
+
+    private static final int TAG_SHIFT = 56;
+    private static final long PAYLOAD_MASK = (1L << TAG_SHIFT) - 1;
+    private static final long OFFSET = 1L << 55;
+    private static final long DAY_MILLIS = 86400000L;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** 戻したノードを覚えておく表の大きさ(2の累乗の指数) */
+    private static final int CACHE_BITS = 12;
+
+    private final NodeDictionary dictionary;
+
+    /**
+     * 埋め込んだIDから戻したノード。IDのハッシュで位置を決め、衝突したら上書きする。
+     * 同じ値が何度も現れる目的語を戻すたびに、文字列とNodeを作り直さないようにする。
+     */
+    private final DecodedNode[] decoded = new DecodedNode[1 << CACHE_BITS];
+
+    /**
+     * @param dictionary
+     *            埋め込めないノードを登録する辞書
+     */
+    public InlineNodeCodec(NodeDictionary dictionary) {
+        this.dictionary = dictionary;
+    }
+
+    @Override
+    public long encode(Node node) {
+        long id = inline(node);
+        return id != NOT_INLINE ? id : dictionary.encode(node);
+    }
+
+    @Override
+    public long lookup(Node node) {
+        long id = inline(node);
+        return id != NOT_INLINE ? id : dictionary.lookup(node);
+    }
+
+    @Override
+    public Node decode(long id) {
+        if (!isInline(id)) {
+            return dictionary.decode(id);
+        }
+        int slot = (int) ((id * 0x9E3779B97F4A7C15L) >>> (64 - CACHE_BITS));
+        DecodedNode cached = decoded[slot];
+        if (cached != null && cached.id == id) {
+            return cached.node;
+        }
+        Node node = inlineNode(id);
+        decoded[slot] = new DecodedNode(id, node);
+        return node;
+    }
+
+    private static Node inlineNode(long id) {
+        String lex = lexicalForm(id);
+        switch (tag(id)) {
+        case INTEGER:
+            return NodeFactory.createLiteral(lex, null, XSDDatatype.XSDinteger);
+        case DOUBLE:
+            return NodeFactory.createLiteral(lex, null, XSDDatatype.XSDdouble);
+        case DATE:
+            return NodeFactory.createLiteral(lex, null, XSDDatatype.XSDdate);
+        case DATETIME:
+            return NodeFactory.createLiteral(lex, null, XSDDatatype.XSDdateTime);
+        case BOOLEAN:
+            return NodeFactory.createLiteral(lex, null, XSDDatatype.XSDboolean);
+        default:
+            return NodeFactory.createLiteral(lex);
+        }
+    }
+
+    /**
+     * @return 辞書に登録されているノードの数。埋め込んだリテラルは数えない
+     */
+    @Override
+    public long size() {
+        return dictionary.size();
+    }
+
+    /**
+     * 辞書がCloseableであれば閉じる。
+     */
+    @Override
+    public void close() throws IOException {
+        if (dictionary instanceof Closeable) {
+            ((Closeable) dictionary).close();
+        }
+    }
+
+    /**
+     * @return 埋め込んだIDであればtrue
+     */
+    static boolean isInline(long id) {
+        return id >= INLINE;
+    }
+
+    static int tag(long id) {
+        return (int) (id >>> TAG_SHIFT) & 0x3F;
+    }
+
+    /**
+     * 種類の値の範囲にある最小のIDを返す。
+     */
+    static long first(int tag) {
+        return INLINE | (long) tag << TAG_SHIFT;
+    }
+
+    /**
+     * 種類の値の範囲にある最大のIDを返す。
+     */
+    static long last(int tag) {
+        return first(tag) | PAYLOAD_MASK;
+    }
+
+    /**
+     * 値がmin以上になる最小のxsd:integerのID。範囲を超える場合は種類の端のID。
+     */
+    static long integerCeiling(double min) {
+        double v = Math.ceil(min);
+        if (v < -OFFSET) {
+            return first(INTEGER);
+        }
+        if (v >= OFFSET) {
+            return last(INTEGER) + 1;
+        }
+        return first(INTEGER) | ((long) v + OFFSET);
+    }
+
+    /**
+     * 値がmax以下になる最大のxsd:integerのID。範囲を超える場合は種類の端のID。
+     */
+    static long integerFloor(double max) {
+        double v = Math.floor(max);
+        if (v < -OFFSET) {
+            return first(INTEGER) - 1;
+        }
+        if (v >= OFFSET) {
+            return last(INTEGER);
+        }
+        return first(INTEGER) | ((long) v + OFFSET);
+    }
+
+    /**
+     * 値がmin以上になる最小のxsd:doubleのID。0.0は-0.0も含める。
+     */
+    static long doubleCeiling(double min) {
+        long bits = orderBits(min == 0.0 ? -0.0 : min);
+        long payload = bits >>> 8;
+        return first(DOUBLE) + (compareUnsigned(expand(payload), bits) < 0 ? payload + 1 : payload);
+    }
+
+    /**
+     * 値がmax以下になる最大のxsd:doubleのID。-0.0は0.0も含める。
+     */
+    static long doubleFloor(double max) {
+        long bits = orderBits(max == 0.0 ? 0.0 : max);
+        long payload = bits >>> 8;
+        return first(DOUBLE) + (compareUnsigned(expand(payload), bits) > 0 ? payload - 1 : payload);
+    }
+
+    /**
+     * リテラルを埋め込んだIDを返す。埋め込めなければNOT_INLINE。
+     */
+    static long inline(Node node) {
+        if (!node.isLiteral()) {
+            return NOT_INLINE;
+        }
+        String datatype = node.getLiteralDatatypeURI();
+        String lex = node.getLiteralLexicalForm();
+        if (datatype == null) {
+            String lang = node.getLiteralLanguage();
+            return lang == null || lang.isEmpty() ? inline(STRING, lex) : NOT_INLINE;
+        }
+        if (datatype.equals(XSDDatatype.XSDinteger.getURI())) {
+            return inline(INTEGER, lex);
+        }
+        if (datatype.equals(XSDDatatype.XSDdouble.getURI())) {
+            return inline(DOUBLE, lex);
+        }
+        if (datatype.equals(XSDDatatype.XSDdate.getURI())) {
+            return inline(DATE, lex);
+        }
+        if (datatype.equals(XSDDatatype.XSDdateTime.getURI())) {
+            return inline(DATETIME, lex);
+        }
+        if (datatype.equals(XSDDatatype.XSDboolean.getURI())) {
+            return inline(BOOLEAN, lex);
+        }
+        return NOT_INLINE;
+    }
+
+    /**
+     * 字句を種類に従って埋め込んだIDを返す。元の字句に戻せなければNOT_INLINE。
+     */
+    static long inline(int tag, String lex) {
+        long payload = payload(tag, lex);
+        if (payload == NOT_INLINE) {
+            return NOT_INLINE;
+        }
+        long id = first(tag) | payload;
+        return lex.equals(lexicalForm(id)) ? id : NOT_INLINE;
+    }
+
+    private static long payload(int tag, String lex) {
+        try {
+            switch (tag) {
+            case INTEGER: {
+                long v = Long.parseLong(lex);
+                return v >= -OFFSET && v < OFFSET ? v + OFFSET : NOT_INLINE;
+            }
+            case DOUBLE: {
+                double v = Double.parseDouble(lex);
+                if (Double.isNaN(v) || (Double.doubleToLongBits(v) & 0xFF) != 0) {
+                    return NOT_INLINE;
+                }
+                return orderBits(v) >>> 8;
+            }
+            case DATE:
+                return lex.length() == 10 ? parseDate(lex) + OFFSET : NOT_INLINE;
+            case DATETIME:
+                return parseDateTime(lex);
+            case BOOLEAN:
+                return lex.equals("true") ? 1 : lex.equals("false") ? 0 : NOT_INLINE;
+            case STRING:
+                return packString(lex);
+            default:
+                return NOT_INLINE;
+            }
+        } catch (NumberFormatException e) {
+            return NOT_INLINE;
+        }
+    }
+
+    /**
+     * 埋め込んだIDを字句に戻す。
+     */
+    static String lexicalForm(long id) {
+        long payload = id & PAYLOAD_MASK;
+        switch (tag(id)) {
+        case INTEGER:
+            return Long.toString(payload - OFFSET);
+        case DOUBLE:
+            return Double.toString(fromOrderBits(expand(payload)));
+        case DATE:
+            return formatDate(payload - OFFSET);
+        case DATETIME: {
+            int scale = (int) (payload & 3);
+            long millis = (payload >>> 2) - (1L << 52);
+            long days = floorDiv(millis, DAY_MILLIS);
+            long time = millis - days * DAY_MILLIS;
+            StringBuilder sb = new StringBuilder(formatDate(days)).append('T');
+            pad(sb, time / 3600000, 2).append(':');
+            pad(sb, time / 60000 % 60, 2).append(':');
+            pad(sb, time / 1000 % 60, 2);
+            if (scale > 0) {
+                sb.append('.').append(pad(new StringBuilder(), time % 1000, 3).substring(0, scale));
+            }
+            return sb.append('Z').toString();
+        }
+        case BOOLEAN:
+            return payload == 1 ? "true" : "false";
+        default:
+            return unpackString(payload);
+        }
+    }
+
+    /**
+     * doubleのビット列を、符号なしで比べたときに値の順になるように変換する。
+     */
+    private static long orderBits(double v) {
+        long bits = Double.doubleToLongBits(v);
+        return bits < 0 ? ~bits : bits ^ Long.MIN_VALUE;
+    }
+
+    /**
+     * 埋め込んだ値をorderBitsの形に戻す。負の数は仮数の下位8ビットの0が反転して1になっている。
+     */
+    private static long expand(long payload) {
+        return payload << 8 | (payload < 1L << 55 ? 0xFF : 0);
+    }
+
+    private static int compareUnsigned(long a, long b) {
+        return Long.compare(a ^ Long.MIN_VALUE, b ^ Long.MIN_VALUE);
+    }
+
+    private static double fromOrderBits(long bits) {
+        return Double.longBitsToDouble(bits < 0 ? bits ^ Long.MIN_VALUE : ~bits);
+    }
+
+    /**
+     * 「YYYY-MM-DD」を1970-01-01からの日数にする。形が違えばNumberFormatException。
+     */
+    private static long parseDate(String lex) {
+        if (lex.length() < 10 || lex.charAt(4) != '-' || lex.charAt(7) != '-') {
+            throw new NumberFormatException(lex);
+        }
+        int y = digits(lex, 0, 4);
+        int m = digits(lex, 5, 7);
+        int d = digits(lex, 8, 10);
+        if (y < 1 || m < 1 || m > 12 || d < 1 || d > 31) {
+            throw new NumberFormatException(lex);
+        }
+        // 3月始まりの年に直して日数を数える
+        int yy = m <= 2 ? y - 1 : y;
+        int era = yy / 400;
+        int yoe = yy - era * 400;
+        int doy = (153 * (m + (m > 2 ? -3 : 9)) + 2) / 5 + d - 1;
+        int doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+        return era * 146097L + doe - 719468;
+    }
+
+    private static String formatDate(long days) {
+        long z = days + 719468;
+        long era = floorDiv(z, 146097);
+        long doe = z - era * 146097;
+        long yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+        long doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+        long mp = (5 * doy + 2) / 153;
+        long d = doy - (153 * mp + 2) / 5 + 1;
+        long m = mp < 10 ? mp + 3 : mp - 9;
+        long y = yoe + era * 400 + (m <= 2 ? 1 : 0);
+        StringBuilder sb = new StringBuilder();
+        pad(sb, y, 4).append('-');
+        pad(sb, m, 2).append('-');
+        return pad(sb, d, 2).toString();
+    }
+
+    /**
+     * 「YYYY-MM-DDThh:mm:ss(.sss)Z」を、ミリ秒と小数秒の桁数にする。
+     */
+    private static long parseDateTime(String lex) {
+        int n = lex.length();
+        if (n < 20 || lex.charAt(10) != 'T' || lex.charAt(13) != ':' || lex.charAt(16) != ':'
+                || lex.charAt(n - 1) != 'Z') {
+            return NOT_INLINE;
+        }
+        int h = digits(lex, 11, 13);
+        int mi = digits(lex, 14, 16);
+        int s = digits(lex, 17, 19);
+        int scale = n == 20 ? 0 : n - 21;
+        if (h > 23 || mi > 59 || s > 59 || (scale != 0 && (scale < 1 || scale > 3 || lex.charAt(19) != '.'))) {
+            return NOT_INLINE;
+        }
+        int fraction = 0;
+        if (scale > 0) {
+            fraction = digits(lex, 20, n - 1);
+            for (int i = scale; i < 3; i++) {
+                fraction *= 10;
+            }
+        }
+        long millis = parseDate(lex.substring(0, 10)) * DAY_MILLIS + ((h * 60L + mi) * 60 + s) * 1000 + fraction;
+        return (millis + (1L << 52)) << 2 | scale;
+    }
+
+    private static long floorDiv(long x, long y) {
+        long q = x / y;
+        return (x % y != 0 && (x < 0) != (y < 0)) ? q - 1 : q;
+    }
+
+    private static int digits(String s, int from, int to) {
+        int v = 0;
+        for (int i = from; i < to; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') {
+                throw new NumberFormatException(s);
+            }
+            v = v * 10 + (c - '0');
+        }
+        return v;
+    }
+
+    private static StringBuilder pad(StringBuilder sb, long v, int width) {
+        String s = Long.toString(v);
+        for (int i = s.length(); i < width; i++) {
+            sb.append('0');
+        }
+        return sb.append(s);
+    }
+
+    /**
+     * 7バイト以下の文字列を先頭から詰める。NULを含む文字列は末尾の詰め物と区別できないので埋め込まない。
+     */
+    private static long packString(String lex) {
+        byte[] bytes = lex.getBytes(UTF8);
+        if (bytes.length > 7 || lex.indexOf('\0') >= 0) {
+            return NOT_INLINE;
+        }
+        long payload = 0;
+        for (int i = 0; i < 7; i++) {
+            payload = payload << 8 | (i < bytes.length ? bytes[i] & 0xFF : 0);
+        }
+        return payload;
+    }
+
+    private static String unpackString(long payload) {
+        byte[] bytes = new byte[7];
+        int n = 0;
+        for (int i = 6; i >= 0; i--) {
+            byte b = (byte) (payload >>> (8 * i));
+            if (b == 0) {
+                break;
+            }
+            bytes[n++] = b;
+        }
+        return new String(bytes, 0, n, UTF8);
+    }
+
+    /**
+     * 埋め込んだIDと、そこから戻したノードの組。複数のスレッドから読まれるので変更しない
+     */
+    private static final class DecodedNode {
+        final long id;
+        final Node node;
+
+        DecodedNode(long id, Node node) {
+            this.id = id;
+            this.node = node;
+        }
+    }
+}
@@ -18,10 +18,18 @@
 
 package jp.sparqlbook.update;
 
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
 import org.apache.jena.atlas.lib.StrUtils;
 
+import com.hp.hpl.jena.graph.NodeFactory;
 import com.hp.hpl.jena.query.Dataset;
-import com.hp.hpl.jena.sparql.sse.SSE;
+import com.hp.hpl.jena.query.ReadWrite;
+import com.hp.hpl.jena.sparql.core.Quad;
 import com.hp.hpl.jena.tdb.TDBFactory;
 import com.hp.hpl.jena.update.GraphStore;
 import com.hp.hpl.jena.update.GraphStoreFactory;
@@ -42,6 +50,8 @@ public class InsertDataExamples {
         } catch (Exception e) {
             System.out.println("insertData4でエラーが発生しました");
         }
+        insertData5();
+        insertData6();
     }
 
     /**
@@ -128,6 +138,65 @@ public class InsertDataExamples {
         printDebug(graphStore, "after");
     }
 
+    /**
+     * 複数のINSERT DATAをまとめて1つのトランザクションでコミットする。 GroupCommitUpdaterを使用する。
+     */
+    public static void insertData5() {
+        System.out.println("##### insertData5 #####");
+        Dataset ds = TDBFactory.createDataset();
+        GroupCommitUpdater updater = new GroupCommitUpdater(ds, 100, 10);
+        List<Future<Void>> acks = new ArrayList<Future<Void>>();
+        for (String author : new String[] { ":fumihiro", ":shuichi", ":yoko", ":yasunori", ":toshiaki" }) {
+            acks.add(updater.submit("PREFIX : <http://sparqlbook.jp/>"
+                   + "INSERT DATA {"
+                   + "  GRAPH <http://sparqlbook.jp/graph1> {"
+                   + "    :book :author " + author + " ."
+                   + "  }"
+                   + "}"));
+        }
+        try {
+            for (Future<Void> ack : acks) {
+                ack.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.out.println("insertData5が中断されました");
+        } catch (ExecutionException e) {
+            System.out.println("insertData5でエラーが発生しました");
+        } finally {
+            updater.close();
+        }
+        ds.begin(ReadWrite.READ);
+        try {
+            printDebug(GraphStoreFactory.create(ds), "after");
+        } finally {
+            ds.end();
+        }
+    }
+
+    /**
+     * 数値のリテラルを挿入し、値の範囲で検索する。InlineNodeCodecで数値をIDに埋め込むDatasetGraphDictを使用する。
+     */
+    public static void insertData6() {
+        System.out.println("##### insertData6 #####");
+        GraphStore graphStore = DatasetGraphDict.createGraphStore();
+        String cmd = "PREFIX : <http://sparqlbook.jp/>"
+                   + "INSERT DATA {"
+                   + "  GRAPH <http://sparqlbook.jp/graph1> {"
+                   + "    :fuji :elevation 3776 ."
+                   + "    :asama :elevation 2568 ."
+                   + "    :aso :elevation 1592.0e0 ."
+                   + "  }"
+                   + "}";
+        UpdateAction.parseExecute(cmd, graphStore);
+        DatasetGraphDict dsg = (DatasetGraphDict) GraphLevelUpdateEngine.unwrap(graphStore);
+        Iterator<Quad> it = dsg.findRange(NodeFactory.createURI("http://sparqlbook.jp/graph1"),
+                NodeFactory.createURI("http://sparqlbook.jp/elevation"), 1500, 3000);
+        while (it.hasNext()) {
+            System.out.println(it.next());
+        }
+    }
+
     /**
      * 空のGraphStore(TDB)のオブジェクトを生成して返す。
      * 
@@ -148,8 +217,6 @@ public class InsertDataExamples {
      */
     public static void printDebug(GraphStore graphStore, String title) {
         System.out.println("##### " + title + " #####");
-        SSE.write(graphStore);
-        // System.out.println("# N-Quads: S P O G") ;
-        // RDFDataMgr.write(System.out, graphStore, Lang.NQUADS) ;
+        QuadDump.write(graphStore, System.out);
     }
 }
@@ -18,10 +18,21 @@
 
 package jp.sparqlbook.update;
 
+import java.util.Set;
+
 import org.apache.jena.atlas.lib.StrUtils;
 
+import com.hp.hpl.jena.graph.Node;
 import com.hp.hpl.jena.query.Dataset;
-import com.hp.hpl.jena.sparql.sse.SSE;
+import com.hp.hpl.jena.query.DatasetFactory;
+import com.hp.hpl.jena.query.Query;
+import com.hp.hpl.jena.query.QueryExecution;
+import com.hp.hpl.jena.query.QueryExecutionFactory;
+import com.hp.hpl.jena.query.QueryFactory;
+import com.hp.hpl.jena.query.QuerySolutionMap;
+import com.hp.hpl.jena.query.ResultSetFormatter;
+import com.hp.hpl.jena.rdf.model.ResourceFactory;
+import com.hp.hpl.jena.sparql.core.Var;
 import com.hp.hpl.jena.tdb.TDBFactory;
 import com.hp.hpl.jena.update.GraphStore;
 import com.hp.hpl.jena.update.GraphStoreFactory;
@@ -41,6 +52,12 @@ public class InsertDeleteExamples {
         deleteInsert();
         with();
         using();
+        prepared();
+        optimized();
+        instrumented();
+        streaming();
+        cached();
+        textIndex();
     }
 
     /**
@@ -221,6 +238,189 @@ public class InsertDeleteExamples {
         printDebug(graphStore, "after");
     }
 
+    /**
+     * パース済みのDELETE/INSERTのテンプレートを、変数とWITH句のグラフを変えて繰り返し実行する。
+     */
+    public static void prepared() {
+        System.out.println("##### prepared #####");
+        GraphStore graphStore = loadData2();
+        printDebug(graphStore, "before");
+        PreparedUpdate update = new PreparedUpdate("PREFIX : <http://sparqlbook.jp/>"
+                   + "PREFIX rdf: <http://www.w3.org/1999/02/22-rdf-syntax-ns#>"
+                   + "PREFIX dbpedia-owl: <http://dbpedia.org/ontology/>"
+                   + ""
+                   + "WITH <http://sparqlbook.jp/graph1>"
+                   + "DELETE {"
+                   + "  ?author rdf:type :Person ."
+                   + "}"
+                   + "INSERT {"
+                   + "  ?author rdf:type dbpedia-owl:Person ."
+                   + "}"
+                   + "WHERE {"
+                   + "  :book :author ?author . "
+                   + "}");
+        QuerySolutionMap binding = new QuerySolutionMap();
+        binding.add("author", ResourceFactory.createResource("http://sparqlbook.jp/yoko"));
+        update.execute(graphStore, binding);
+        binding = new QuerySolutionMap();
+        binding.add("author", ResourceFactory.createResource("http://sparqlbook.jp/shuichi"));
+        update.execute(graphStore, "http://sparqlbook.jp/graph2", binding);
+        printDebug(graphStore, "after");
+    }
+
+    /**
+     * 件数の多いパターンを先に書いたDELETE/INSERTを、統計情報で並べ替えてから実行する。
+     * WHERE句は1件に絞れる?author foaf:givenName "Yoko"を先に評価する順に並べ替わり、TDBでもその順のまま評価される。
+     */
+    public static void optimized() {
+        System.out.println("##### optimized #####");
+        GraphStore graphStore = loadData2();
+        printDebug(graphStore, "before");
+        PatternStats stats = PatternStats.gather(graphStore);
+        PreparedUpdate update = new PreparedUpdate("PREFIX : <http://sparqlbook.jp/>"
+                   + "PREFIX rdf: <http://www.w3.org/1999/02/22-rdf-syntax-ns#>"
+                   + "PREFIX foaf: <http://xmlns.com/foaf/0.1/>"
+                   + "PREFIX dbpedia-owl: <http://dbpedia.org/ontology/>"
+                   + ""
+                   + "WITH <http://sparqlbook.jp/graph1>"
+                   + "DELETE {"
+                   + "  ?author rdf:type :Person ."
+                   + "}"
+                   + "INSERT {"
+                   + "  ?author rdf:type dbpedia-owl:Person ."
+                   + "}"
+                   + "WHERE {"
+                   + "  ?author rdf:type :Person . "
+                   + "  :book :author ?author . "
+                   + "  ?author foaf:givenName \"Yoko\" . "
+                   + "}", stats);
+        update.execute(graphStore, null);
+        printDebug(graphStore, "after");
+    }
+
+    /**
+     * usingと同じ更新を、操作ごとの実行時間と追加・削除したクワッド数を計測しながら実行する。
+     */
+    public static void instrumented() {
+        System.out.println("##### instrumented #####");
+        GraphStore graphStore = loadData2();
+        String cmd = "PREFIX : <http://sparqlbook.jp/>"
+                   + "PREFIX rdf: <http://www.w3.org/1999/02/22-rdf-syntax-ns#>"
+                   + "PREFIX dbpedia-owl: <http://dbpedia.org/ontology/>"
+                   + ""
+                   + "WITH <http://sparqlbook.jp/graph2>"
+                   + "DELETE {"
+                   + "  ?author rdf:type :Person ."
+                   + "}"
+                   + "INSERT {"
+                   + "  ?author rdf:type dbpedia-owl:Person ."
+                   + "}"
+                   + "USING <http://sparqlbook.jp/graph1>"
+                   + "WHERE {"
+                   + "  :book :author ?author . "
+                   + "}";
+        UpdateMetrics metrics = new UpdateMetrics();
+        InstrumentedUpdateAction action = new InstrumentedUpdateAction();
+        action.addListener(metrics);
+        action.addListener(new UpdateListener() {
+            @Override
+            public void updateExecuted(UpdateEvent event) {
+                System.out.println(event);
+            }
+        });
+        action.parseExecute(cmd, graphStore);
+        System.out.println("exec(ms): " + metrics.getExecMillis());
+    }
+
+    /**
+     * deleteInsertと同じ更新を、WHERE句の解を1件ごとにディスクへ退避しながら実行する。
+     * StreamingModifyを使用する。
+     */
+    public static void streaming() {
+        System.out.println("##### streaming #####");
+        GraphStore graphStore = loadData2();
+        printDebug(graphStore, "before");
+        StreamingModify.enable(graphStore, 1);
+        String cmd = "PREFIX : <http://sparqlbook.jp/>"
+                   + "PREFIX rdf: <http://www.w3.org/1999/02/22-rdf-syntax-ns#>"
+                   + "PREFIX dbpedia-owl: <http://dbpedia.org/ontology/>"
+                   + ""
+                   + "DELETE {"
+                   + "  GRAPH <http://sparqlbook.jp/graph1> {"
+                   + "    ?author rdf:type :Person ."
+                   + "  }"
+                   + "}"
+                   + "INSERT {"
+                   + "  GRAPH <http://sparqlbook.jp/graph1> {"
+                   + "    ?author rdf:type dbpedia-owl:Person ."
+                   + "  }"
+                   + "}"
+                   + "WHERE {"
+                   + "  GRAPH <http://sparqlbook.jp/graph1> {"
+                   + "    :book :author ?author . "
+                   + "  }"
+                   + "}";
+        UpdateAction.parseExecute(cmd, graphStore);
+        printDebug(graphStore, "after");
+    }
+
+    /**
+     * 同じSELECTを更新の前後で実行する。更新したグラフを参照する結果だけが実行し直される。
+     * QueryResultCacheを使用する。
+     */
+    public static void cached() {
+        System.out.println("##### cached #####");
+        GraphStore graphStore = loadData2();
+        QueryResultCache cache = new QueryResultCache(DatasetFactory.create(graphStore), 100);
+        InstrumentedUpdateAction action = new InstrumentedUpdateAction();
+        action.addListener(cache);
+        String query1 = "SELECT * WHERE { GRAPH <http://sparqlbook.jp/graph1> { ?s ?p ?o . } }";
+        String query2 = "SELECT * WHERE { GRAPH <http://sparqlbook.jp/graph2> { ?s ?p ?o . } }";
+        cache.select(query1);
+        cache.select(query2);
+        action.parseExecute("PREFIX : <http://sparqlbook.jp/>"
+                   + "INSERT DATA {"
+                   + "  GRAPH <http://sparqlbook.jp/graph2> {"
+                   + "    :book :author :yoko ."
+                   + "  }"
+                   + "}", graphStore);
+        ResultSetFormatter.out(cache.select(query1)); // キャッシュから返す
+        ResultSetFormatter.out(cache.select(query2)); // graph2が更新されたので実行し直す
+        System.out.println("hits: " + cache.getHits() + ", misses: " + cache.getMisses());
+    }
+
+    /**
+     * CONTAINSで絞り込むSELECTを、索引から求めた候補のVALUESを加えて実行する。
+     * LiteralTextIndexを使用する。
+     */
+    public static void textIndex() {
+        System.out.println("##### textIndex #####");
+        GraphStore graphStore = loadData2();
+        LiteralTextIndex index = new LiteralTextIndex(graphStore);
+        InstrumentedUpdateAction action = new InstrumentedUpdateAction();
+        action.addListener(index);
+        action.parseExecute("PREFIX : <http://sparqlbook.jp/>"
+                   + "PREFIX foaf: <http://xmlns.com/foaf/0.1/>"
+                   + "INSERT DATA {"
+                   + "  GRAPH <http://sparqlbook.jp/graph2> {"
+                   + "    :yoshiko foaf:givenName \"Yoshiko\" ."
+                   + "  }"
+                   + "}", graphStore);
+        Query query = QueryFactory.create("PREFIX foaf: <http://xmlns.com/foaf/0.1/>"
+                   + "SELECT ?name WHERE {"
+                   + "  GRAPH ?g { ?person foaf:givenName ?name . }"
+                   + "  FILTER CONTAINS(?name, \"Yo\")"
+                   + "}");
+        Set<Node> candidates = index.candidates(Node.ANY, "Yo");
+        query = LiteralTextIndex.restrict(query, Var.alloc("name"), candidates);
+        QueryExecution qexec = QueryExecutionFactory.create(query, DatasetFactory.create(graphStore));
+        try {
+            ResultSetFormatter.out(qexec.execSelect());
+        } finally {
+            qexec.close();
+        }
+    }
+
     /**
      * 空のGraphStore(TDB)のオブジェクトを生成して返す。
      * 
@@ -241,8 +441,6 @@ public class InsertDeleteExamples {
      */
     public static void printDebug(GraphStore graphStore, String title) {
         System.out.println("##### " + title + " #####");
-        SSE.write(graphStore);
-        // System.out.println("# N-Quads: S P O G") ;
-        // RDFDataMgr.write(System.out, graphStore, Lang.NQUADS) ;
+        QuadDump.write(graphStore, System.out);
     }
 }
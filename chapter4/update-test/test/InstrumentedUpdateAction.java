@@ -0,0 +1,307 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.sparqlbook.update;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.jena.atlas.io.IndentedWriter;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.query.Query;
+import com.hp.hpl.jena.query.QuerySolution;
+import com.hp.hpl.jena.query.QuerySolutionMap;
+import com.hp.hpl.jena.shared.Lock;
+import com.hp.hpl.jena.shared.PrefixMapping;
+import com.hp.hpl.jena.sparql.algebra.Op;
+import com.hp.hpl.jena.sparql.core.DatasetGraph;
+import com.hp.hpl.jena.sparql.core.Quad;
+import com.hp.hpl.jena.sparql.engine.Plan;
+import com.hp.hpl.jena.sparql.engine.QueryEngineFactory;
+import com.hp.hpl.jena.sparql.engine.QueryEngineRegistry;
+import com.hp.hpl.jena.sparql.engine.QueryIterator;
+import com.hp.hpl.jena.sparql.engine.binding.Binding;
+import com.hp.hpl.jena.sparql.engine.iterator.QueryIteratorWrapper;
+import com.hp.hpl.jena.sparql.serializer.SerializationContext;
+import com.hp.hpl.jena.sparql.util.Context;
+import com.hp.hpl.jena.sparql.util.Symbol;
+import com.hp.hpl.jena.update.GraphStore;
+import com.hp.hpl.jena.update.Update;
+import com.hp.hpl.jena.update.UpdateExecutionFactory;
+import com.hp.hpl.jena.update.UpdateFactory;
+import com.hp.hpl.jena.update.UpdateRequest;
+
+/**
+ * 操作ごとの計測結果をUpdateListenerに通知しながら更新を実行する。UpdateActionの代わりに使う。
+ *
+ * パース時間、書き込みロックの待ち時間、実行時間、DELETE/INSERTとDELETE WHEREのWHERE句の評価時間と解の数、
+ * 追加・削除したクワッド数を操作ごとに計測する。
+ * 操作は1つずつGraphStoreの書き込みロックを取り、GraphStoreをそのまま渡して実行するので、
+ * TDBやCowDatasetGraphの更新エンジンがそのまま選ばれる。
+ *
+ * WHERE句の評価は、この実行のコンテキストにだけ反応するQueryEngineFactoryで計測する。
+ * このファクトリは本来選ばれるクエリエンジン(TDBなど)に評価を任せ、解の数と、プランの作成から解を読み終わるまでの時間を数える。
+ * 追加・削除したクワッド数は、Updates.affectedGraphsで求めた変更しうるグラフの件数を実行の前後で比べた差で、
+ * COPY/MOVE/CLEAR/DROPのようにグラフ単位で処理する更新も含む。
+ * 同じグラフで削除と追加の両方をする更新は差し引いた数になる。
+ * グラフの件数を数える時間は実行時間に含めないが、TDBでは件数に比例した時間がかかる。
+ */
+public class InstrumentedUpdateAction {
+
+    /** WHERE句の評価を計測するWhereStatsのキー */
+    private static final Symbol WHERE_STATS = Symbol.create("http://sparqlbook.jp/update#whereStats");
+
+    static {
+        QueryEngineRegistry.addFactory(new WhereCounting());
+    }
+
+    private final List<UpdateListener> listeners = new CopyOnWriteArrayList<UpdateListener>();
+
+    /**
+     * @param listener
+     *            追加するリスナー
+     */
+    public void addListener(UpdateListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * @param listener
+     *            削除するリスナー
+     */
+    public void removeListener(UpdateListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * 更新をパースして実行する。UpdateAction.parseExecuteに相当する。
+     *
+     * @param cmd
+     *            更新
+     * @param graphStore
+     *            更新対象のGraphStore
+     */
+    public void parseExecute(String cmd, GraphStore graphStore) {
+        long start = System.nanoTime();
+        UpdateRequest request = UpdateFactory.create(cmd);
+        execute(request, graphStore, null, System.nanoTime() - start);
+    }
+
+    /**
+     * パース済みの更新を実行する。
+     *
+     * @param request
+     *            更新
+     * @param graphStore
+     *            更新対象のGraphStore
+     * @param binding
+     *            変数に束縛する値。nullの場合は束縛しない
+     */
+    public void execute(UpdateRequest request, GraphStore graphStore, QuerySolution binding) {
+        execute(request, graphStore, binding, 0);
+    }
+
+    private void execute(UpdateRequest request, GraphStore graphStore, QuerySolution binding, long parseNanos) {
+        for (Update update : request.getOperations()) {
+            UpdateRequest single = new UpdateRequest();
+            single.setPrefixMapping(request.getPrefixMapping());
+            single.add(update);
+            WhereStats where = new WhereStats();
+            Context context = Context.setupContext(null, graphStore);
+            context.set(WHERE_STATS, where);
+            Set<Node> affected = Updates.affectedGraphs(update);
+            long lockStart = System.nanoTime();
+            graphStore.getLock().enterCriticalSection(Lock.WRITE);
+            long lockWait = System.nanoTime() - lockStart;
+            long execNanos;
+            long inserted = 0;
+            long deleted = 0;
+            RuntimeException error = null;
+            try {
+                Map<Node, Long> before = sizes(graphStore, affected);
+                long execStart = System.nanoTime();
+                try {
+                    UpdateExecutionFactory.create(single, graphStore,
+                            binding == null ? new QuerySolutionMap() : binding, context).execute();
+                } catch (RuntimeException e) {
+                    error = e;
+                }
+                execNanos = System.nanoTime() - execStart;
+                Map<Node, Long> after = sizes(graphStore, affected);
+                Set<Node> graphs = new HashSet<Node>(before.keySet());
+                graphs.addAll(after.keySet());
+                for (Node g : graphs) {
+                    long diff = size(after, g) - size(before, g);
+                    if (diff > 0) {
+                        inserted += diff;
+                    } else {
+                        deleted -= diff;
+                    }
+                }
+            } finally {
+                graphStore.getLock().leaveCriticalSection();
+            }
+            UpdateEvent event = new UpdateEvent(update, parseNanos, lockWait, execNanos, where.nanos, where.bindings,
+                    inserted, deleted, error);
+            for (UpdateListener listener : listeners) {
+                listener.updateExecuted(event);
+            }
+            if (error != null) {
+                throw error;
+            }
+            parseNanos = 0;
+        }
+    }
+
+    /**
+     * 変更しうるグラフの件数を返す。Quad.unionGraphは全ての名前付きグラフ、nullはデフォルトグラフと全ての名前付きグラフを表す。
+     */
+    private static Map<Node, Long> sizes(DatasetGraph dsg, Set<Node> affected) {
+        Map<Node, Long> sizes = new HashMap<Node, Long>();
+        boolean allNamed = affected == null || affected.contains(Quad.unionGraph);
+        if (affected == null || affected.contains(Quad.defaultGraphIRI)) {
+            sizes.put(Quad.defaultGraphIRI, (long) dsg.getDefaultGraph().size());
+        }
+        if (allNamed) {
+            Iterator<Node> names = dsg.listGraphNodes();
+            while (names.hasNext()) {
+                Node name = names.next();
+                sizes.put(name, (long) dsg.getGraph(name).size());
+            }
+        } else {
+            for (Node name : affected) {
+                if (!Quad.isDefaultGraph(name)) {
+                    sizes.put(name, (long) dsg.getGraph(name).size());
+                }
+            }
+        }
+        return sizes;
+    }
+
+    private static long size(Map<Node, Long> sizes, Node graph) {
+        Long size = sizes.get(graph);
+        return size == null ? 0 : size;
+    }
+
+    /**
+     * 1つの操作のWHERE句の評価時間と解の数
+     */
+    private static class WhereStats {
+        long nanos;
+        long bindings;
+    }
+
+    /**
+     * コンテキストにWhereStatsがある場合だけ選ばれ、他のファクトリに評価を任せて解の数と時間を数えるQueryEngineFactory
+     */
+    private static class WhereCounting implements QueryEngineFactory {
+
+        @Override
+        public boolean accept(Query query, DatasetGraph dataset, Context context) {
+            return context != null && context.get(WHERE_STATS) != null;
+        }
+
+        @Override
+        public Plan create(Query query, DatasetGraph dataset, Binding inputBinding, Context context) {
+            long start = System.nanoTime();
+            Context rest = context.copy();
+            rest.unset(WHERE_STATS);
+            QueryEngineFactory delegate = QueryEngineRegistry.findFactory(query, dataset, rest);
+            return new CountingPlan(delegate.create(query, dataset, inputBinding, rest),
+                    (WhereStats) context.get(WHERE_STATS), start);
+        }
+
+        @Override
+        public boolean accept(Op op, DatasetGraph dataset, Context context) {
+            return false;
+        }
+
+        @Override
+        public Plan create(Op op, DatasetGraph dataset, Binding inputBinding, Context context) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * 解の数を数え、閉じたときにプランの作成からの時間を加えるPlan
+     */
+    private static class CountingPlan implements Plan {
+        private final Plan plan;
+        private final WhereStats stats;
+        private final long start;
+
+        CountingPlan(Plan plan, WhereStats stats, long start) {
+            this.plan = plan;
+            this.stats = stats;
+            this.start = start;
+        }
+
+        @Override
+        public Op getOp() {
+            return plan.getOp();
+        }
+
+        @Override
+        public QueryIterator iterator() {
+            return new QueryIteratorWrapper(plan.iterator()) {
+                private boolean closed = false;
+
+                @Override
+                protected Binding moveToNextBinding() {
+                    stats.bindings++;
+                    return super.moveToNextBinding();
+                }
+
+                @Override
+                protected void closeIterator() {
+                    if (!closed) {
+                        closed = true;
+                        stats.nanos += System.nanoTime() - start;
+                    }
+                    super.closeIterator();
+                }
+            };
+        }
+
+        @Override
+        public void close() {
+            plan.close();
+        }
+
+        @Override
+        public void output(IndentedWriter out, SerializationContext sCxt) {
+            plan.output(out, sCxt);
+        }
+
+        @Override
+        public String toString(PrefixMapping pmap) {
+            return plan.toString(pmap);
+        }
+
+        @Override
+        public void output(IndentedWriter out) {
+            plan.output(out);
+        }
+    }
+}
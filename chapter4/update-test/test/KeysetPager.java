@@ -0,0 +1,179 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.sparqlbook.update;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.xml.bind.DatatypeConverter;
+
+import org.apache.jena.riot.out.NodeFmtLib;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.NodeFactory;
+import com.hp.hpl.jena.rdf.model.AnonId;
+import com.hp.hpl.jena.shared.JenaException;
+import com.hp.hpl.jena.sparql.core.DatasetGraph;
+import com.hp.hpl.jena.sparql.core.Quad;
+import com.hp.hpl.jena.sparql.util.NodeFactoryExtra;
+
+/**
+ * LIMIT/OFFSETの代わりに、前のページの最後のクワッドから索引のスキャンを再開してページを返す。
+ *
+ * 「SELECT * WHERE { ?s ?p ?o . } LIMIT 100 OFFSET 10000」(chapter6/6-1.rq)は、
+ * 先頭から10000件を読んで捨ててから100件を返す。KeysetPagerはDatasetGraphDictの索引を
+ * 前のページの最後のクワッドの直後から二分探索で探し、保留中の追加と削除もその位置から併合するので、
+ * 何ページ目でも1ページ目と同じ手間で済む。
+ * 続きのトークンはそのクワッドのノードをN-Triples形式で並べてBase64にしたもので、
+ * 位置ではなく値なので、間に追加や削除があってもずれない。最後のクワッドが削除されていても続きから返す。
+ * ページの間に追加されたクワッドは、既に返した位置より前であれば返さない。
+ * 並び順はノードのIDの順で、IDは辞書に登録した順、IDに埋め込んだリテラルは値の順になる。
+ * DatasetGraphDict以外のデータセットと、名前付きグラフの和集合(Quad.unionGraph)は扱わない。
+ *
+ * <pre>
+ * KeysetPager pager = new KeysetPager(graphStore);
+ * KeysetPager.Page page = pager.page(Quad.defaultGraphIRI, null, null, null, null, 100);
+ * page = pager.page(Quad.defaultGraphIRI, null, null, null, page.getNextToken(), 100);
+ * </pre>
+ */
+public class KeysetPager {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final DatasetGraphDict dsg;
+
+    /**
+     * @param dsg
+     *            DatasetGraphDict、またはそれを使うGraphStore
+     */
+    public KeysetPager(DatasetGraph dsg) {
+        DatasetGraph base = GraphLevelUpdateEngine.unwrap(dsg);
+        if (!(base instanceof DatasetGraphDict)) {
+            throw new IllegalArgumentException("KeysetPager requires a DatasetGraphDict: " + dsg.getClass());
+        }
+        this.dsg = (DatasetGraphDict) base;
+    }
+
+    /**
+     * パターンに一致するクワッドを、トークンの位置から最大limit件返す。
+     *
+     * @param g
+     *            グラフ名。nullまたはNode.ANYの場合は全てのグラフ
+     * @param s
+     *            主語。nullまたはNode.ANYの場合は指定しない
+     * @param p
+     *            述語。nullまたはNode.ANYの場合は指定しない
+     * @param o
+     *            目的語。nullまたはNode.ANYの場合は指定しない
+     * @param token
+     *            前のページのgetNextToken()。nullの場合は最初のページ
+     * @param limit
+     *            1ページの件数
+     * @return ページ
+     */
+    public Page page(Node g, Node s, Node p, Node o, String token, int limit) {
+        if (limit < 1) {
+            throw new IllegalArgumentException("limit must be positive: " + limit);
+        }
+        // 次のページがあるかを知るために1件多く読む
+        List<long[]> ids = dsg.seek(g, s, p, o, token == null ? null : decodeToken(token),
+                limit == Integer.MAX_VALUE ? limit : limit + 1);
+        if (ids == null) {
+            return new Page(Collections.<Quad> emptyList(), null);
+        }
+        boolean more = ids.size() > limit;
+        List<Quad> quads = new ArrayList<Quad>(Math.min(ids.size(), limit));
+        NodeDictionary dictionary = dsg.getDictionary();
+        for (int i = 0; i < ids.size() && i < limit; i++) {
+            long[] q = ids.get(i);
+            quads.add(new Quad(dictionary.decode(q[QuadIndex.G]), dictionary.decode(q[QuadIndex.S]),
+                    dictionary.decode(q[QuadIndex.P]), dictionary.decode(q[QuadIndex.O])));
+        }
+        return new Page(quads, more ? encodeToken(ids.get(limit - 1)) : null);
+    }
+
+    private String encodeToken(long[] quad) {
+        StringBuilder sb = new StringBuilder();
+        for (int c = 0; c < 4; c++) {
+            if (c > 0) {
+                sb.append('\n');
+            }
+            Node node = dsg.getDictionary().decode(quad[c]);
+            sb.append(node.isBlank() ? "_:" + node.getBlankNodeLabel() : NodeFmtLib.str(node));
+        }
+        return DatatypeConverter.printBase64Binary(sb.toString().getBytes(UTF8)).replace('+', '-')
+                .replace('/', '_');
+    }
+
+    /**
+     * トークンをIDの組(g, s, p, o)に戻す。辞書から削除されたノードはないので、必ず元のIDになる。
+     * 空白ノードはパースすると別のノードになるので、ラベルをそのまま使う。
+     */
+    private long[] decodeToken(String token) {
+        String[] parts;
+        try {
+            byte[] bytes = DatatypeConverter.parseBase64Binary(token.replace('-', '+').replace('_', '/'));
+            parts = new String(bytes, UTF8).split("\n", -1);
+        } catch (IllegalArgumentException e) {
+            throw new JenaException("Invalid page token: " + token, e);
+        }
+        if (parts.length != 4) {
+            throw new JenaException("Invalid page token: " + token);
+        }
+        long[] quad = new long[4];
+        for (int c = 0; c < 4; c++) {
+            Node node = parts[c].startsWith("_:") ? NodeFactory.createAnon(new AnonId(parts[c].substring(2)))
+                    : NodeFactoryExtra.parseNode(parts[c]);
+            quad[c] = dsg.getDictionary().lookup(node);
+            if (quad[c] == NodeDictionary.NOT_FOUND) {
+                throw new JenaException("Page token does not belong to this dataset: " + token);
+            }
+        }
+        return quad;
+    }
+
+    /**
+     * 1ページ分のクワッドと続きのトークン
+     */
+    public static class Page {
+        private final List<Quad> quads;
+        private final String nextToken;
+
+        Page(List<Quad> quads, String nextToken) {
+            this.quads = quads;
+            this.nextToken = nextToken;
+        }
+
+        /**
+         * @return このページのクワッド
+         */
+        public List<Quad> getQuads() {
+            return quads;
+        }
+
+        /**
+         * @return 次のページのトークン。最後のページであればnull
+         */
+        public String getNextToken() {
+            return nextToken;
+        }
+    }
+}
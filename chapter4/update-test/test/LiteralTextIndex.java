@@ -0,0 +1,422 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.sparqlbook.update;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.query.Query;
+import com.hp.hpl.jena.sparql.core.DatasetGraph;
+import com.hp.hpl.jena.sparql.core.Quad;
+import com.hp.hpl.jena.sparql.core.Var;
+import com.hp.hpl.jena.sparql.engine.binding.BindingFactory;
+import com.hp.hpl.jena.sparql.modify.request.UpdateDataDelete;
+import com.hp.hpl.jena.sparql.modify.request.UpdateDataInsert;
+import com.hp.hpl.jena.sparql.modify.request.UpdateDeleteWhere;
+import com.hp.hpl.jena.sparql.modify.request.UpdateModify;
+import com.hp.hpl.jena.sparql.syntax.ElementData;
+import com.hp.hpl.jena.sparql.syntax.ElementGroup;
+import com.hp.hpl.jena.update.Update;
+
+/**
+ * リテラルの文字列の2文字ずつの組(bigram)から、そのリテラルを引く転置索引
+ *
+ * 「FILTER CONTAINS(?label, "ビート")」や「FILTER REGEX(?text, "^tokyo", "i")」の候補を、
+ * 全てのリテラルを調べずに絞り込むために使う。日本語の「東京」のような2文字の語も引けるように、
+ * 3文字ではなく2文字の組にする。大文字と小文字は区別せずに索引するので、候補は必ず正解を含む。
+ * 候補をVALUESでクエリに加え、元のFILTERはそのまま残して正確に判定させる。
+ *
+ * 索引はグラフごとに、最初に検索したときに作る。InstrumentedUpdateActionにリスナーとして登録すると、
+ * INSERT DATAで追加されたリテラルはその場で索引に加え、LOADやDELETE/INSERTで変わったグラフの索引は捨てて、
+ * 次の検索で作り直す。削除されたリテラルは索引に残るが、候補が増えるだけで結果は変わらない。
+ * CLEARとDROPでは索引も捨てる。
+ *
+ * 索引はグラフごとのNodeDictionaryでリテラルに番号を振り、組ごとに番号をint配列で昇順に持つ。
+ * 大きさはおよそ「リテラルの総文字数 x 4バイト」と、辞書に1リテラルあたり1エントリになる。
+ * 平均20文字のリテラルが3,000万あれば索引だけで2GB以上になるので、その規模ではjena-textなどの
+ * ディスク上の全文検索を使うこと。索引はヒープに置き、永続化しない。
+ *
+ * <pre>
+ * LiteralTextIndex index = new LiteralTextIndex(graphStore);
+ * action.addListener(index);
+ * Set&lt;Node&gt; labels = index.candidates(Quad.defaultGraphIRI, "ビート");
+ * Query query = LiteralTextIndex.restrict(QueryFactory.create(queryString), Var.alloc("label"), labels);
+ * </pre>
+ */
+public class LiteralTextIndex implements UpdateListener {
+
+    private static final int N = 2;
+
+    private final DatasetGraph dsg;
+    private final ConcurrentMap<Node, GraphIndex> indexes = new ConcurrentHashMap<Node, GraphIndex>();
+
+    /**
+     * @param dsg
+     *            対象のデータセット
+     */
+    public LiteralTextIndex(DatasetGraph dsg) {
+        this.dsg = dsg;
+    }
+
+    /**
+     * textを含むリテラルの候補を返す。
+     *
+     * @param graph
+     *            グラフ名。デフォルトグラフはQuad.defaultGraphIRI、Node.ANYは全てのグラフ
+     * @param text
+     *            CONTAINSの第2引数
+     * @return 候補のリテラル。textが短く絞り込めない場合はnull
+     */
+    public Set<Node> candidates(Node graph, String text) {
+        List<String> grams = grams(text);
+        if (grams.isEmpty()) {
+            return null;
+        }
+        return lookup(graph, grams);
+    }
+
+    /**
+     * 正規表現に一致しうるリテラルの候補を返す。
+     * 正規表現から必ず現れる2文字以上の文字列を取り出し、その全てを含むリテラルを候補にする。
+     *
+     * @param graph
+     *            グラフ名。デフォルトグラフはQuad.defaultGraphIRI、Node.ANYは全てのグラフ
+     * @param regex
+     *            REGEXの第2引数
+     * @param flags
+     *            REGEXの第3引数。ない場合はnull
+     * @return 候補のリテラル。選択(|)を含む場合や、フラグがi以外(xで空白の意味が変わるなど)で
+     *         絞り込めない場合はnull
+     */
+    public Set<Node> regexCandidates(Node graph, String regex, String flags) {
+        if (flags != null && !flags.isEmpty() && !flags.equals("i")) {
+            return null;
+        }
+        if (regex.indexOf('|') >= 0) {
+            return null;
+        }
+        List<String> grams = new ArrayList<String>();
+        for (String literal : literals(regex)) {
+            grams.addAll(grams(literal));
+        }
+        if (grams.isEmpty()) {
+            return null;
+        }
+        return lookup(graph, grams);
+    }
+
+    /**
+     * クエリのWHERE句の先頭に「VALUES ?var { 候補 }」を加えたクエリを返す。
+     *
+     * @param query
+     *            元のクエリ。変更しない
+     * @param var
+     *            FILTERで調べる変数
+     * @param candidates
+     *            候補のリテラル。nullの場合は絞り込まない
+     * @return 候補で絞り込んだクエリ
+     */
+    public static Query restrict(Query query, Var var, Set<Node> candidates) {
+        Query restricted = query.cloneQuery();
+        if (candidates == null) {
+            return restricted;
+        }
+        ElementData data = new ElementData();
+        data.add(var);
+        for (Node candidate : candidates) {
+            data.add(BindingFactory.binding(var, candidate));
+        }
+        ElementGroup group = new ElementGroup();
+        group.addElement(data);
+        group.addElement(restricted.getQueryPattern());
+        restricted.setQueryPattern(group);
+        return restricted;
+    }
+
+    @Override
+    public void updateExecuted(UpdateEvent event) {
+        Update update = event.getUpdate();
+        if (update instanceof UpdateDataInsert) {
+            for (Quad quad : ((UpdateDataInsert) update).getQuads()) {
+                GraphIndex index = indexes.get(graph(quad.getGraph()));
+                if (index != null) {
+                    index.add(quad.getObject());
+                }
+            }
+            return;
+        }
+        if (update instanceof UpdateDataDelete || update instanceof UpdateDeleteWhere
+                || (update instanceof UpdateModify && !((UpdateModify) update).hasInsertClause())) {
+            return;
+        }
+        invalidate(Updates.affectedGraphs(update));
+    }
+
+    /**
+     * グラフの索引を捨てる。次に検索したときに作り直す。
+     *
+     * @param graphs
+     *            対象のグラフ。名前の決まらない名前付きグラフはQuad.unionGraph、nullは全てのグラフ
+     */
+    public void invalidate(Set<Node> graphs) {
+        if (graphs == null) {
+            indexes.clear();
+            return;
+        }
+        boolean anyNamed = graphs.contains(Quad.unionGraph);
+        Iterator<Node> it = indexes.keySet().iterator();
+        while (it.hasNext()) {
+            Node graph = it.next();
+            if (graphs.contains(graph) || (anyNamed && !Quad.isDefaultGraph(graph))) {
+                it.remove();
+            }
+        }
+    }
+
+    private Set<Node> lookup(Node graph, List<String> grams) {
+        if (graph != null && graph.isConcrete()) {
+            return index(graph(graph)).lookup(grams);
+        }
+        Set<Node> result = index(Quad.defaultGraphIRI).lookup(grams);
+        Iterator<Node> it = dsg.listGraphNodes();
+        while (it.hasNext()) {
+            result.addAll(index(it.next()).lookup(grams));
+        }
+        return result;
+    }
+
+    private GraphIndex index(Node graph) {
+        GraphIndex index = indexes.get(graph);
+        if (index == null) {
+            GraphIndex created = new GraphIndex(dsg, graph);
+            index = indexes.putIfAbsent(graph, created);
+            if (index == null) {
+                index = created;
+            }
+        }
+        return index;
+    }
+
+    private static Node graph(Node graph) {
+        return graph == null || Quad.isDefaultGraph(graph) ? Quad.defaultGraphIRI : graph;
+    }
+
+    /**
+     * 小文字にした文字列のN文字ずつの組を返す。N文字に満たなければ空。
+     */
+    static List<String> grams(String text) {
+        String s = text.toLowerCase(Locale.ROOT);
+        List<String> grams = new ArrayList<String>();
+        for (int i = 0; i + N <= s.length(); i++) {
+            grams.add(s.substring(i, i + N));
+        }
+        return grams;
+    }
+
+    /**
+     * 正規表現から、一致する文字列に必ずそのまま現れる部分を取り出す。
+     * メタ文字、エスケープ、文字クラスで区切る。直後に?、*、{}が付く文字と、
+     * 量指定子で省略されうるグループの中は除く。
+     */
+    static List<String> literals(String regex) {
+        List<String> literals = new ArrayList<String>();
+        StringBuilder current = new StringBuilder();
+        int groups = 0;
+        for (int i = 0; i < regex.length(); i++) {
+            char c = regex.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (c == '[') {
+                i = skip(regex, i, ']');
+            } else if (c == '{' || c == '?' || c == '*') {
+                if (current.length() > 0) {
+                    current.setLength(current.length() - 1);
+                }
+                if (c == '{') {
+                    i = skip(regex, i, '}');
+                }
+            } else if (c == '(') {
+                groups++;
+            } else if (c == ')') {
+                groups--;
+            } else if (".^$+".indexOf(c) < 0) {
+                if (groups == 0) {
+                    current.append(c);
+                }
+                continue;
+            }
+            literals.add(current.toString());
+            current.setLength(0);
+        }
+        literals.add(current.toString());
+        return literals;
+    }
+
+    /**
+     * iの次から、エスケープされていないendの位置まで進める。
+     */
+    private static int skip(String regex, int i, char end) {
+        int j = i + 1;
+        while (j < regex.length() && regex.charAt(j) != end) {
+            if (regex.charAt(j) == '\\') {
+                j++;
+            }
+            j++;
+        }
+        return j;
+    }
+
+    /**
+     * 1つのグラフのリテラルの索引
+     */
+    private static class GraphIndex {
+        private final DatasetGraph dsg;
+        private final Node graph;
+        private final NodeDictionary literals = new HeapNodeDictionary();
+        private final Map<String, Postings> postings = new HashMap<String, Postings>();
+        private boolean built = false;
+
+        GraphIndex(DatasetGraph dsg, Node graph) {
+            this.dsg = dsg;
+            this.graph = graph;
+        }
+
+        /**
+         * 索引を作る前であれば何もしない。作るときにグラフから読むので漏れない。
+         */
+        synchronized void add(Node node) {
+            if (built) {
+                index(node);
+            }
+        }
+
+        /**
+         * 全ての組を含むリテラルを、候補の少ない組から順に絞り込んで求める。
+         */
+        synchronized Set<Node> lookup(List<String> grams) {
+            if (!built) {
+                Iterator<Quad> it = dsg.find(graph, Node.ANY, Node.ANY, Node.ANY);
+                while (it.hasNext()) {
+                    index(it.next().getObject());
+                }
+                built = true;
+            }
+            List<Postings> lists = new ArrayList<Postings>();
+            for (String gram : grams) {
+                Postings list = postings.get(gram);
+                if (list == null) {
+                    return new HashSet<Node>();
+                }
+                lists.add(list);
+            }
+            Collections.sort(lists, new Comparator<Postings>() {
+                @Override
+                public int compare(Postings a, Postings b) {
+                    return Integer.compare(a.size, b.size);
+                }
+            });
+            int[] ids = Arrays.copyOf(lists.get(0).ids, lists.get(0).size);
+            int size = ids.length;
+            for (int i = 1; i < lists.size() && size > 0; i++) {
+                size = lists.get(i).retain(ids, size);
+            }
+            Set<Node> result = new HashSet<Node>();
+            for (int i = 0; i < size; i++) {
+                result.add(literals.decode(ids[i]));
+            }
+            return result;
+        }
+
+        private void index(Node node) {
+            if (!node.isLiteral()) {
+                return;
+            }
+            int id = (int) literals.encode(node);
+            for (String gram : grams(node.getLiteralLexicalForm())) {
+                Postings list = postings.get(gram);
+                if (list == null) {
+                    list = new Postings();
+                    postings.put(gram, list);
+                }
+                list.add(id);
+            }
+        }
+    }
+
+    /**
+     * 1つの組を含むリテラルの番号の昇順の列
+     */
+    private static class Postings {
+        private int[] ids = new int[4];
+        private int size = 0;
+
+        /**
+         * 番号を加える。新しいリテラルは最大の番号なので、ほとんどは末尾に足すだけで済む。
+         */
+        void add(int id) {
+            if (size > 0 && ids[size - 1] >= id) {
+                int pos = Arrays.binarySearch(ids, 0, size, id);
+                if (pos >= 0) {
+                    return;
+                }
+                insert(-pos - 1, id);
+                return;
+            }
+            insert(size, id);
+        }
+
+        /**
+         * 昇順のtargetの先頭count個のうち、この列にもある番号だけを前に詰め、その個数を返す。
+         */
+        int retain(int[] target, int count) {
+            int kept = 0;
+            int j = 0;
+            for (int i = 0; i < count && j < size; i++) {
+                while (j < size && ids[j] < target[i]) {
+                    j++;
+                }
+                if (j < size && ids[j] == target[i]) {
+                    target[kept++] = target[i];
+                }
+            }
+            return kept;
+        }
+
+        private void insert(int pos, int id) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            System.arraycopy(ids, pos, ids, pos + 1, size - pos);
+            ids[pos] = id;
+            size++;
+        }
+    }
+}
@@ -20,8 +20,9 @@ package jp.sparqlbook.update;
 
 import org.apache.jena.atlas.lib.StrUtils;
 
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.NodeFactory;
 import com.hp.hpl.jena.query.Dataset;
-import com.hp.hpl.jena.sparql.sse.SSE;
 import com.hp.hpl.jena.tdb.TDBFactory;
 import com.hp.hpl.jena.update.GraphStore;
 import com.hp.hpl.jena.update.GraphStoreFactory;
@@ -43,6 +44,11 @@ public class LoadExamples {
         }
         load5();
         // load6();
+        load7();
+        load8();
+        load9();
+        load10();
+        load11();
     }
 
     /**
@@ -117,6 +123,77 @@ public class LoadExamples {
         printDebug(graphStore, "after");
     }
 
+    /**
+     * 複数のファイルを並列にパースしてロードする(load3)。 BulkLoaderを使用する。
+     */
+    public static void load7() {
+        System.out.println("##### load7 #####");
+        GraphStore graphStore = createGraphStore();
+        printDebug(graphStore, "before");
+        Node graph = NodeFactory.createURI("http://sparqlbook.jp/graph");
+        new BulkLoader()
+            .add("file:/data/rdf/update-data1.ttl", graph)
+            .add("file:/data/rdf/update-data2.ttl", graph)
+            .execute(graphStore);
+        printDebug(graphStore, "after");
+    }
+
+    /**
+     * ノードをIDに置き換えて保持するメモリ上のデータセットにロードする。DatasetGraphDictを使用する。
+     */
+    public static void load8() {
+        System.out.println("##### load8 #####");
+        GraphStore graphStore = DatasetGraphDict.createGraphStore();
+        printDebug(graphStore, "before");
+        UpdateAction.parseExecute("LOAD <file:/data/rdf/update-data1.ttl> INTO GRAPH <http://sparqlbook.jp/graph1>",
+                graphStore);
+        printDebug(graphStore, "after");
+    }
+
+    /**
+     * ノードの文字列をヒープの外に置いてロードする(load8)。OffHeapNodeTableを使用する。
+     */
+    public static void load9() {
+        System.out.println("##### load9 #####");
+        GraphStore graphStore = DatasetGraphDict.createGraphStore(new OffHeapNodeTable());
+        printDebug(graphStore, "before");
+        UpdateAction.parseExecute("LOAD <file:/data/rdf/update-data1.ttl> INTO GRAPH <http://sparqlbook.jp/graph1>",
+                graphStore);
+        printDebug(graphStore, "after");
+        graphStore.close();
+    }
+
+    /**
+     * ロード(load8)したグラフを、LIMIT/OFFSETの代わりにトークンで2件ずつ読む。KeysetPagerを使用する。
+     */
+    public static void load10() {
+        System.out.println("##### load10 #####");
+        GraphStore graphStore = DatasetGraphDict.createGraphStore();
+        UpdateAction.parseExecute("LOAD <file:/data/rdf/update-data1.ttl> INTO GRAPH <http://sparqlbook.jp/graph1>",
+                graphStore);
+        Node graph = NodeFactory.createURI("http://sparqlbook.jp/graph1");
+        KeysetPager pager = new KeysetPager(graphStore);
+        String token = null;
+        do {
+            KeysetPager.Page page = pager.page(graph, null, null, null, token, 2);
+            System.out.println(page.getQuads());
+            token = page.getNextToken();
+        } while (token != null);
+    }
+
+    /**
+     * ローカルファイルをメモリマップして開くLocatorを登録してから、デフォルトグラフにロードする(load1)。
+     * MappedFileSourceを使用する。
+     */
+    public static void load11() {
+        System.out.println("##### load11 #####");
+        MappedFileSource.register();
+        GraphStore graphStore = createGraphStore();
+        printDebug(graphStore, "before");
+        UpdateAction.parseExecute("LOAD <file:/data/rdf/update-data1.ttl>", graphStore);
+        printDebug(graphStore, "after");
+    }
+
     /**
      * 新しいTDBのGraphStoreオブジェクトを生成して返す。
      * 
@@ -137,8 +214,6 @@ public class LoadExamples {
      */
     public static void printDebug(GraphStore graphStore, String title) {
         System.out.println("##### " + title + " #####");
-        SSE.write(graphStore);
-        // System.out.println("# N-Quads: S P O G") ;
-        // RDFDataMgr.write(System.out, graphStore, Lang.NQUADS) ;
+        QuadDump.write(graphStore, System.out);
     }
 }
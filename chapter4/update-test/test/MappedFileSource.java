@@ -0,0 +1,328 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.sparqlbook.update;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.jena.atlas.web.TypedInputStream;
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.RDFDataMgr;
+import org.apache.jena.riot.RDFLanguages;
+import org.apache.jena.riot.RiotException;
+import org.apache.jena.riot.RiotReader;
+import org.apache.jena.riot.lang.LangRIOT;
+import org.apache.jena.riot.system.ErrorHandler;
+import org.apache.jena.riot.system.ParserProfile;
+import org.apache.jena.riot.system.ParserProfileBase;
+import org.apache.jena.riot.system.ParserProfileChecker;
+import org.apache.jena.riot.system.Prologue;
+import org.apache.jena.riot.system.StreamRDF;
+import org.apache.jena.riot.stream.Locator;
+import org.apache.jena.riot.stream.StreamManager;
+
+import com.hp.hpl.jena.graph.Node;
+
+/**
+ * LOADのファイルをメモリマップして読み込むためのクラス
+ *
+ * FileInputStreamとその上のバッファを経由せず、マップしたByteBufferから直接パーサーにバイトを渡す。
+ * registerを呼ぶとRIOTのStreamManagerにローカルファイルをマップして開くLocatorを登録するので、
+ * SPARQLのLOADもメモリマップして読む(LoadExamples.load11)。
+ * マップしたバイトはRIOTのトークナイザーで読むので、トークンごとの文字列は通常の読み込みと同じく作られる。
+ * parseでN-Triples/N-Quads/Turtle/TriGを読む場合は、さらにParserProfileで、一度作った絶対IRIと同じ文字列には
+ * 同じNodeを返す。IRIの解決と検査は異なるIRIごとに1回になり(検査の警告も1回だけ出る)、
+ * http://sparqlbook.jp/ のように何度も現れるIRIのNodeがロード先に重複して保持されない。
+ */
+public class MappedFileSource {
+
+    /** 1回にマップする最大のバイト数 */
+    private static final long SEGMENT_SIZE = 1L << 30;
+
+    /** 揃えるために覚えておくIRIの数。超えたら古いものから忘れる */
+    private static final int INTERN_CACHE_SIZE = 100000;
+
+    private static boolean registered = false;
+
+    private MappedFileSource() {
+    }
+
+    /**
+     * ローカルファイルをメモリマップして開くLocatorを、StreamManagerの先頭に登録する。
+     * 2回目以降の呼び出しは何もしない。
+     * 登録後はLOADやRDFDataMgr.readでローカルファイルを読む場合もメモリマップを使う。
+     */
+    public static synchronized void register() {
+        if (registered) {
+            return;
+        }
+        StreamManager manager = StreamManager.get();
+        List<Locator> locators = new ArrayList<Locator>(manager.locators());
+        manager.clearLocators();
+        manager.addLocator(new MappedFileLocator());
+        for (Locator locator : locators) {
+            manager.addLocator(locator);
+        }
+        registered = true;
+    }
+
+    /**
+     * ローカルファイルであればメモリマップしてパースし、そうでなければRDFDataMgrに任せる。
+     *
+     * @param sink
+     *            パース結果の出力先
+     * @param source
+     *            「file:」で始まるIRI、ファイルパス、またはその他のIRI
+     */
+    public static void parse(StreamRDF sink, String source) {
+        File file = toFile(source);
+        Lang lang = RDFLanguages.filenameToLang(source);
+        if (file == null || lang == null) {
+            RDFDataMgr.parse(sink, source);
+            return;
+        }
+        try (InputStream in = open(file)) {
+            if (!interns(lang)) {
+                RDFDataMgr.parse(sink, in, source, lang);
+                return;
+            }
+            LangRIOT parser = RiotReader.createParser(in, lang, source, sink);
+            parser.setProfile(interning(parser.getProfile()));
+            parser.parse();
+        } catch (IOException e) {
+            throw new RiotException(e);
+        }
+    }
+
+    /**
+     * ファイルをメモリマップしたInputStreamを返す。
+     *
+     * @param file
+     *            読み込むファイル
+     * @return マップした領域を順に読むInputStream
+     * @throws IOException
+     *             ファイルを開けない場合
+     */
+    public static InputStream open(File file) throws IOException {
+        return new MappedInputStream(file);
+    }
+
+    /**
+     * LOADのIRIやパスがローカルファイルを指していればそのFileを返す。そうでなければnull。
+     * 「file:data.ttl」のような階層のないfile: IRIもnullを返し、呼び出し元の通常の読み込みに任せる。
+     */
+    static File toFile(String source) {
+        File file;
+        if (source.startsWith("file:")) {
+            try {
+                file = new File(URI.create(source));
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        } else if (source.contains(":/")) {
+            return null;
+        } else {
+            file = new File(source);
+        }
+        return file.isFile() ? file : null;
+    }
+
+    /**
+     * トークナイザーがParserProfileでNodeを作る言語であればtrue
+     */
+    private static boolean interns(Lang lang) {
+        return RDFLanguages.sameLang(lang, Lang.NTRIPLES) || RDFLanguages.sameLang(lang, Lang.NQUADS)
+                || RDFLanguages.sameLang(lang, Lang.TURTLE) || RDFLanguages.sameLang(lang, Lang.TRIG);
+    }
+
+    /**
+     * パーサーの既定のParserProfileと同じ検査をし、作ったIRIのNodeを揃えるParserProfileを返す。
+     */
+    private static ParserProfile interning(ParserProfile profile) {
+        IriCache iris = new IriCache();
+        if (profile instanceof ParserProfileChecker) {
+            return new InterningChecker(profile.getPrologue(), profile.getHandler(), iris);
+        }
+        return new InterningBase(profile.getPrologue(), profile.getHandler(), iris);
+    }
+
+    /**
+     * ローカルファイルをメモリマップして開くLocator。ローカルファイルでなければnullを返し、次のLocatorに任せる。
+     */
+    private static class MappedFileLocator implements Locator {
+        @Override
+        public TypedInputStream open(String uri) {
+            File file = toFile(uri);
+            if (file == null) {
+                return null;
+            }
+            try {
+                return new TypedInputStream(MappedFileSource.open(file), RDFLanguages.guessContentType(uri), uri);
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public String getName() {
+            return "MappedFileLocator";
+        }
+    }
+
+    /**
+     * SEGMENT_SIZEずつ順にマップしながら読むInputStream
+     */
+    private static class MappedInputStream extends InputStream {
+        private final RandomAccessFile raf;
+        private final FileChannel channel;
+        private final long size;
+        private long position = 0;
+        private ByteBuffer buffer = ByteBuffer.allocate(0);
+
+        MappedInputStream(File file) throws IOException {
+            raf = new RandomAccessFile(file, "r");
+            channel = raf.getChannel();
+            size = channel.size();
+        }
+
+        private boolean ensure() throws IOException {
+            if (buffer.hasRemaining()) {
+                return true;
+            }
+            if (position >= size) {
+                return false;
+            }
+            long length = Math.min(SEGMENT_SIZE, size - position);
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+            position += length;
+            buffer = mapped;
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return ensure() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!ensure()) {
+                return -1;
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+            raf.close();
+        }
+    }
+
+    /**
+     * 同じIRIのNodeを1つに揃えるためのキャッシュ。キーはパーサーが読んだままのIRIの文字列
+     */
+    private static class IriCache {
+        private final Map<String, Node> iris = new LinkedHashMap<String, Node>(1024, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Node> eldest) {
+                return size() > INTERN_CACHE_SIZE;
+            }
+        };
+
+        Node get(String uriStr) {
+            return iris.get(uriStr);
+        }
+
+        /**
+         * 解決してもIRIが変わらなかった(絶対IRIの)場合だけ覚える。相対IRIはベースIRIによって結果が変わるので覚えない。
+         */
+        void put(String uriStr, Node node) {
+            if (node.isURI() && node.getURI().equals(uriStr)) {
+                iris.put(uriStr, node);
+            }
+        }
+    }
+
+    /**
+     * IRIのNodeを揃えるParserProfileBase
+     */
+    private static class InterningBase extends ParserProfileBase {
+        private final IriCache iris;
+
+        InterningBase(Prologue prologue, ErrorHandler handler, IriCache iris) {
+            super(prologue, handler);
+            this.iris = iris;
+        }
+
+        @Override
+        public Node createURI(String uriStr, long line, long col) {
+            Node node = iris.get(uriStr);
+            if (node == null) {
+                node = super.createURI(uriStr, line, col);
+                iris.put(uriStr, node);
+            }
+            return node;
+        }
+    }
+
+    /**
+     * IRIのNodeを揃えるParserProfileChecker
+     */
+    private static class InterningChecker extends ParserProfileChecker {
+        private final IriCache iris;
+
+        InterningChecker(Prologue prologue, ErrorHandler handler, IriCache iris) {
+            super(prologue, handler);
+            this.iris = iris;
+        }
+
+        @Override
+        public Node createURI(String uriStr, long line, long col) {
+            Node node = iris.get(uriStr);
+            if (node == null) {
+                node = super.createURI(uriStr, line, col);
+                iris.put(uriStr, node);
+            }
+            return node;
+        }
+    }
+}
@@ -21,7 +21,6 @@ package jp.sparqlbook.update;
 import org.apache.jena.atlas.lib.StrUtils;
 
 import com.hp.hpl.jena.query.Dataset;
-import com.hp.hpl.jena.sparql.sse.SSE;
 import com.hp.hpl.jena.tdb.TDBFactory;
 import com.hp.hpl.jena.update.GraphStore;
 import com.hp.hpl.jena.update.GraphStoreFactory;
@@ -46,6 +45,7 @@ public class MoveExamples {
         }
         move6();
         move7();
+        move8();
     }
 
     /**
@@ -151,6 +151,42 @@ public class MoveExamples {
         printDebug(graphStore, "after");
     }
 
+    /**
+     * MOVEの実行中も、読み取りトランザクションは開始時点の状態を見続ける。TransactionalStoreを使用する。
+     */
+    public static void move8() {
+        System.out.println("##### move8 #####");
+        final TransactionalStore store = new TransactionalStore(TDBFactory.createDataset());
+        store.update(StrUtils.strjoin(" ;\n",
+                "LOAD <file:/data/rdf/update-data1.ttl> INTO GRAPH <http://sparqlbook.jp/graph1>",
+                "LOAD <file:/data/rdf/update-data2.ttl> INTO GRAPH <http://sparqlbook.jp/graph2>"));
+        store.read(new TransactionalStore.ReadAction<Void>() {
+            @Override
+            public Void run(Dataset ds) {
+                Thread writer = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        store.update("MOVE <http://sparqlbook.jp/graph1> TO <http://sparqlbook.jp/graph2>");
+                    }
+                });
+                writer.start();
+                try {
+                    writer.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                System.out.println("graph1 (snapshot): " + ds.getNamedModel("http://sparqlbook.jp/graph1").size());
+                return null;
+            }
+        });
+        System.out.println("graph1 (after): " + store.read(new TransactionalStore.ReadAction<Long>() {
+            @Override
+            public Long run(Dataset ds) {
+                return ds.getNamedModel("http://sparqlbook.jp/graph1").size();
+            }
+        }));
+    }
+
     /**
      * 空のGraphStore(TDB)のオブジェクトを生成して返す。
      * 
@@ -171,8 +207,6 @@ public class MoveExamples {
      */
     public static void printDebug(GraphStore graphStore, String title) {
         System.out.println("##### " + title + " #####");
-        SSE.write(graphStore);
-        // System.out.println("# N-Quads: S P O G") ;
-        // RDFDataMgr.write(System.out, graphStore, Lang.NQUADS) ;
+        QuadDump.write(graphStore, System.out);
     }
 }
@@ -0,0 +1,62 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.sparqlbook.update;
+
+import com.hp.hpl.jena.graph.Node;
+
+/**
+ * ノードとlongのIDを相互に変換する辞書
+ *
+ * IDは0から順に割り当てる。一度割り当てたIDは変わらず、削除もしない。
+ */
+public interface NodeDictionary {
+
+    /** lookupで辞書にないノードを表す値 */
+    long NOT_FOUND = -1;
+
+    /**
+     * ノードのIDを返す。辞書になければ新しいIDを割り当てる。
+     *
+     * @param node
+     *            具体的なノード(変数やNode.ANYは不可)
+     * @return ノードのID
+     */
+    long encode(Node node);
+
+    /**
+     * ノードのIDを返す。辞書になければNOT_FOUNDを返し、IDは割り当てない。
+     *
+     * @param node
+     *            ノード
+     * @return ノードのIDまたはNOT_FOUND
+     */
+    long lookup(Node node);
+
+    /**
+     * @param id
+     *            encodeで割り当てたID
+     * @return IDに対応するノード
+     */
+    Node decode(long id);
+
+    /**
+     * @return 登録されているノードの数
+     */
+    long size();
+}
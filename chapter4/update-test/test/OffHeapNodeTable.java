@@ -0,0 +1,416 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.sparqlbook.update;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import org.apache.jena.riot.out.NodeFmtLib;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.NodeFactory;
+import com.hp.hpl.jena.rdf.model.AnonId;
+import com.hp.hpl.jena.shared.JenaException;
+import com.hp.hpl.jena.sparql.util.NodeFactoryExtra;
+
+/**
+ * ノードの文字列をヒープの外に置くNodeDictionary
+ *
+ * ノードはN-Triples形式(空白ノードは「_:」とラベル)のUTF-8で、ダイレクトバッファまたは
+ * メモリマップしたファイルの領域に追記する。IDから位置への表と、文字列からIDを引くハッシュ表も
+ * ダイレクトバッファを8MBずつ並べたlongの配列で持つので、ヒープに残るのは最近decodeしたノードのキャッシュだけになる。
+ * ハッシュ表の1要素は文字列のハッシュ値(上位32ビット)とID+1(下位32ビット)で、
+ * 表を広げるときに文字列を読み直さずに済む。
+ * ノードは1つあたり文字列のほかに、位置の表に8バイト、ハッシュ表に16から21バイトを使う。
+ * 1つのダイレクトバッファの2GBの上限には縛られず、ノードはIDがintに収まる2^31-1個(約21億)まで置ける。
+ *
+ * <pre>
+ * OffHeapNodeTable nodes = new OffHeapNodeTable(new File("/data/nodes.tmp"));
+ * GraphStore graphStore = DatasetGraphDict.createGraphStore(nodes);
+ * </pre>
+ */
+public class OffHeapNodeTable implements NodeDictionary, Closeable {
+
+    /** 文字列を追記する領域1つの大きさ */
+    private static final int CHUNK_SIZE = 64 << 20;
+
+    /** 置けるノードの数。IDはハッシュ表の要素の下位32ビットにID+1として入れる */
+    private static final int MAX_NODES = Integer.MAX_VALUE;
+
+    /** ハッシュ表の大きさの上限。ハッシュ値が32ビットなので、これより広げても使わない位置ができるだけになる */
+    private static final long MAX_TABLE = 1L << 32;
+
+    /** decodeしたノードを覚えておく数(2のべき乗) */
+    private static final int CACHE_SIZE = 1 << 12;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+
+    private volatile ByteBuffer[] chunks = new ByteBuffer[0];
+    private int chunkPosition = CHUNK_SIZE;
+
+    /** IDごとの文字列の位置。上位32ビットが領域の番号、下位32ビットが領域内の位置 */
+    private volatile LongArray offsets = new LongArray(1024);
+    private volatile int size = 0;
+
+    /** 文字列からIDを引くための開番地法のハッシュ表。0は空き */
+    private LongArray table = new LongArray(2048);
+
+    private final Entry[] cache = new Entry[CACHE_SIZE];
+
+    /**
+     * 文字列をダイレクトバッファに置くOffHeapNodeTableを生成する。
+     */
+    public OffHeapNodeTable() {
+        this.file = null;
+        this.raf = null;
+        this.channel = null;
+    }
+
+    /**
+     * 文字列をメモリマップしたファイルに置くOffHeapNodeTableを生成する。
+     * ファイルは作業用で、closeで削除する。
+     *
+     * @param file
+     *            作業用のファイル
+     */
+    public OffHeapNodeTable(File file) {
+        try {
+            this.file = file;
+            this.raf = new RandomAccessFile(file, "rw");
+            this.channel = raf.getChannel();
+        } catch (IOException e) {
+            throw new JenaException(e);
+        }
+    }
+
+    @Override
+    public synchronized long encode(Node node) {
+        byte[] bytes = toBytes(node);
+        int hash = hash(bytes);
+        long slot = slot(bytes, hash);
+        long entry = table.get(slot);
+        if (entry != 0) {
+            return (entry & 0xFFFFFFFFL) - 1;
+        }
+        int id = size;
+        if (id == MAX_NODES) {
+            throw new JenaException("Node table is full: " + MAX_NODES + " nodes");
+        }
+        if (id == offsets.capacity) {
+            offsets = offsets.grow(Math.min(MAX_NODES, 2L * id));
+        }
+        offsets.put(id, append(bytes));
+        table.put(slot, ((long) hash << 32) | (id + 1));
+        size = id + 1;
+        if (4L * size > 3L * table.capacity) {
+            rehash();
+        }
+        return id;
+    }
+
+    @Override
+    public synchronized long lookup(Node node) {
+        byte[] bytes = toBytes(node);
+        long entry = table.get(slot(bytes, hash(bytes)));
+        return entry == 0 ? NOT_FOUND : (entry & 0xFFFFFFFFL) - 1;
+    }
+
+    @Override
+    public Node decode(long id) {
+        int index = (int) (id & (CACHE_SIZE - 1));
+        Entry entry = cache[index];
+        if (entry != null && entry.id == id) {
+            return entry.node;
+        }
+        Node node = fromBytes(read(offsets.get((int) id)));
+        cache[index] = new Entry(id, node);
+        return node;
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    /**
+     * ダイレクトバッファとメモリマップをGCを待たずに解放し、ファイルを使っている場合は閉じて削除する。
+     * マップしたままではファイルを削除できないOSがあるので、先に解放する。
+     * 解放した領域を読むとJVMが異常終了するので、closeの後や、closeと並行してdecodeを呼んではいけない。
+     */
+    @Override
+    public synchronized void close() {
+        ByteBuffer[] released = chunks;
+        chunks = new ByteBuffer[0];
+        for (ByteBuffer chunk : released) {
+            unmap(chunk);
+        }
+        offsets.free();
+        table.free();
+        if (channel != null) {
+            try {
+                channel.close();
+                raf.close();
+            } catch (IOException e) {
+                throw new JenaException(e);
+            } finally {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * 同じ文字列の要素があればその位置、なければ空きの位置を返す。
+     */
+    private long slot(byte[] bytes, int hash) {
+        long mask = table.capacity - 1;
+        long slot = hash & 0xFFFFFFFFL & mask;
+        while (true) {
+            long entry = table.get(slot);
+            if (entry == 0) {
+                return slot;
+            }
+            if ((int) (entry >>> 32) == hash && equalsAt(offsets.get((int) ((entry & 0xFFFFFFFFL) - 1)), bytes)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * ハッシュ表を2倍に広げる。表はencodeとlookupの中でしか読まないので、古い表はすぐに解放する。
+     */
+    private void rehash() {
+        if (table.capacity * 2 > MAX_TABLE) {
+            return;
+        }
+        LongArray old = table;
+        LongArray resized = new LongArray(old.capacity * 2);
+        long mask = resized.capacity - 1;
+        for (long i = 0; i < old.capacity; i++) {
+            long entry = old.get(i);
+            if (entry == 0) {
+                continue;
+            }
+            long slot = (entry >>> 32) & mask;
+            while (resized.get(slot) != 0) {
+                slot = (slot + 1) & mask;
+            }
+            resized.put(slot, entry);
+        }
+        table = resized;
+        old.free();
+    }
+
+    /**
+     * 長さと文字列を追記し、その位置を返す。
+     */
+    private long append(byte[] bytes) {
+        int length = 4 + bytes.length;
+        if (length > CHUNK_SIZE) {
+            throw new JenaException("Node is too large: " + bytes.length + " bytes");
+        }
+        if (chunkPosition + length > CHUNK_SIZE) {
+            ByteBuffer[] extended = Arrays.copyOf(chunks, chunks.length + 1);
+            extended[chunks.length] = newChunk(chunks.length);
+            chunks = extended;
+            chunkPosition = 0;
+        }
+        int index = chunks.length - 1;
+        ByteBuffer chunk = chunks[index].duplicate();
+        chunk.position(chunkPosition);
+        chunk.putInt(bytes.length);
+        chunk.put(bytes);
+        long location = ((long) index << 32) | chunkPosition;
+        chunkPosition += length;
+        return location;
+    }
+
+    private ByteBuffer newChunk(int index) {
+        if (channel == null) {
+            return ByteBuffer.allocateDirect(CHUNK_SIZE);
+        }
+        try {
+            return channel.map(FileChannel.MapMode.READ_WRITE, (long) index * CHUNK_SIZE, CHUNK_SIZE);
+        } catch (IOException e) {
+            throw new JenaException(e);
+        }
+    }
+
+    private byte[] read(long location) {
+        ByteBuffer chunk = chunks[(int) (location >>> 32)].duplicate();
+        chunk.position((int) location);
+        byte[] bytes = new byte[chunk.getInt()];
+        chunk.get(bytes);
+        return bytes;
+    }
+
+    private boolean equalsAt(long location, byte[] bytes) {
+        ByteBuffer chunk = chunks[(int) (location >>> 32)];
+        int position = (int) location;
+        if (chunk.getInt(position) != bytes.length) {
+            return false;
+        }
+        for (int i = 0; i < bytes.length; i++) {
+            if (chunk.get(position + 4 + i) != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * ダイレクトバッファとメモリマップを、GCを待たずに解放する。
+     * Java 9以降はsun.misc.Unsafe.invokeCleaner、Java 8まではバッファのcleanerを使う。
+     * どちらも使えない実行環境では、これまでどおりGCに任せる。
+     */
+    private static void unmap(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect()) {
+            return;
+        }
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner;
+            try {
+                invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            } catch (NoSuchMethodException e) {
+                invokeCleaner = null;
+            }
+            if (invokeCleaner != null) {
+                Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+                theUnsafe.setAccessible(true);
+                invokeCleaner.invoke(theUnsafe.get(null), buffer);
+                return;
+            }
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buffer);
+            if (cleaner != null) {
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        } catch (Exception e) {
+            // 解放できなければGCに任せる
+        }
+    }
+
+    /**
+     * FNV-1aのハッシュ値
+     */
+    private static int hash(byte[] bytes) {
+        int h = 0x811C9DC5;
+        for (byte b : bytes) {
+            h ^= b & 0xFF;
+            h *= 0x01000193;
+        }
+        return h;
+    }
+
+    /**
+     * 空白ノードはN-Triples形式にするとラベルが変わるので、元のラベルのまま書く。
+     */
+    private static byte[] toBytes(Node node) {
+        String s = node.isBlank() ? "_:" + node.getBlankNodeLabel() : NodeFmtLib.str(node);
+        return s.getBytes(UTF8);
+    }
+
+    private static Node fromBytes(byte[] bytes) {
+        String s = new String(bytes, UTF8);
+        if (s.startsWith("_:")) {
+            return NodeFactory.createAnon(new AnonId(s.substring(2)));
+        }
+        return NodeFactoryExtra.parseNode(s);
+    }
+
+    /**
+     * ダイレクトバッファを並べたlongの配列。1つのダイレクトバッファの上限(2GB)を超えて広げられる。
+     */
+    private static final class LongArray {
+        /** 1ページのlongの数の2を底とする対数。1ページ8MB */
+        private static final int PAGE_SHIFT = 20;
+        private static final long PAGE_MASK = (1L << PAGE_SHIFT) - 1;
+
+        final long capacity;
+        private final ByteBuffer[] buffers;
+        private final LongBuffer[] pages;
+
+        LongArray(long capacity) {
+            this.capacity = capacity;
+            int count = (int) ((capacity + PAGE_MASK) >>> PAGE_SHIFT);
+            buffers = new ByteBuffer[count];
+            pages = new LongBuffer[count];
+            for (int i = 0; i < count; i++) {
+                long longs = Math.min(1L << PAGE_SHIFT, capacity - ((long) i << PAGE_SHIFT));
+                buffers[i] = ByteBuffer.allocateDirect((int) longs * 8).order(ByteOrder.nativeOrder());
+                pages[i] = buffers[i].asLongBuffer();
+            }
+        }
+
+        long get(long index) {
+            return pages[(int) (index >>> PAGE_SHIFT)].get((int) (index & PAGE_MASK));
+        }
+
+        void put(long index, long value) {
+            pages[(int) (index >>> PAGE_SHIFT)].put((int) (index & PAGE_MASK), value);
+        }
+
+        /**
+         * 先頭から同じ値を持つ、大きさnewCapacityの配列を返す。
+         * decodeは同期せずに読むので、読み終わったかどうか分からないこの配列は解放せず、GCに任せる。
+         */
+        LongArray grow(long newCapacity) {
+            LongArray grown = new LongArray(newCapacity);
+            for (long i = 0; i < capacity; i++) {
+                grown.put(i, get(i));
+            }
+            return grown;
+        }
+
+        void free() {
+            for (ByteBuffer buffer : buffers) {
+                unmap(buffer);
+            }
+        }
+    }
+
+    /**
+     * decodeのキャッシュの要素
+     */
+    private static class Entry {
+        final long id;
+        final Node node;
+
+        Entry(long id, Node node) {
+            this.id = id;
+            this.node = node;
+        }
+    }
+}
@@ -0,0 +1,527 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.sparqlbook.update;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+import org.apache.jena.atlas.lib.Bytes;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.sparql.core.DatasetGraph;
+import com.hp.hpl.jena.sparql.core.Quad;
+import com.hp.hpl.jena.tdb.base.record.Record;
+import com.hp.hpl.jena.tdb.index.RangeIndex;
+import com.hp.hpl.jena.tdb.index.TupleIndex;
+import com.hp.hpl.jena.tdb.index.TupleIndexRecord;
+import com.hp.hpl.jena.tdb.nodetable.NodeTable;
+import com.hp.hpl.jena.tdb.nodetable.NodeTupleTable;
+import com.hp.hpl.jena.tdb.store.DatasetGraphTDB;
+import com.hp.hpl.jena.tdb.store.NodeId;
+import com.hp.hpl.jena.tdb.transaction.DatasetGraphTransaction;
+
+/**
+ * 1つのパターンに一致するクワッドを、1つの成分の値ごとに並列に数える。
+ *
+ * 「SELECT ?p (COUNT(*) AS ?count) WHERE { ?s ?p ?o . } GROUP BY ?p」(chapter6/6-7.rq)や
+ * 「GRAPH ?g { ?s ?p ?o . } GROUP BY ?g」(chapter6/6-5.rq)のような、全体をスキャンする集計に使う。
+ * DatasetGraphDictであれば、索引の範囲を分割してForkJoinPoolで数える。
+ * 各タスクはノードではなくIDをキーにしたlongのハッシュ表で数え、最後に併合してからノードに戻す。
+ * TDBであれば、選んだ索引(SPO、POS、GSPOなど)のB+木を、パターンで指定されていない先頭の成分のNodeIdの範囲で分割し、
+ * ノードに戻さずにNodeIdのまま数える。デフォルトグラフのGROUP BY ?pも主語の範囲ごとに並列に数えられる。
+ * それ以外のデータセットはスキャンを分割できないので、名前付きグラフごとのタスクに分けて数える。
+ * FILTER、HAVING、COUNT(DISTINCT ...)は扱わない。
+ * TDBの内部API(tdb.index、tdb.nodetable)を使うので、このクラスはJena 2.11.1 / TDB 1.0.1に合わせている。
+ * TDB 1.1(Jena 2.12)以降ではこれらのパッケージの構成が変わっているため、そのままではコンパイルできない。
+ *
+ * <pre>
+ * Map&lt;Node, Long&gt; counts = new ParallelGroupCount().count(graphStore, Quad.defaultGraphIRI, null, null, null,
+ *         ParallelGroupCount.PREDICATE);
+ * </pre>
+ */
+public class ParallelGroupCount {
+
+    public static final int GRAPH = QuadIndex.G;
+    public static final int SUBJECT = QuadIndex.S;
+    public static final int PREDICATE = QuadIndex.P;
+    public static final int OBJECT = QuadIndex.O;
+
+    /** これ以下の件数の範囲は分割せずに数える */
+    private static final int THRESHOLD = 1 << 16;
+
+    /** TDBの索引をNodeIdの範囲に分けるときの、並列度あたりの分割数 */
+    private static final int SPLITS_PER_THREAD = 4;
+
+    private final ForkJoinPool pool;
+
+    /** closeでpoolを止めるか */
+    private final boolean ownsPool;
+
+    /**
+     * CPUのコア数だけスレッドを使うParallelGroupCountを生成する。使い終わったらcloseを呼ぶ。
+     */
+    public ParallelGroupCount() {
+        this(new ForkJoinPool(), true);
+    }
+
+    /**
+     * @param pool
+     *            集計に使うForkJoinPool。closeでは止めない
+     */
+    public ParallelGroupCount(ForkJoinPool pool) {
+        this(pool, false);
+    }
+
+    private ParallelGroupCount(ForkJoinPool pool, boolean ownsPool) {
+        this.pool = pool;
+        this.ownsPool = ownsPool;
+    }
+
+    /**
+     * 引数なしのコンストラクターで作ったForkJoinPoolを止める。渡されたForkJoinPoolは止めない。
+     */
+    public void close() {
+        if (ownsPool) {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * パターンに一致するクワッドを、groupByの成分の値ごとに数える。
+     *
+     * @param dsg
+     *            対象のデータセット
+     * @param g
+     *            グラフ名。nullまたはNode.ANYの場合は全ての名前付きグラフ(GRAPH ?g)
+     * @param s
+     *            主語。nullまたはNode.ANYの場合は指定しない
+     * @param p
+     *            述語。nullまたはNode.ANYの場合は指定しない
+     * @param o
+     *            目的語。nullまたはNode.ANYの場合は指定しない
+     * @param groupBy
+     *            GRAPH、SUBJECT、PREDICATE、OBJECTのいずれか
+     * @return 値ごとの件数
+     */
+    public Map<Node, Long> count(DatasetGraph dsg, Node g, Node s, Node p, Node o, int groupBy) {
+        boolean named = g == null || !g.isConcrete();
+        DatasetGraph base = GraphLevelUpdateEngine.unwrap(dsg);
+        if (base instanceof DatasetGraphDict) {
+            return countDict((DatasetGraphDict) base, named ? Node.ANY : g, s, p, o, groupBy, named);
+        }
+        if (base instanceof DatasetGraphTransaction) {
+            base = ((DatasetGraphTransaction) base).get();
+        }
+        if (base instanceof DatasetGraphTDB && (named || !Quad.isUnionGraph(g))) {
+            Map<Node, Long> result = countTdb((DatasetGraphTDB) base, named ? Node.ANY : g, s, p, o, groupBy);
+            if (result != null) {
+                return result;
+            }
+        }
+        List<Node> graphs = new ArrayList<Node>();
+        if (named) {
+            Iterator<Node> it = dsg.listGraphNodes();
+            while (it.hasNext()) {
+                graphs.add(it.next());
+            }
+        } else {
+            graphs.add(g);
+        }
+        final List<GraphTask> tasks = new ArrayList<GraphTask>();
+        for (Node graph : graphs) {
+            tasks.add(new GraphTask(dsg, graph, s, p, o, groupBy));
+        }
+        return pool.invoke(new RecursiveTask<Map<Node, Long>>() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected Map<Node, Long> compute() {
+                Map<Node, Long> result = new HashMap<Node, Long>();
+                for (GraphTask task : ForkJoinTask.invokeAll(tasks)) {
+                    for (Map.Entry<Node, Long> e : task.join().entrySet()) {
+                        Long count = result.get(e.getKey());
+                        result.put(e.getKey(), count == null ? e.getValue() : count + e.getValue());
+                    }
+                }
+                return result;
+            }
+        });
+    }
+
+    private Map<Node, Long> countDict(DatasetGraphDict dsg, Node g, Node s, Node p, Node o, int groupBy,
+            boolean named) {
+        Map<Node, Long> result = new HashMap<Node, Long>();
+        QuadIndex.Range range = dsg.range(g, s, p, o);
+        if (range == null) {
+            return result;
+        }
+        long excluded = named ? dsg.defaultGraphId() : QuadIndex.ANY;
+        LongCounter counts = pool.invoke(new RangeTask(range, range.from, range.to, groupBy, excluded));
+        NodeDictionary dictionary = dsg.getDictionary();
+        for (int i = 0; i < counts.keys.length; i++) {
+            if (counts.keys[i] != LongCounter.EMPTY) {
+                result.put(dictionary.decode(counts.keys[i]), counts.counts[i]);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * TDBの索引をNodeIdの範囲に分けて数える。
+     * RangeIndexを持たない索引しかない場合と、デフォルトグラフをグラフ名で数える場合はnullを返す。
+     * デフォルトグラフはトリプルの表、名前付きグラフはクワッドの表にある。
+     */
+    private Map<Node, Long> countTdb(DatasetGraphTDB dsg, Node g, Node s, Node p, Node o, int groupBy) {
+        boolean triples = Quad.isDefaultGraph(g);
+        NodeTupleTable table = triples ? dsg.getTripleTable().getNodeTupleTable() : dsg.getQuadTable()
+                .getNodeTupleTable();
+        String components = triples ? "SPO" : "GSPO";
+        Node[] pattern = triples ? new Node[] { s, p, o } : new Node[] { g, s, p, o };
+        NodeTable nodeTable = table.getNodeTable();
+        Map<Node, Long> result = new HashMap<Node, Long>();
+        long[] ids = new long[pattern.length];
+        for (int i = 0; i < pattern.length; i++) {
+            if (pattern[i] == null || !pattern[i].isConcrete()) {
+                ids[i] = QuadIndex.ANY;
+                continue;
+            }
+            NodeId id = nodeTable.getNodeIdForNode(pattern[i]);
+            if (NodeId.isDoesNotExist(id)) {
+                return result;
+            }
+            ids[i] = id.getId();
+        }
+
+        TupleIndexRecord index = null;
+        int[] columns = null;
+        int prefix = -1;
+        for (TupleIndex candidate : table.getTupleTable().getIndexes()) {
+            if (!(candidate instanceof TupleIndexRecord)) {
+                continue;
+            }
+            int[] order = new int[pattern.length];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = components.indexOf(candidate.getName().charAt(i));
+            }
+            int k = 0;
+            while (k < order.length && ids[order[k]] != QuadIndex.ANY) {
+                k++;
+            }
+            if (k > prefix) {
+                index = (TupleIndexRecord) candidate;
+                columns = order;
+                prefix = k;
+            }
+        }
+        if (index == null) {
+            return null;
+        }
+
+        long[] key = new long[columns.length];
+        int groupColumn = -1;
+        for (int i = 0; i < columns.length; i++) {
+            key[i] = ids[columns[i]];
+            if ("GSPO".charAt(groupBy) == components.charAt(columns[i])) {
+                groupColumn = i;
+            }
+        }
+        if (groupColumn < 0) {
+            return null;
+        }
+        List<RecordTask> tasks = new ArrayList<RecordTask>();
+        RangeIndex rangeIndex = index.getRangeIndex();
+        if (prefix == columns.length) {
+            tasks.add(new RecordTask(rangeIndex, key, prefix, 0, QuadIndex.ANY, groupColumn));
+        } else {
+            long limit = nodeTable.allocOffset().getId();
+            int splits = Math.max(1, pool.getParallelism() * SPLITS_PER_THREAD);
+            for (int i = 0; i < splits; i++) {
+                long low = limit / splits * i;
+                long high = i == splits - 1 ? QuadIndex.ANY : limit / splits * (i + 1);
+                tasks.add(new RecordTask(rangeIndex, key, prefix, low, high, groupColumn));
+            }
+        }
+        LongCounter counts = pool.invoke(new MergeTask(tasks));
+        for (int i = 0; i < counts.keys.length; i++) {
+            if (counts.keys[i] != LongCounter.EMPTY) {
+                result.put(nodeTable.getNodeForNodeId(NodeId.create(counts.keys[i])), counts.counts[i]);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * RecordTaskをまとめて実行し、結果を併合するタスク
+     */
+    private static class MergeTask extends RecursiveTask<LongCounter> {
+        private static final long serialVersionUID = 1L;
+
+        private final List<RecordTask> tasks;
+
+        MergeTask(List<RecordTask> tasks) {
+            this.tasks = tasks;
+        }
+
+        @Override
+        protected LongCounter compute() {
+            LongCounter result = new LongCounter();
+            for (RecordTask task : ForkJoinTask.invokeAll(tasks)) {
+                result.addAll(task.join());
+            }
+            return result;
+        }
+    }
+
+    /**
+     * TDBの索引のうち、先頭prefix個の成分がkeyと一致し、次の成分がlowからhigh未満の範囲を数えるタスク。
+     * highがQuadIndex.ANYなら、次の成分の上限を設けない(インラインのリテラルのNodeIdも含む)。
+     * 先頭prefix個の成分が一致しなくなった時点で読むのをやめる。
+     */
+    private static class RecordTask extends RecursiveTask<LongCounter> {
+        private static final long serialVersionUID = 1L;
+
+        private final RangeIndex index;
+        private final long[] key;
+        private final int prefix;
+        private final long low;
+        private final long high;
+        private final int groupColumn;
+
+        RecordTask(RangeIndex index, long[] key, int prefix, long low, long high, int groupColumn) {
+            this.index = index;
+            this.key = key;
+            this.prefix = prefix;
+            this.low = low;
+            this.high = high;
+            this.groupColumn = groupColumn;
+        }
+
+        @Override
+        protected LongCounter compute() {
+            LongCounter counts = new LongCounter();
+            Record max = prefix == key.length || high == QuadIndex.ANY ? null : record(high);
+            Iterator<Record> it = index.iterator(record(low), max);
+            while (it.hasNext()) {
+                byte[] bytes = it.next().getKey();
+                if (!matches(bytes, 0, prefix)) {
+                    break;
+                }
+                if (matches(bytes, prefix, key.length)) {
+                    counts.add(Bytes.getLong(bytes, 8 * groupColumn), 1);
+                }
+            }
+            return counts;
+        }
+
+        /**
+         * 先頭prefix個の成分をkeyにし、次の成分をnext、残りを0にしたレコードを返す。
+         */
+        private Record record(long next) {
+            byte[] bytes = new byte[8 * key.length];
+            for (int i = 0; i < key.length; i++) {
+                Bytes.setLong(i < prefix ? key[i] : i == prefix ? next : 0, bytes, 8 * i);
+            }
+            return index.getRecordFactory().create(bytes);
+        }
+
+        /**
+         * from番目からto番目の前までの成分が、keyで指定した値と一致するか
+         */
+        private boolean matches(byte[] bytes, int from, int to) {
+            for (int i = from; i < to; i++) {
+                if (key[i] != QuadIndex.ANY && Bytes.getLong(bytes, 8 * i) != key[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * 索引の範囲を半分ずつに分けて数えるタスク
+     */
+    private static class RangeTask extends RecursiveTask<LongCounter> {
+        private static final long serialVersionUID = 1L;
+
+        private final QuadIndex.Range range;
+        private final int from;
+        private final int to;
+        private final int groupBy;
+
+        /** 数えないグラフのID。GRAPH ?gではデフォルトグラフを除く */
+        private final long excludedGraph;
+
+        RangeTask(QuadIndex.Range range, int from, int to, int groupBy, long excludedGraph) {
+            this.range = range;
+            this.from = from;
+            this.to = to;
+            this.groupBy = groupBy;
+            this.excludedGraph = excludedGraph;
+        }
+
+        @Override
+        protected LongCounter compute() {
+            if (to - from <= THRESHOLD) {
+                LongCounter counts = new LongCounter();
+                for (int pos = from; pos < to; pos++) {
+                    if (range.matches(pos) && range.get(pos, QuadIndex.G) != excludedGraph) {
+                        counts.add(range.get(pos, groupBy), 1);
+                    }
+                }
+                return counts;
+            }
+            int mid = (from + to) >>> 1;
+            RangeTask left = new RangeTask(range, from, mid, groupBy, excludedGraph);
+            left.fork();
+            LongCounter right = new RangeTask(range, mid, to, groupBy, excludedGraph).compute();
+            LongCounter joined = left.join();
+            if (joined.size < right.size) {
+                right.addAll(joined);
+                return right;
+            }
+            joined.addAll(right);
+            return joined;
+        }
+    }
+
+    /**
+     * 1つのグラフをスキャンして数えるタスク
+     */
+    private static class GraphTask extends RecursiveTask<Map<Node, Long>> {
+        private static final long serialVersionUID = 1L;
+
+        private final DatasetGraph dsg;
+        private final Node g;
+        private final Node s;
+        private final Node p;
+        private final Node o;
+        private final int groupBy;
+
+        GraphTask(DatasetGraph dsg, Node g, Node s, Node p, Node o, int groupBy) {
+            this.dsg = dsg;
+            this.g = g;
+            this.s = s;
+            this.p = p;
+            this.o = o;
+            this.groupBy = groupBy;
+        }
+
+        @Override
+        protected Map<Node, Long> compute() {
+            Map<Node, long[]> counts = new HashMap<Node, long[]>();
+            Iterator<Quad> it = dsg.find(g, any(s), any(p), any(o));
+            while (it.hasNext()) {
+                Node key = component(it.next(), groupBy);
+                long[] count = counts.get(key);
+                if (count == null) {
+                    counts.put(key, new long[] { 1 });
+                } else {
+                    count[0]++;
+                }
+            }
+            Map<Node, Long> result = new HashMap<Node, Long>();
+            for (Map.Entry<Node, long[]> e : counts.entrySet()) {
+                result.put(e.getKey(), e.getValue()[0]);
+            }
+            return result;
+        }
+
+        private static Node any(Node node) {
+            return node == null ? Node.ANY : node;
+        }
+
+        private static Node component(Quad quad, int component) {
+            switch (component) {
+            case QuadIndex.G:
+                return quad.getGraph();
+            case QuadIndex.S:
+                return quad.getSubject();
+            case QuadIndex.P:
+                return quad.getPredicate();
+            default:
+                return quad.getObject();
+            }
+        }
+    }
+
+    /**
+     * longのキーごとにlongの件数を持つ開番地法のハッシュ表
+     */
+    private static class LongCounter {
+        static final long EMPTY = -1;
+
+        long[] keys = new long[1024];
+        long[] counts = new long[1024];
+        int size = 0;
+
+        LongCounter() {
+            Arrays.fill(keys, EMPTY);
+        }
+
+        void add(long key, long n) {
+            int mask = keys.length - 1;
+            int slot = hash(key) & mask;
+            while (keys[slot] != EMPTY && keys[slot] != key) {
+                slot = (slot + 1) & mask;
+            }
+            if (keys[slot] == key) {
+                counts[slot] += n;
+                return;
+            }
+            keys[slot] = key;
+            counts[slot] = n;
+            if (4 * ++size > 3 * keys.length) {
+                resize();
+            }
+        }
+
+        void addAll(LongCounter other) {
+            for (int i = 0; i < other.keys.length; i++) {
+                if (other.keys[i] != EMPTY) {
+                    add(other.keys[i], other.counts[i]);
+                }
+            }
+        }
+
+        private void resize() {
+            long[] oldKeys = keys;
+            long[] oldCounts = counts;
+            keys = new long[oldKeys.length * 2];
+            counts = new long[oldKeys.length * 2];
+            Arrays.fill(keys, EMPTY);
+            size = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != EMPTY) {
+                    add(oldKeys[i], oldCounts[i]);
+                }
+            }
+        }
+
+        private static int hash(long key) {
+            return (int) ((key * 0x9E3779B97F4A7C15L) >>> 32);
+        }
+    }
+}
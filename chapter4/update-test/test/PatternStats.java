@@ -0,0 +1,158 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.sparqlbook.update;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.sparql.core.DatasetGraph;
+import com.hp.hpl.jena.sparql.core.Quad;
+
+/**
+ * グラフごと・述語ごとのトリプル数と、異なる主語・目的語の数を集計した統計情報
+ *
+ * トリプルパターンの結果件数の見積もりに使う。集計はデータセットを1回走査して行う。
+ */
+public class PatternStats {
+
+    /** 1つのグラフの統計情報 */
+    private static class GraphStats {
+        long total;
+        long subjects;
+        long objects;
+        final Map<Node, long[]> predicates = new HashMap<Node, long[]>();
+    }
+
+    private static final int COUNT = 0;
+    private static final int SUBJECTS = 1;
+    private static final int OBJECTS = 2;
+
+    private final Map<Node, GraphStats> graphs = new HashMap<Node, GraphStats>();
+
+    private PatternStats() {
+    }
+
+    /**
+     * データセットを走査して統計情報を集計する。
+     *
+     * @param dsg
+     *            集計対象のデータセット
+     * @return 統計情報
+     */
+    public static PatternStats gather(DatasetGraph dsg) {
+        PatternStats stats = new PatternStats();
+        stats.gatherGraph(Quad.defaultGraphIRI, dsg.find(Quad.defaultGraphIRI, Node.ANY, Node.ANY, Node.ANY));
+        Iterator<Node> names = dsg.listGraphNodes();
+        while (names.hasNext()) {
+            Node name = names.next();
+            stats.gatherGraph(name, dsg.find(name, Node.ANY, Node.ANY, Node.ANY));
+        }
+        return stats;
+    }
+
+    private void gatherGraph(Node name, Iterator<Quad> quads) {
+        GraphStats g = new GraphStats();
+        Set<Node> subjects = new HashSet<Node>();
+        Set<Node> objects = new HashSet<Node>();
+        Map<Node, Set<Node>> predSubjects = new HashMap<Node, Set<Node>>();
+        Map<Node, Set<Node>> predObjects = new HashMap<Node, Set<Node>>();
+        while (quads.hasNext()) {
+            Quad quad = quads.next();
+            Node p = quad.getPredicate();
+            long[] counts = g.predicates.get(p);
+            if (counts == null) {
+                counts = new long[3];
+                g.predicates.put(p, counts);
+                predSubjects.put(p, new HashSet<Node>());
+                predObjects.put(p, new HashSet<Node>());
+            }
+            counts[COUNT]++;
+            predSubjects.get(p).add(quad.getSubject());
+            predObjects.get(p).add(quad.getObject());
+            subjects.add(quad.getSubject());
+            objects.add(quad.getObject());
+            g.total++;
+        }
+        for (Map.Entry<Node, long[]> e : g.predicates.entrySet()) {
+            e.getValue()[SUBJECTS] = predSubjects.get(e.getKey()).size();
+            e.getValue()[OBJECTS] = predObjects.get(e.getKey()).size();
+        }
+        g.subjects = subjects.size();
+        g.objects = objects.size();
+        graphs.put(name, g);
+    }
+
+    /**
+     * トリプルパターンの結果件数を見積もる。
+     *
+     * @param graph
+     *            対象のグラフ名。変数の場合は全てのグラフを合計する
+     * @param triple
+     *            トリプルパターン
+     * @param subjectBound
+     *            主語が(定数または先に評価したパターンによって)束縛されていればtrue
+     * @param objectBound
+     *            目的語が束縛されていればtrue
+     * @return 見積もった件数
+     */
+    public double estimate(Node graph, Triple triple, boolean subjectBound, boolean objectBound) {
+        if (graph == null || !graph.isConcrete()) {
+            double sum = 0;
+            for (Node name : graphs.keySet()) {
+                if (!Quad.isDefaultGraph(name)) {
+                    sum += estimate(name, triple, subjectBound, objectBound);
+                }
+            }
+            return sum;
+        }
+        GraphStats g = graphs.get(Quad.isDefaultGraph(graph) ? Quad.defaultGraphIRI : graph);
+        if (g == null) {
+            return 0;
+        }
+        double count;
+        double subjects;
+        double objects;
+        Node p = triple.getPredicate();
+        if (p.isConcrete()) {
+            long[] counts = g.predicates.get(p);
+            if (counts == null) {
+                return 0;
+            }
+            count = counts[COUNT];
+            subjects = counts[SUBJECTS];
+            objects = counts[OBJECTS];
+        } else {
+            count = g.total;
+            subjects = g.subjects;
+            objects = g.objects;
+        }
+        if (subjectBound) {
+            count /= Math.max(1, subjects);
+        }
+        if (objectBound) {
+            count /= Math.max(1, objects);
+        }
+        return count;
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.sparqlbook.update;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.NodeFactory;
+import com.hp.hpl.jena.query.QuerySolution;
+import com.hp.hpl.jena.query.QuerySolutionMap;
+import com.hp.hpl.jena.shared.Lock;
+import com.hp.hpl.jena.sparql.algebra.Algebra;
+import com.hp.hpl.jena.sparql.algebra.Op;
+import com.hp.hpl.jena.sparql.algebra.op.OpGraph;
+import com.hp.hpl.jena.sparql.core.Quad;
+import com.hp.hpl.jena.sparql.core.Substitute;
+import com.hp.hpl.jena.sparql.engine.QueryIterator;
+import com.hp.hpl.jena.sparql.engine.binding.Binding;
+import com.hp.hpl.jena.sparql.engine.binding.BindingFactory;
+import com.hp.hpl.jena.sparql.engine.binding.BindingUtils;
+import com.hp.hpl.jena.sparql.modify.TemplateLib;
+import com.hp.hpl.jena.sparql.modify.request.UpdateModify;
+import com.hp.hpl.jena.update.GraphStore;
+import com.hp.hpl.jena.update.Update;
+import com.hp.hpl.jena.update.UpdateAction;
+import com.hp.hpl.jena.update.UpdateFactory;
+import com.hp.hpl.jena.update.UpdateRequest;
+
+/**
+ * 一度だけパースして繰り返し実行できる更新テンプレート
+ *
+ * テンプレート中の変数(例えば?author)には実行ごとに値を束縛できる。
+ * WITH句のグラフも実行ごとに差し替えられる。どちらの場合もテンプレートは再パースしない。
+ * DELETE/INSERTのWHERE句は生成時に1度だけ代数に変換・最適化しておき、実行時は変数の値を代入して評価するだけにする。
+ * USINGのあるDELETE/INSERTとその他の更新は、実行のたびにUpdateActionで実行する。
+ *
+ * <pre>
+ * PreparedUpdate update = new PreparedUpdate("WITH &lt;http://sparqlbook.jp/graph1&gt; DELETE { ... } WHERE { ... }");
+ * QuerySolutionMap binding = new QuerySolutionMap();
+ * binding.add("author", ResourceFactory.createResource("http://sparqlbook.jp/yoko"));
+ * update.execute(graphStore, "http://sparqlbook.jp/graph2", binding);
+ * </pre>
+ */
+public class PreparedUpdate {
+
+    private final UpdateRequest request;
+
+    /** 操作ごとのコンパイル済みのWHERE句。事前に変換しない操作はnull */
+    private final List<Op> wheres = new ArrayList<Op>();
+
+    /** 並べ替えたWHERE句を書かれた順のまま評価するか */
+    private final boolean keepOrder;
+
+    /**
+     * @param template
+     *            更新のテンプレート
+     */
+    public PreparedUpdate(String template) {
+        this(UpdateFactory.create(template));
+    }
+
+    /**
+     * WHERE句をUpdateOptimizerで並べ替えてから準備する。
+     * 事前に変換したWHERE句は、並べ替えた順のまま評価する。
+     *
+     * @param template
+     *            更新のテンプレート
+     * @param stats
+     *            並べ替えに使う統計情報
+     */
+    public PreparedUpdate(String template, PatternStats stats) {
+        this(new UpdateOptimizer(stats).optimize(UpdateFactory.create(template)), true);
+    }
+
+    /**
+     * @param request
+     *            パース済みの更新
+     */
+    public PreparedUpdate(UpdateRequest request) {
+        this(request, false);
+    }
+
+    private PreparedUpdate(UpdateRequest request, boolean keepOrder) {
+        this.request = request;
+        this.keepOrder = keepOrder;
+        for (Update update : request.getOperations()) {
+            wheres.add(compilable(update) ? Algebra.optimize(Algebra.compile(((UpdateModify) update)
+                    .getWherePattern())) : null);
+        }
+    }
+
+    /**
+     * テンプレートをそのまま実行する。
+     *
+     * @param graphStore
+     *            更新対象のGraphStore
+     * @param binding
+     *            変数に束縛する値。nullの場合は束縛しない
+     */
+    public void execute(GraphStore graphStore, QuerySolution binding) {
+        execute(graphStore, (Node) null, binding);
+    }
+
+    /**
+     * WITH句のグラフを差し替えて実行する。
+     *
+     * @param graphStore
+     *            更新対象のGraphStore
+     * @param withIri
+     *            WITH句に指定するグラフのIRI
+     * @param binding
+     *            変数に束縛する値。nullの場合は束縛しない
+     */
+    public void execute(GraphStore graphStore, String withIri, QuerySolution binding) {
+        execute(graphStore, NodeFactory.createURI(withIri), binding);
+    }
+
+    private void execute(GraphStore graphStore, Node with, QuerySolution solution) {
+        Binding binding = solution == null ? BindingFactory.binding() : BindingUtils.asBinding(solution);
+        List<Update> operations = request.getOperations();
+        for (int i = 0; i < operations.size(); i++) {
+            Update update = operations.get(i);
+            Op where = wheres.get(i);
+            if (where != null) {
+                UpdateModify modify = (UpdateModify) update;
+                execute(graphStore, modify, where, with != null ? with : modify.getWithIRI(), binding, keepOrder);
+                continue;
+            }
+            if (with != null && update instanceof UpdateModify) {
+                UpdateModify original = (UpdateModify) update;
+                update = Updates.copyModify(original, with, original.getWherePattern());
+            }
+            UpdateRequest single = new UpdateRequest();
+            single.setPrefixMapping(request.getPrefixMapping());
+            single.add(update);
+            UpdateAction.execute(single, graphStore, solution == null ? new QuerySolutionMap() : solution);
+        }
+    }
+
+    /**
+     * コンパイル済みのWHERE句に変数の値を代入して評価し、全ての解でDELETEしてからINSERTする。
+     * WITH句のグラフはWHERE句をGRAPHで囲んで評価し、テンプレートの既定のグラフにする。
+     */
+    private static void execute(GraphStore graphStore, UpdateModify modify, Op where, Node with, Binding binding,
+            boolean keepOrder) {
+        Op op = binding.isEmpty() ? where : Substitute.substitute(where, binding);
+        if (with != null) {
+            op = new OpGraph(with, op);
+        }
+        graphStore.getLock().enterCriticalSection(Lock.WRITE);
+        try {
+            List<Binding> rows = new ArrayList<Binding>();
+            QueryIterator it = keepOrder ? UpdateOptimizer.exec(op, graphStore) : Algebra.exec(op, graphStore);
+            try {
+                while (it.hasNext()) {
+                    rows.add(Algebra.merge(binding, it.nextBinding()));
+                }
+            } finally {
+                it.close();
+            }
+            if (modify.hasDeleteClause()) {
+                for (Quad quad : collect(TemplateLib.template(modify.getDeleteQuads(), with, rows.iterator()))) {
+                    graphStore.delete(quad);
+                }
+            }
+            if (modify.hasInsertClause()) {
+                for (Quad quad : collect(TemplateLib.template(modify.getInsertQuads(), with, rows.iterator()))) {
+                    graphStore.add(quad);
+                }
+            }
+        } finally {
+            graphStore.getLock().leaveCriticalSection();
+        }
+    }
+
+    /**
+     * USINGはデータセットを組み替えるので、事前に変換するのはUSINGのないDELETE/INSERTだけにする。
+     */
+    private static boolean compilable(Update update) {
+        if (!(update instanceof UpdateModify)) {
+            return false;
+        }
+        UpdateModify modify = (UpdateModify) update;
+        return modify.getUsing().isEmpty() && modify.getUsingNamed().isEmpty();
+    }
+
+    private static List<Quad> collect(Iterator<Quad> it) {
+        List<Quad> quads = new ArrayList<Quad>();
+        while (it.hasNext()) {
+            quads.add(it.next());
+        }
+        return quads;
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.sparqlbook.update;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.Iterator;
+
+import org.apache.jena.riot.out.NodeFmtLib;
+
+import com.hp.hpl.jena.shared.JenaException;
+import com.hp.hpl.jena.sparql.core.DatasetGraph;
+import com.hp.hpl.jena.sparql.core.Quad;
+
+/**
+ * DatasetGraphの内容をN-Quads形式で逐次出力する。
+ *
+ * SSE.writeと違ってデータセット全体を一度に組み立てないので、クワッド数に関わらずメモリ使用量は一定である。
+ * diffは2つのDatasetGraphの差分だけを「+ 」(追加)、「- 」(削除)を先頭に付けたN-Quadsで出力する。
+ */
+public class QuadDump {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private QuadDump() {
+    }
+
+    /**
+     * 全てのクワッドをN-Quads形式で出力する。出力ストリームは閉じない。
+     *
+     * @param dsg
+     *            出力するDatasetGraph
+     * @param out
+     *            出力先
+     */
+    public static void write(DatasetGraph dsg, OutputStream out) {
+        write(dsg, Channels.newChannel(out));
+    }
+
+    /**
+     * 全てのクワッドをN-Quads形式で出力する。チャネルは閉じない。
+     *
+     * @param dsg
+     *            出力するDatasetGraph
+     * @param channel
+     *            出力先
+     */
+    public static void write(DatasetGraph dsg, WritableByteChannel channel) {
+        Writer writer = writer(channel);
+        try {
+            Iterator<Quad> iter = dsg.find();
+            while (iter.hasNext()) {
+                writeQuad(writer, null, iter.next());
+            }
+            writer.flush();
+        } catch (IOException e) {
+            throw new JenaException(e);
+        }
+    }
+
+    /**
+     * beforeとafterの差分だけを出力する。出力ストリームは閉じない。
+     *
+     * @param before
+     *            更新前のDatasetGraph
+     * @param after
+     *            更新後のDatasetGraph
+     * @param out
+     *            出力先
+     */
+    public static void diff(DatasetGraph before, DatasetGraph after, OutputStream out) {
+        Writer writer = writer(Channels.newChannel(out));
+        try {
+            Iterator<Quad> iter = before.find();
+            while (iter.hasNext()) {
+                Quad quad = iter.next();
+                if (!after.contains(quad)) {
+                    writeQuad(writer, "- ", quad);
+                }
+            }
+            iter = after.find();
+            while (iter.hasNext()) {
+                Quad quad = iter.next();
+                if (!before.contains(quad)) {
+                    writeQuad(writer, "+ ", quad);
+                }
+            }
+            writer.flush();
+        } catch (IOException e) {
+            throw new JenaException(e);
+        }
+    }
+
+    /**
+     * diffの比較元にするため、srcの全てのクワッドをdestにコピーする。
+     * destにディスク上のTDBを使えばヒープを使わずに更新前の状態を残せる。
+     *
+     * @param src
+     *            コピー元
+     * @param dest
+     *            コピー先
+     */
+    public static void copy(DatasetGraph src, DatasetGraph dest) {
+        Iterator<Quad> iter = src.find();
+        while (iter.hasNext()) {
+            dest.add(iter.next());
+        }
+    }
+
+    private static Writer writer(WritableByteChannel channel) {
+        return new BufferedWriter(Channels.newWriter(channel, "UTF-8"), BUFFER_SIZE);
+    }
+
+    private static void writeQuad(Writer writer, String mark, Quad quad) throws IOException {
+        if (mark != null) {
+            writer.write(mark);
+        }
+        writer.write(NodeFmtLib.str(quad.getSubject()));
+        writer.write(' ');
+        writer.write(NodeFmtLib.str(quad.getPredicate()));
+        writer.write(' ');
+        writer.write(NodeFmtLib.str(quad.getObject()));
+        if (!quad.isDefaultGraph()) {
+            writer.write(' ');
+            writer.write(NodeFmtLib.str(quad.getGraph()));
+        }
+        writer.write(" .\n");
+    }
+}
@@ -0,0 +1,687 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.sparqlbook.update;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.TreeSet;
+
+/**
+ * クワッドのIDの組(g, s, p, o)を、指定した順に並べ替えてソート済みのlong配列に保持する索引
+ *
+ * 組は4つのlongを連続して並べた1つの配列に置くので、パターンのスキャンは配列を先頭から読むだけになる。
+ * 追加は並べ替えずにログの配列の末尾に足し、次に読み出すか削除するときにまとめて反映する。
+ * ログが少なければソート済みの保留の集合(追加分と削除分)に移し、多ければ(LOADなど)ログを1度だけソートして
+ * 本体と保留の集合を1回で併合する。ログは本体と同じ件数に達した時点でも併合するので、空の索引に1件ずつ
+ * N件を追加しても、併合で書き写す組は合わせて2N件程度で済む。大量の削除もdeleteAllで同じように1回で併合する。
+ * 読み出しでは本体の範囲と保留の集合の該当部分を併合した配列を作るので、追加と読み出しを交互に繰り返しても
+ * 索引全体を作り直すことはない。保留が一定件数に達した時点か、読み出す範囲が索引の大部分を占める時点で本体に併合する。
+ * 併合は新しい配列に行い、公開した配列は書き換えないので、スキャン中のイテレータは併合の影響を受けない。
+ * そのため併合の間は古い配列と新しい配列が両方ヒープにあり、ログを含めて一時的に本体の2倍から3倍の大きさを使う。
+ */
+class QuadIndex {
+
+    /** パターンで値を指定しない成分 */
+    static final long ANY = -1;
+
+    static final int G = 0;
+    static final int S = 1;
+    static final int P = 2;
+    static final int O = 3;
+
+    static final int[] GSPO = { G, S, P, O };
+    static final int[] GPOS = { G, P, O, S };
+    static final int[] GOSP = { G, O, S, P };
+    static final int[] SPOG = { S, P, O, G };
+
+    /** 保留の組がこの件数に達したら併合する */
+    private static final int PENDING_LIMIT = 1 << 16;
+
+    /** 組の順序。本体の配列と同じく成分ごとに符号付きで比べる */
+    private static final Comparator<long[]> TUPLE_ORDER = new Comparator<long[]>() {
+        @Override
+        public int compare(long[] a, long[] b) {
+            return QuadIndex.compare(a, 0, b, 0);
+        }
+    };
+
+    private final int[] order;
+
+    /** 索引の順に並べた組。公開後は書き換えない */
+    private long[] tuples = new long[0];
+    private int size = 0;
+
+    /** 本体にない、保留中の追加の組 */
+    private final TreeSet<long[]> added = new TreeSet<long[]>(TUPLE_ORDER);
+
+    /** 本体にある、保留中の削除の組 */
+    private final TreeSet<long[]> deleted = new TreeSet<long[]>(TUPLE_ORDER);
+
+    /** まだ反映していない追加の組。並べ替えず、重複も除かない */
+    private long[] log = new long[0];
+    private int logged = 0;
+
+    /**
+     * @param order
+     *            索引の各位置に置くクワッドの成分(G, S, P, O)
+     */
+    QuadIndex(int[] order) {
+        this.order = order;
+    }
+
+    synchronized void add(long g, long s, long p, long o) {
+        if (4 * (logged + 1) > log.length) {
+            log = Arrays.copyOf(log, Math.max(64, 2 * log.length));
+        }
+        long[] quad = { g, s, p, o };
+        for (int i = 0; i < 4; i++) {
+            log[4 * logged + i] = quad[order[i]];
+        }
+        logged++;
+        if (logged >= Math.max(PENDING_LIMIT, size)) {
+            flushLog();
+        }
+    }
+
+    synchronized void delete(long g, long s, long p, long o) {
+        flushLog();
+        long[] tuple = tuple(g, s, p, o);
+        if (!added.remove(tuple) && containsMain(tuple)) {
+            deleted.add(tuple);
+            compactIfFull();
+        }
+    }
+
+    /**
+     * クワッドの成分の順(g, s, p, o)の組をまとめて削除する。多ければ1度だけソートして本体と併合する。
+     */
+    synchronized void deleteAll(List<long[]> quads) {
+        flushLog();
+        if (quads.size() + added.size() + deleted.size() < PENDING_LIMIT) {
+            for (long[] q : quads) {
+                delete(q[G], q[S], q[P], q[O]);
+            }
+            return;
+        }
+        long[] deletes = new long[4 * quads.size()];
+        int n = 0;
+        for (long[] q : quads) {
+            for (int i = 0; i < 4; i++) {
+                deletes[4 * n + i] = q[order[i]];
+            }
+            n++;
+        }
+        sort(deletes, 0, n);
+        rewrite(new long[0], 0, deletes, unique(deletes, n));
+    }
+
+    synchronized int size() {
+        flushLog();
+        return size + added.size() - deleted.size();
+    }
+
+    /**
+     * パターンの先頭から何個の成分をこの索引で絞り込めるかを返す。
+     */
+    int prefixLength(long g, long s, long p, long o) {
+        long[] quad = { g, s, p, o };
+        int k = 0;
+        while (k < 4 && quad[order[k]] != ANY) {
+            k++;
+        }
+        return k;
+    }
+
+    /**
+     * パターンに一致する組を、クワッドの成分の順(g, s, p, o)の配列で返す。
+     */
+    Iterator<long[]> find(long g, long s, long p, long o) {
+        final Range range = range(g, s, p, o);
+        return new Iterator<long[]>() {
+            private int pos = range.from;
+            private long[] next = advance();
+
+            private long[] advance() {
+                for (; pos < range.to; pos++) {
+                    if (range.matches(pos)) {
+                        long[] result = new long[4];
+                        for (int c = 0; c < 4; c++) {
+                            result[c] = range.get(pos, c);
+                        }
+                        pos++;
+                        return result;
+                    }
+                }
+                return null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public long[] next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                long[] result = next;
+                next = advance();
+                return result;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * パターンの先頭の成分で絞り込んだ組の範囲を返す。範囲を分割して並列にスキャンするときに使う。
+     */
+    Range range(long g, long s, long p, long o) {
+        long[] quad = { g, s, p, o };
+        long[] key = new long[4];
+        for (int i = 0; i < 4; i++) {
+            key[i] = quad[order[i]];
+        }
+        int k = prefixLength(g, s, p, o);
+        return select(bound(key, k, Long.MIN_VALUE), bound(key, k, Long.MAX_VALUE), key, k);
+    }
+
+    /**
+     * 先頭の2つの成分がfirstとsecondで、3番目の成分がlowからhighまでの組の範囲を返す。
+     * GPOSであれば、グラフと述語を指定した目的語の値の範囲になる。
+     */
+    Range between(long first, long second, long low, long high) {
+        long[] key = { first, second, ANY, ANY };
+        long[] lowest = { first, second, low, Long.MIN_VALUE };
+        long[] highest = { first, second, high, Long.MAX_VALUE };
+        return select(lowest, highest, key, 2);
+    }
+
+    /**
+     * パターンに一致する組を、afterより後から最大limit件、クワッドの成分の順(g, s, p, o)の配列で返す。
+     * 本体はafterの直後の位置を二分探索で求めてそこから読み、保留の集合もafterより後の部分だけを併合するので、
+     * 範囲の大きさや保留の件数によらず、読んだ組の件数に比例する手間で済む。afterが索引から削除されていてもよい。
+     *
+     * @param after
+     *            前回の最後の組(g, s, p, o)。nullであれば範囲の先頭から
+     */
+    synchronized List<long[]> seek(long g, long s, long p, long o, long[] after, int limit) {
+        flushLog();
+        long[] key = tuple(g, s, p, o);
+        int k = prefixLength(g, s, p, o);
+        long[] lowest = bound(key, k, Long.MIN_VALUE);
+        long[] highest = bound(key, k, Long.MAX_VALUE);
+        long[] start = lowest;
+        boolean inclusive = true;
+        if (after != null) {
+            long[] tuple = tuple(after[G], after[S], after[P], after[O]);
+            if (TUPLE_ORDER.compare(tuple, lowest) >= 0) {
+                start = tuple;
+                inclusive = false;
+            }
+        }
+        List<long[]> result = new ArrayList<long[]>(Math.min(limit, 1024));
+        if (TUPLE_ORDER.compare(start, highest) > 0) {
+            return result;
+        }
+        int pos = inclusive ? lowerBound(tuples, size, start, 4) : upperBound(tuples, size, start, 4);
+        int to = Math.max(pos, upperBound(tuples, size, highest, 4));
+        Iterator<long[]> addIt = added.subSet(start, inclusive, highest, true).iterator();
+        Iterator<long[]> deleteIt = deleted.subSet(start, inclusive, highest, true).iterator();
+        long[] add = addIt.hasNext() ? addIt.next() : null;
+        long[] delete = deleteIt.hasNext() ? deleteIt.next() : null;
+        int[] position = new int[4];
+        for (int i = 0; i < 4; i++) {
+            position[order[i]] = i;
+        }
+        while (result.size() < limit && (pos < to || add != null)) {
+            long[] data;
+            int i;
+            if (add != null && (pos == to || compare(add, 0, tuples, pos) < 0)) {
+                data = add;
+                i = 0;
+                add = addIt.hasNext() ? addIt.next() : null;
+            } else {
+                while (delete != null && compare(delete, 0, tuples, pos) < 0) {
+                    delete = deleteIt.hasNext() ? deleteIt.next() : null;
+                }
+                data = tuples;
+                i = pos++;
+                if (delete != null && compare(delete, 0, tuples, i) == 0) {
+                    continue;
+                }
+            }
+            if (matches(data, i, key, k)) {
+                long[] quad = new long[4];
+                for (int c = 0; c < 4; c++) {
+                    quad[c] = data[4 * i + position[c]];
+                }
+                result.add(quad);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 索引の先頭の成分の値を重複なく昇順で返す。GSPOであればグラフのIDの一覧になる。
+     */
+    synchronized long[] leadingValues() {
+        flushLog();
+        TreeSet<Long> values = new TreeSet<Long>();
+        long[] key = new long[4];
+        int pos = 0;
+        while (pos < size) {
+            long value = tuples[4 * pos];
+            key[0] = value + 1;
+            int next = lowerBound(tuples, size, key, 1);
+            if (next - pos > pending(deleted, value).size()) {
+                values.add(value);
+            }
+            pos = next;
+        }
+        for (long[] tuple : added) {
+            values.add(tuple[0]);
+        }
+        long[] result = new long[values.size()];
+        int i = 0;
+        for (long value : values) {
+            result[i++] = value;
+        }
+        return result;
+    }
+
+    /**
+     * lowestからhighestまで(両端を含む)の組の範囲を返す。保留の組がその範囲になければ本体をそのまま使い、
+     * あれば本体の範囲と併合した配列を作る。範囲が索引の大部分を占める場合は先に本体に併合する。
+     */
+    private synchronized Range select(long[] lowest, long[] highest, long[] key, int k) {
+        flushLog();
+        int from = lowerBound(tuples, size, lowest, 4);
+        int to = Math.max(from, upperBound(tuples, size, highest, 4));
+        NavigableSet<long[]> adds = pending(added, lowest, highest);
+        NavigableSet<long[]> deletes = pending(deleted, lowest, highest);
+        if (adds.isEmpty() && deletes.isEmpty()) {
+            return new Range(order, tuples, from, to, key, k);
+        }
+        if (2 * (to - from + adds.size()) > size) {
+            compact();
+            from = lowerBound(tuples, size, lowest, 4);
+            to = Math.max(from, upperBound(tuples, size, highest, 4));
+            return new Range(order, tuples, from, to, key, k);
+        }
+        long[] data = merge(from, to, adds, deletes);
+        return new Range(order, data, 0, data.length / 4, key, k);
+    }
+
+    private long[] tuple(long g, long s, long p, long o) {
+        long[] quad = { g, s, p, o };
+        long[] tuple = new long[4];
+        for (int i = 0; i < 4; i++) {
+            tuple[i] = quad[order[i]];
+        }
+        return tuple;
+    }
+
+    private boolean containsMain(long[] tuple) {
+        int pos = lowerBound(tuples, size, tuple, 4);
+        return pos < size && comparePrefix(tuples, pos, tuple, 4) == 0;
+    }
+
+    /**
+     * 先頭k個の成分をkeyのまま、残りをfillにした組を返す。
+     */
+    private static long[] bound(long[] key, int k, long fill) {
+        long[] bound = new long[4];
+        for (int i = 0; i < 4; i++) {
+            bound[i] = i < k ? key[i] : fill;
+        }
+        return bound;
+    }
+
+    private static NavigableSet<long[]> pending(TreeSet<long[]> set, long[] lowest, long[] highest) {
+        if (set.isEmpty() || TUPLE_ORDER.compare(lowest, highest) > 0) {
+            return new TreeSet<long[]>(TUPLE_ORDER);
+        }
+        return set.subSet(lowest, true, highest, true);
+    }
+
+    private static NavigableSet<long[]> pending(TreeSet<long[]> set, long leading) {
+        long[] key = { leading, 0, 0, 0 };
+        return pending(set, bound(key, 1, Long.MIN_VALUE), bound(key, 1, Long.MAX_VALUE));
+    }
+
+    /**
+     * ログの追加を反映する。少なければ保留の集合に移し、多ければソートして本体と併合する。
+     */
+    private void flushLog() {
+        if (logged == 0) {
+            return;
+        }
+        long[] tuplesToAdd = log;
+        int n = logged;
+        logged = 0;
+        if (n + added.size() + deleted.size() < PENDING_LIMIT) {
+            for (int i = 0; i < n; i++) {
+                long[] tuple = Arrays.copyOfRange(tuplesToAdd, 4 * i, 4 * i + 4);
+                if (!deleted.remove(tuple) && !containsMain(tuple)) {
+                    added.add(tuple);
+                }
+            }
+            return;
+        }
+        log = new long[0];
+        sort(tuplesToAdd, 0, n);
+        n = unique(tuplesToAdd, n);
+        // 削除の後に追加し直した組は、削除を取り消す
+        Iterator<long[]> it = deleted.iterator();
+        while (it.hasNext()) {
+            long[] tuple = it.next();
+            int pos = lowerBound(tuplesToAdd, n, tuple, 4);
+            if (pos < n && comparePrefix(tuplesToAdd, pos, tuple, 4) == 0) {
+                it.remove();
+            }
+        }
+        rewrite(tuplesToAdd, n, new long[0], 0);
+    }
+
+    private void compactIfFull() {
+        if (added.size() + deleted.size() >= PENDING_LIMIT) {
+            compact();
+        }
+    }
+
+    /**
+     * 保留中の組を本体に併合する。
+     */
+    private void compact() {
+        if (added.isEmpty() && deleted.isEmpty()) {
+            return;
+        }
+        tuples = merge(0, size, added, deleted);
+        size = tuples.length / 4;
+        added.clear();
+        deleted.clear();
+    }
+
+    /**
+     * 本体と保留の追加の集合とaddsの和から、保留の削除の集合とdeletesを除いた配列を新しい本体にする。
+     * addsとdeletesはソート済みで重複のない組の配列。どの組も1度ずつ読むだけなので、手間は件数の和に比例する。
+     */
+    private void rewrite(long[] adds, int addCount, long[] deletes, int deleteCount) {
+        long[][] sources = { tuples, toArray(added), adds };
+        int[] ends = { size, added.size(), addCount };
+        int[] positions = new int[3];
+        long[][] removals = { toArray(deleted), deletes };
+        int[] removalEnds = { deleted.size(), deleteCount };
+        int[] removalPositions = new int[2];
+        long[] merged = new long[4 * (size + added.size() + addCount)];
+        int n = 0;
+        while (true) {
+            int min = -1;
+            for (int i = 0; i < 3; i++) {
+                if (positions[i] < ends[i]
+                        && (min < 0 || compare(sources[i], positions[i], sources[min], positions[min]) < 0)) {
+                    min = i;
+                }
+            }
+            if (min < 0) {
+                break;
+            }
+            long[] src = sources[min];
+            int at = positions[min];
+            for (int i = 0; i < 3; i++) {
+                while (positions[i] < ends[i] && compare(sources[i], positions[i], src, at) == 0) {
+                    positions[i]++;
+                }
+            }
+            boolean removed = false;
+            for (int j = 0; j < 2; j++) {
+                while (removalPositions[j] < removalEnds[j]
+                        && compare(removals[j], removalPositions[j], src, at) < 0) {
+                    removalPositions[j]++;
+                }
+                if (removalPositions[j] < removalEnds[j] && compare(removals[j], removalPositions[j], src, at) == 0) {
+                    removed = true;
+                }
+            }
+            if (!removed) {
+                n = append(merged, n, src, at);
+            }
+        }
+        tuples = merged;
+        size = n;
+        added.clear();
+        deleted.clear();
+    }
+
+    private static long[] toArray(TreeSet<long[]> set) {
+        long[] data = new long[4 * set.size()];
+        int n = 0;
+        for (long[] tuple : set) {
+            n = append(data, n, tuple, 0);
+        }
+        return data;
+    }
+
+    /**
+     * data[4 * from, 4 * to)の組を昇順に並べ替える。
+     */
+    private static void sort(long[] data, int from, int to) {
+        while (to - from > 16) {
+            long[] pivot = new long[4];
+            System.arraycopy(data, 4 * ((from + to) >>> 1), pivot, 0, 4);
+            int i = from;
+            int j = to - 1;
+            while (i <= j) {
+                while (compare(data, i, pivot, 0) < 0) {
+                    i++;
+                }
+                while (compare(data, j, pivot, 0) > 0) {
+                    j--;
+                }
+                if (i <= j) {
+                    swap(data, i++, j--);
+                }
+            }
+            // 短い方を再帰で、長い方をループで並べ替えて、再帰を浅く保つ
+            if (j + 1 - from < to - i) {
+                sort(data, from, j + 1);
+                from = i;
+            } else {
+                sort(data, i, to);
+                to = j + 1;
+            }
+        }
+        for (int i = from + 1; i < to; i++) {
+            for (int j = i; j > from && compare(data, j - 1, data, j) > 0; j--) {
+                swap(data, j - 1, j);
+            }
+        }
+    }
+
+    private static void swap(long[] data, int i, int j) {
+        for (int c = 0; c < 4; c++) {
+            long t = data[4 * i + c];
+            data[4 * i + c] = data[4 * j + c];
+            data[4 * j + c] = t;
+        }
+    }
+
+    /**
+     * ソート済みの組から重複を除いて前に詰め、残った件数を返す。
+     */
+    private static int unique(long[] data, int n) {
+        int kept = 0;
+        for (int i = 0; i < n; i++) {
+            if (kept == 0 || compare(data, kept - 1, data, i) != 0) {
+                if (kept != i) {
+                    System.arraycopy(data, 4 * i, data, 4 * kept, 4);
+                }
+                kept++;
+            }
+        }
+        return kept;
+    }
+
+    /**
+     * 本体の[from, to)にaddsを加え、deletesを除いた組の配列を作る。
+     * addsは本体になく、deletesは本体にある組なので、結果の件数は事前に決まる。
+     */
+    private long[] merge(int from, int to, NavigableSet<long[]> adds, NavigableSet<long[]> deletes) {
+        long[] merged = new long[4 * (to - from + adds.size() - deletes.size())];
+        Iterator<long[]> addIt = adds.iterator();
+        Iterator<long[]> deleteIt = deletes.iterator();
+        long[] add = addIt.hasNext() ? addIt.next() : null;
+        long[] delete = deleteIt.hasNext() ? deleteIt.next() : null;
+        int n = 0;
+        int i = from;
+        while (i < to || add != null) {
+            if (add != null && (i == to || compare(add, 0, tuples, i) < 0)) {
+                n = append(merged, n, add, 0);
+                add = addIt.hasNext() ? addIt.next() : null;
+                continue;
+            }
+            while (delete != null && compare(delete, 0, tuples, i) < 0) {
+                delete = deleteIt.hasNext() ? deleteIt.next() : null;
+            }
+            if (delete == null || compare(delete, 0, tuples, i) != 0) {
+                n = append(merged, n, tuples, i);
+            }
+            i++;
+        }
+        return merged;
+    }
+
+    /**
+     * 組を1つ書き足す。
+     */
+    private static int append(long[] dest, int n, long[] src, int i) {
+        System.arraycopy(src, 4 * i, dest, 4 * n, 4);
+        return n + 1;
+    }
+
+    private static int compare(long[] a, int i, long[] b, int j) {
+        for (int c = 0; c < 4; c++) {
+            int r = Long.compare(a[4 * i + c], b[4 * j + c]);
+            if (r != 0) {
+                return r;
+            }
+        }
+        return 0;
+    }
+
+    private static int comparePrefix(long[] data, int pos, long[] key, int k) {
+        for (int c = 0; c < k; c++) {
+            int r = Long.compare(data[4 * pos + c], key[c]);
+            if (r != 0) {
+                return r;
+            }
+        }
+        return 0;
+    }
+
+    private static boolean matches(long[] data, int pos, long[] key, int k) {
+        for (int c = k; c < 4; c++) {
+            if (key[c] != ANY && data[4 * pos + c] != key[c]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 先頭k個の成分がkey以上になる最初の位置を返す。
+     */
+    private static int lowerBound(long[] data, int n, long[] key, int k) {
+        int lo = 0;
+        int hi = n;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (comparePrefix(data, mid, key, k) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * 先頭k個の成分がkeyより大きくなる最初の位置を返す。
+     */
+    private static int upperBound(long[] data, int n, long[] key, int k) {
+        int lo = 0;
+        int hi = n;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (comparePrefix(data, mid, key, k) <= 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * 索引の一部の範囲。[from, to)のうちmatchesを満たす組がパターンに一致する。
+     */
+    static final class Range {
+        final int from;
+        final int to;
+        private final long[] data;
+        private final long[] key;
+        private final int k;
+
+        /** クワッドの成分ごとの、組の中での位置 */
+        private final int[] position = new int[4];
+
+        Range(int[] order, long[] data, int from, int to, long[] key, int k) {
+            this.data = data;
+            this.from = from;
+            this.to = to;
+            this.key = key;
+            this.k = k;
+            for (int i = 0; i < 4; i++) {
+                position[order[i]] = i;
+            }
+        }
+
+        boolean matches(int pos) {
+            return QuadIndex.matches(data, pos, key, k);
+        }
+
+        /**
+         * @param component
+         *            G、S、P、Oのいずれか
+         */
+        long get(int pos, int component) {
+            return data[4 * pos + position[component]];
+        }
+    }
+}
@@ -0,0 +1,319 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.sparqlbook.update;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.query.Dataset;
+import com.hp.hpl.jena.query.Query;
+import com.hp.hpl.jena.query.QueryExecution;
+import com.hp.hpl.jena.query.QueryExecutionFactory;
+import com.hp.hpl.jena.query.QueryFactory;
+import com.hp.hpl.jena.query.ResultSet;
+import com.hp.hpl.jena.sparql.algebra.Algebra;
+import com.hp.hpl.jena.sparql.algebra.Op;
+import com.hp.hpl.jena.sparql.algebra.OpVisitorBase;
+import com.hp.hpl.jena.sparql.algebra.OpWalker;
+import com.hp.hpl.jena.sparql.algebra.op.OpBGP;
+import com.hp.hpl.jena.sparql.algebra.op.OpDatasetNames;
+import com.hp.hpl.jena.sparql.algebra.op.OpGraph;
+import com.hp.hpl.jena.sparql.algebra.op.OpPath;
+import com.hp.hpl.jena.sparql.algebra.op.OpPropFunc;
+import com.hp.hpl.jena.sparql.algebra.op.OpQuadPattern;
+import com.hp.hpl.jena.sparql.algebra.op.OpService;
+import com.hp.hpl.jena.sparql.algebra.op.OpTriple;
+import com.hp.hpl.jena.sparql.core.Quad;
+import com.hp.hpl.jena.sparql.resultset.ResultSetMem;
+
+/**
+ * SELECTの結果をキャッシュし、更新されたグラフを参照する結果だけを無効にする。
+ *
+ * キャッシュのキーはクエリをパースして代数式にした文字列なので、空白や接頭辞の書き方が違っても同じクエリは同じキーになる。
+ * クエリが参照するグラフを代数式から求め、グラフごとの版番号を結果と一緒に保存する。
+ * InstrumentedUpdateActionにリスナーとして登録すると、更新のたびに変更しうるグラフの版番号を進める。
+ * 取り出すときに版番号が1つでも違えば、結果を捨ててクエリを実行し直す。
+ * 版番号はクエリを実行する前に読むので、実行中に更新された結果が新しいものとして残ることはない。
+ * InstrumentedUpdateActionを通さない更新は検出できない。
+ *
+ * <pre>
+ * QueryResultCache cache = new QueryResultCache(dataset, 1000);
+ * action.addListener(cache);
+ * ResultSet rs = cache.select("SELECT * WHERE { ?s ?p ?o . } LIMIT 100");
+ * </pre>
+ */
+public class QueryResultCache implements UpdateListener {
+
+    private final Dataset dataset;
+    private final Map<String, Entry> entries;
+
+    /** 全ての更新で進める版番号。参照するグラフが決まらないクエリに使う */
+    private final AtomicLong globalVersion = new AtomicLong();
+
+    /** いずれかの名前付きグラフの更新で進める版番号。GRAPH ?gを含むクエリに使う */
+    private final AtomicLong anyNamedVersion = new AtomicLong();
+
+    /** どの名前付きグラフか決まらない更新で進める版番号。名前を指定したグラフを参照するクエリに使う */
+    private final AtomicLong unknownNamedVersion = new AtomicLong();
+
+    private final ConcurrentMap<Node, AtomicLong> graphVersions = new ConcurrentHashMap<Node, AtomicLong>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param dataset
+     *            クエリの対象のDataset
+     * @param maxEntries
+     *            保持する結果の最大数。超えたら最も長く使われていないものから捨てる
+     */
+    public QueryResultCache(Dataset dataset, final int maxEntries) {
+        this.dataset = dataset;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, QueryResultCache.Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * SELECTを実行する。キャッシュに有効な結果があればそれを返す。
+     *
+     * @param queryString
+     *            SELECTのクエリ
+     * @return クエリの結果
+     */
+    public ResultSet select(String queryString) {
+        Query query = QueryFactory.create(queryString);
+        Op op = Algebra.compile(query);
+        if (usesService(op)) {
+            return execute(query);
+        }
+        String key = op.toString();
+        Set<Node> graphs = dependencies(query, op);
+        long[] versions = versions(graphs);
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if (entry != null && Arrays.equals(entry.versions, versions)) {
+                hits.incrementAndGet();
+                return new ResultSetMem(entry.results);
+            }
+        }
+        misses.incrementAndGet();
+        ResultSetMem results = execute(query);
+        synchronized (entries) {
+            entries.put(key, new Entry(versions, results));
+        }
+        return new ResultSetMem(results);
+    }
+
+    @Override
+    public void updateExecuted(UpdateEvent event) {
+        invalidate(Updates.affectedGraphs(event.getUpdate()));
+    }
+
+    /**
+     * グラフの版番号を進め、そのグラフを参照する結果を無効にする。
+     *
+     * @param graphs
+     *            変更されたグラフ。名前の決まらない名前付きグラフはQuad.unionGraph、nullは全てのグラフ
+     */
+    public void invalidate(Set<Node> graphs) {
+        globalVersion.incrementAndGet();
+        if (graphs == null) {
+            anyNamedVersion.incrementAndGet();
+            unknownNamedVersion.incrementAndGet();
+            version(Quad.defaultGraphIRI).incrementAndGet();
+            return;
+        }
+        for (Node g : graphs) {
+            if (Quad.isUnionGraph(g)) {
+                anyNamedVersion.incrementAndGet();
+                unknownNamedVersion.incrementAndGet();
+            } else if (Quad.isDefaultGraph(g)) {
+                version(Quad.defaultGraphIRI).incrementAndGet();
+            } else {
+                anyNamedVersion.incrementAndGet();
+                version(g).incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * @return キャッシュの結果を返した回数
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return クエリを実行した回数
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    private ResultSetMem execute(Query query) {
+        QueryExecution qe = QueryExecutionFactory.create(query, dataset);
+        try {
+            return new ResultSetMem(qe.execSelect());
+        } finally {
+            qe.close();
+        }
+    }
+
+    /**
+     * 参照するグラフの現在の版番号を並べる。
+     */
+    private long[] versions(Set<Node> graphs) {
+        if (graphs == null) {
+            return new long[] { globalVersion.get() };
+        }
+        List<Long> versions = new ArrayList<Long>();
+        boolean named = false;
+        for (Node g : graphs) {
+            if (Quad.isUnionGraph(g)) {
+                versions.add(anyNamedVersion.get());
+            } else if (Quad.isDefaultGraph(g)) {
+                versions.add(version(Quad.defaultGraphIRI).get());
+            } else {
+                versions.add(version(g).get());
+                named = true;
+            }
+        }
+        if (named) {
+            versions.add(unknownNamedVersion.get());
+        }
+        long[] result = new long[versions.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = versions.get(i);
+        }
+        return result;
+    }
+
+    private AtomicLong version(Node graph) {
+        AtomicLong version = graphVersions.get(graph);
+        if (version == null) {
+            AtomicLong created = new AtomicLong();
+            version = graphVersions.putIfAbsent(graph, created);
+            if (version == null) {
+                version = created;
+            }
+        }
+        return version;
+    }
+
+    /**
+     * クエリが参照するグラフを代数式から求める。決まらない場合はnull。
+     * 四つ組形式にすると、どのグラフに対するパターンかがOpQuadPatternのグラフ名に現れる。
+     */
+    static Set<Node> dependencies(Query query, Op op) {
+        if (query.hasDatasetDescription()) {
+            return null;
+        }
+        final Set<Node> graphs = new LinkedHashSet<Node>();
+        final boolean[] unknown = { false };
+        OpWalker.walk(Algebra.toQuadForm(op), new OpVisitorBase() {
+            @Override
+            public void visit(OpQuadPattern quadPattern) {
+                add(quadPattern.getGraphNode());
+            }
+
+            @Override
+            public void visit(OpGraph opGraph) {
+                add(opGraph.getNode());
+            }
+
+            @Override
+            public void visit(OpDatasetNames dsNames) {
+                graphs.add(Quad.unionGraph);
+            }
+
+            @Override
+            public void visit(OpBGP opBGP) {
+                unknown[0] = true;
+            }
+
+            @Override
+            public void visit(OpTriple opTriple) {
+                unknown[0] = true;
+            }
+
+            @Override
+            public void visit(OpPath opPath) {
+                unknown[0] = true;
+            }
+
+            @Override
+            public void visit(OpPropFunc opPropFunc) {
+                unknown[0] = true;
+            }
+
+            private void add(Node g) {
+                if (Quad.isDefaultGraph(g)) {
+                    graphs.add(Quad.defaultGraphIRI);
+                } else if (g.isVariable() || Quad.isUnionGraph(g)) {
+                    graphs.add(Quad.unionGraph);
+                } else {
+                    graphs.add(g);
+                }
+            }
+        });
+        return unknown[0] ? null : graphs;
+    }
+
+    /**
+     * SERVICEの結果はリモートで変わるので、SERVICEを含むクエリはキャッシュしない。
+     */
+    private static boolean usesService(Op op) {
+        final boolean[] found = { false };
+        OpWalker.walk(op, new OpVisitorBase() {
+            @Override
+            public void visit(OpService opService) {
+                found[0] = true;
+            }
+        });
+        return found[0];
+    }
+
+    /**
+     * キャッシュした結果と、そのときの版番号
+     */
+    private static class Entry {
+        final long[] versions;
+        final ResultSetMem results;
+
+        Entry(long[] versions, ResultSetMem results) {
+            this.versions = versions;
+            this.results = results;
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.sparqlbook.update;
+
+import com.hp.hpl.jena.query.ARQ;
+import com.hp.hpl.jena.update.GraphStore;
+
+/**
+ * DELETE/INSERTのWHERE句の解を、メモリに全て保持せずにディスクへ退避しながら処理するための設定
+ *
+ * UpdateEngineWorkerはWHERE句の解をDataBagに溜めてから、削除するクワッド、追加するクワッドの順に
+ * その解から1つずつ組み立てて適用する。DataBagはコンテキストのARQ.spillToDiskThresholdを超えると
+ * 解を一時ファイルに書き出すが、既定では閾値がないため全ての解がヒープに残る。
+ * ここで閾値を設定すると、ヒープに置く解は閾値の件数までになり、
+ * chapter6/6-29.ruのように大量のリソースのIRIを書き換える更新でも、解の件数に比例したヒープを必要としない。
+ * WHERE句を全て評価してから削除・追加する意味は変わらない。
+ */
+public class StreamingModify {
+
+    /** ヒープに置く解の件数の既定値 */
+    public static final long DEFAULT_THRESHOLD = 100000;
+
+    private StreamingModify() {
+    }
+
+    /**
+     * 既定の閾値でディスクへの退避を有効にする。
+     *
+     * @param graphStore
+     *            対象のGraphStore
+     */
+    public static void enable(GraphStore graphStore) {
+        enable(graphStore, DEFAULT_THRESHOLD);
+    }
+
+    /**
+     * ディスクへの退避を有効にする。
+     *
+     * @param graphStore
+     *            対象のGraphStore
+     * @param threshold
+     *            ヒープに置く解の件数。超えた分は一時ファイルに書き出す
+     */
+    public static void enable(GraphStore graphStore, long threshold) {
+        graphStore.getContext().set(ARQ.spillToDiskThreshold, threshold);
+    }
+
+    /**
+     * ディスクへの退避を無効にし、全ての解をヒープに置く既定の動作に戻す。
+     *
+     * @param graphStore
+     *            対象のGraphStore
+     */
+    public static void disable(GraphStore graphStore) {
+        graphStore.getContext().unset(ARQ.spillToDiskThreshold);
+    }
+}
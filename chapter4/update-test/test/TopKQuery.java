@@ -0,0 +1,232 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.sparqlbook.update;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.hp.hpl.jena.query.ARQ;
+import com.hp.hpl.jena.query.Query;
+import com.hp.hpl.jena.query.SortCondition;
+import com.hp.hpl.jena.sparql.algebra.op.OpTopN;
+import com.hp.hpl.jena.sparql.engine.ExecutionContext;
+import com.hp.hpl.jena.sparql.engine.QueryIterator;
+import com.hp.hpl.jena.sparql.engine.binding.Binding;
+import com.hp.hpl.jena.sparql.engine.iterator.QueryIterConcat;
+import com.hp.hpl.jena.sparql.engine.iterator.QueryIterPlainWrapper;
+import com.hp.hpl.jena.sparql.engine.iterator.QueryIterTopN;
+import com.hp.hpl.jena.sparql.expr.ExprEvalException;
+import com.hp.hpl.jena.sparql.expr.NodeValue;
+import com.hp.hpl.jena.sparql.util.Context;
+
+/**
+ * 「ORDER BY DESC(?height) LIMIT 3」(chapter5/peaks.rq)のように、数値で並べて上位だけを返すクエリで、
+ * 解どうしの比較をdoubleの比較で行う。
+ *
+ * ARQ 2.11ではARQ.optTopNSortingが既定で有効なので、小さなLIMIT(とOFFSET)の付いたORDER BYは
+ * もともとOpTopNに置き換えられ、QueryIterTopNが大きさLIMITのヒープで上位を求める。
+ * このクラスで速くなるのは比較の部分だけで、並べ替えの条件が1つで値が数値であれば、
+ * 解ごとに式を1度だけ評価してdoubleのキーにし、NodeValueどうしの比較(解ごとの式の再評価と型の判定)の代わりに
+ * doubleどうしを比べる。
+ * 数値でない値や、2^53を超える整数のようにdoubleで正確に表せない値が現れた場合や、条件が2つ以上ある場合は、
+ * それまでの上位と残りの解をARQのQueryIterTopNに任せる。
+ * 捨てた解はヒープに残した解より小さい数値なので、結果は変わらない。
+ * OpExecutorのファクトリはExtensionOpExecutorのものを使うので、BindJoinServiceと同じコンテキストにも登録できる。
+ *
+ * <pre>
+ * TopKQuery.register(ARQ.getContext());
+ * </pre>
+ */
+public class TopKQuery {
+
+    /**
+     * OpTopNを数値のヒープで実行するハンドラー
+     */
+    private static final ExtensionOpExecutor.Handler<OpTopN> handler = new ExtensionOpExecutor.Handler<OpTopN>() {
+        @Override
+        public QueryIterator execute(OpTopN opTop, QueryIterator input, ExtensionOpExecutor executor) {
+            return TopKQuery.execute(opTop, executor.executeSub(opTop.getSubOp(), input), executor.getExecContext());
+        }
+    };
+
+    private TopKQuery() {
+    }
+
+    /**
+     * ハンドラーとExtensionOpExecutorのファクトリを登録する。
+     * ARQ.optTopNSortingを無効にしたコンテキストではOpTopNが作られないので、このハンドラーは使われない。
+     * TDBのデータセットでは、全体のコンテキストではなくDataset.getContext()に登録する。
+     *
+     * @param context
+     *            登録先のコンテキスト
+     */
+    public static void register(Context context) {
+        ExtensionOpExecutor.register(context, ExtensionOpExecutor.TOP_N, handler);
+    }
+
+    /**
+     * 全体のコンテキストに登録する。
+     */
+    public static void register() {
+        register(ARQ.getContext());
+    }
+
+    private static QueryIterator execute(OpTopN opTop, QueryIterator input, ExecutionContext execCxt) {
+        List<SortCondition> conditions = opTop.getConditions();
+        int limit = (int) Math.min(opTop.getLimit(), Integer.MAX_VALUE - 1);
+        if (conditions.size() != 1 || limit <= 0) {
+            return fallback(opTop, new ArrayList<Binding>(), input, execCxt);
+        }
+        SortCondition condition = conditions.get(0);
+        boolean descending = condition.getDirection() == Query.ORDER_DESCENDING;
+        Heap<Binding> heap = new Heap<Binding>(limit);
+        while (input.hasNext()) {
+            Binding binding = input.nextBinding();
+            NodeValue value;
+            try {
+                value = condition.getExpression().eval(binding, execCxt);
+            } catch (ExprEvalException e) {
+                value = null;
+            }
+            if (value == null || !value.isNumber() || !isExact(value)) {
+                List<Binding> kept = heap.drain();
+                kept.add(binding);
+                return fallback(opTop, kept, input, execCxt);
+            }
+            double key = value.getDouble();
+            heap.offer(descending ? key : -key, binding);
+        }
+        input.close();
+        return new QueryIterPlainWrapper(heap.drain().iterator(), execCxt);
+    }
+
+    /**
+     * 値がdoubleで正確に表せるか。NaNと、doubleにすると丸められる整数・小数はfalse。
+     * 丸められた値どうしは、元の値が違ってもdoubleでは等しくなり、順序が変わりうる。
+     */
+    static boolean isExact(NodeValue value) {
+        double d = value.getDouble();
+        if (Double.isNaN(d)) {
+            return false;
+        }
+        if (value.isInteger()) {
+            BigInteger integer = value.getInteger();
+            return integer.bitLength() <= 53 || (!Double.isInfinite(d)
+                    && new BigDecimal(d).compareTo(new BigDecimal(integer)) == 0);
+        }
+        if (value.isDecimal()) {
+            return !Double.isInfinite(d) && new BigDecimal(d).compareTo(value.getDecimal()) == 0;
+        }
+        return true;
+    }
+
+    /**
+     * 読んだ解と残りの入力をつないで、ARQのQueryIterTopNで実行する。
+     */
+    private static QueryIterator fallback(OpTopN opTop, List<Binding> read, QueryIterator rest,
+            ExecutionContext execCxt) {
+        QueryIterConcat concat = new QueryIterConcat(execCxt);
+        concat.add(new QueryIterPlainWrapper(read.iterator(), execCxt));
+        concat.add(rest);
+        return new QueryIterTopN(concat, opTop.getConditions(), opTop.getLimit(), false, execCxt);
+    }
+
+    /**
+     * キーの大きい順に最大limit個の値を残すヒープ。根はキーの最も小さい値。
+     */
+    static class Heap<T> {
+        private final int limit;
+        private double[] keys;
+        private Object[] values;
+        private int size = 0;
+
+        Heap(int limit) {
+            this.limit = limit;
+            this.keys = new double[Math.min(limit, 1024)];
+            this.values = new Object[keys.length];
+        }
+
+        void offer(double key, T value) {
+            if (size < limit) {
+                if (size == keys.length) {
+                    int capacity = (int) Math.min(limit, (long) size * 2);
+                    keys = Arrays.copyOf(keys, capacity);
+                    values = Arrays.copyOf(values, capacity);
+                }
+                int i = size++;
+                while (i > 0) {
+                    int parent = (i - 1) >>> 1;
+                    if (keys[parent] <= key) {
+                        break;
+                    }
+                    keys[i] = keys[parent];
+                    values[i] = values[parent];
+                    i = parent;
+                }
+                keys[i] = key;
+                values[i] = value;
+            } else if (key > keys[0]) {
+                siftDown(key, value);
+            }
+        }
+
+        private void siftDown(double key, Object value) {
+            int i = 0;
+            int half = size >>> 1;
+            while (i < half) {
+                int child = 2 * i + 1;
+                if (child + 1 < size && keys[child + 1] < keys[child]) {
+                    child++;
+                }
+                if (key <= keys[child]) {
+                    break;
+                }
+                keys[i] = keys[child];
+                values[i] = values[child];
+                i = child;
+            }
+            keys[i] = key;
+            values[i] = value;
+        }
+
+        /**
+         * 全ての値をキーの大きい順に取り出す。ヒープは空になる。
+         */
+        @SuppressWarnings("unchecked")
+        List<T> drain() {
+            Object[] sorted = new Object[size];
+            while (size > 0) {
+                sorted[size - 1] = values[0];
+                size--;
+                if (size > 0) {
+                    siftDown(keys[size], values[size]);
+                }
+                values[size] = null;
+            }
+            List<T> result = new ArrayList<T>(sorted.length);
+            for (Object value : sorted) {
+                result.add((T) value);
+            }
+            return result;
+        }
+    }
+}
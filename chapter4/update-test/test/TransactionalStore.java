@@ -0,0 +1,150 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.sparqlbook.update;
+
+import com.hp.hpl.jena.query.Dataset;
+import com.hp.hpl.jena.query.QueryExecution;
+import com.hp.hpl.jena.query.QueryExecutionFactory;
+import com.hp.hpl.jena.query.ReadWrite;
+import com.hp.hpl.jena.query.ResultSetFactory;
+import com.hp.hpl.jena.query.ResultSetRewindable;
+import com.hp.hpl.jena.update.GraphStoreFactory;
+import com.hp.hpl.jena.update.UpdateAction;
+import com.hp.hpl.jena.update.UpdateFactory;
+import com.hp.hpl.jena.update.UpdateRequest;
+
+/**
+ * 問い合わせを読み取りトランザクション、更新を書き込みトランザクションで実行する。
+ *
+ * TDBのトランザクションでは、読み取りトランザクションは開始した時点のデータセットの版を見続け、
+ * 同時に実行中の書き込みトランザクションを待たない。
+ * 長い「DELETE/INSERT ... WHERE」やMOVEの最中でも、問い合わせはロックで止まらずにその前の状態を返す。
+ * 書き込みはジャーナルに溜められ、古い版を見ている読み取りトランザクションが全て終わった時点で本体に反映される。
+ * 読み取りトランザクションを長く開いたままにするとジャーナルが反映されずに大きくなるので、
+ * selectは結果をコピーしてからすぐにトランザクションを終える。
+ *
+ * <pre>
+ * TransactionalStore store = new TransactionalStore(TDBFactory.createDataset("/data/tdb"));
+ * store.update("DELETE { ... } INSERT { ... } WHERE { ... }"); // 別のスレッド
+ * ResultSetRewindable rs = store.select("SELECT * WHERE { ?s ?p ?o . } LIMIT 100");
+ * </pre>
+ */
+public class TransactionalStore {
+
+    /**
+     * 読み取りトランザクションの中で実行する処理
+     *
+     * @param <T>
+     *            処理の結果の型
+     */
+    public interface ReadAction<T> {
+        /**
+         * @param dataset
+         *            読み取りトランザクションを開始したDataset
+         * @return 処理の結果。トランザクションの外で使うため、データセットを参照しない形にすること
+         */
+        T run(Dataset dataset);
+    }
+
+    private final Dataset dataset;
+
+    /**
+     * @param dataset
+     *            トランザクション対応のDataset(TDB)
+     */
+    public TransactionalStore(Dataset dataset) {
+        if (!dataset.supportsTransactions()) {
+            throw new IllegalArgumentException("Dataset does not support transactions");
+        }
+        this.dataset = dataset;
+    }
+
+    /**
+     * @return 対象のDataset
+     */
+    public Dataset getDataset() {
+        return dataset;
+    }
+
+    /**
+     * 読み取りトランザクションの中で処理を実行する。処理の間、開始時点のデータセットの版が見える。
+     *
+     * @param action
+     *            実行する処理
+     * @return 処理の結果
+     */
+    public <T> T read(ReadAction<T> action) {
+        dataset.begin(ReadWrite.READ);
+        try {
+            return action.run(dataset);
+        } finally {
+            dataset.end();
+        }
+    }
+
+    /**
+     * SELECTを実行し、結果をコピーして返す。
+     *
+     * @param query
+     *            SELECTの問い合わせ
+     * @return 問い合わせの結果
+     */
+    public ResultSetRewindable select(final String query) {
+        return read(new ReadAction<ResultSetRewindable>() {
+            @Override
+            public ResultSetRewindable run(Dataset ds) {
+                QueryExecution qe = QueryExecutionFactory.create(query, ds);
+                try {
+                    return ResultSetFactory.copyResults(qe.execSelect());
+                } finally {
+                    qe.close();
+                }
+            }
+        });
+    }
+
+    /**
+     * 更新を1つの書き込みトランザクションで実行する。
+     *
+     * @param cmd
+     *            更新
+     */
+    public void update(String cmd) {
+        update(UpdateFactory.create(cmd));
+    }
+
+    /**
+     * 更新を1つの書き込みトランザクションで実行する。失敗した場合は何も反映しない。
+     *
+     * @param request
+     *            更新
+     */
+    public void update(UpdateRequest request) {
+        dataset.begin(ReadWrite.WRITE);
+        try {
+            UpdateAction.execute(request, GraphStoreFactory.create(dataset));
+            dataset.commit();
+        } catch (RuntimeException e) {
+            dataset.abort();
+            throw e;
+        } finally {
+            dataset.end();
+        }
+    }
+}
@@ -0,0 +1,288 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.sparqlbook.update;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.sparql.core.DatasetGraph;
+import com.hp.hpl.jena.sparql.core.Quad;
+
+/**
+ * 「p+」「p*」のプロパティパスを評価し、結果をグラフと述語ごとにキャッシュする。
+ *
+ * 両端が決まっている場合(:a rdfs:subClassOf* :b)は、両側から交互に幅優先探索し、
+ * 小さいほうの探索の先端を広げる。片側だけ決まっている場合は到達できるノードの集合を求めてキャッシュする。
+ * InstrumentedUpdateActionにリスナーとして登録すると、更新されたグラフのキャッシュを捨てる。
+ *
+ * <pre>
+ * TransitivePaths paths = new TransitivePaths(graphStore);
+ * action.addListener(paths);
+ * boolean sub = paths.reachable(Quad.defaultGraphIRI, RDFS.subClassOf.asNode(), a, b, true);
+ * </pre>
+ */
+public class TransitivePaths implements UpdateListener {
+
+    /** グラフと述語ごとに覚えておく結果の最大数。超えたらそのグラフと述語の結果を全て捨てる */
+    private static final int MAX_ENTRIES = 100000;
+
+    private final DatasetGraph dsg;
+    private final ConcurrentMap<List<Node>, Memo> memos = new ConcurrentHashMap<List<Node>, Memo>();
+
+    /**
+     * @param dsg
+     *            対象のデータセット
+     */
+    public TransitivePaths(DatasetGraph dsg) {
+        this.dsg = dsg;
+    }
+
+    /**
+     * fromからtoへpredicateをたどって到達できるかを返す。
+     *
+     * @param graph
+     *            グラフ名。デフォルトグラフはQuad.defaultGraphIRI
+     * @param predicate
+     *            述語
+     * @param from
+     *            始点
+     * @param to
+     *            終点
+     * @param includeSelf
+     *            「p*」であればtrue、「p+」であればfalse
+     * @return 到達できればtrue
+     */
+    public boolean reachable(Node graph, Node predicate, Node from, Node to, boolean includeSelf) {
+        if (includeSelf && from.equals(to)) {
+            return true;
+        }
+        Memo memo = memo(graph, predicate);
+        Set<Node> closure = memo.forward.get(from);
+        if (closure != null) {
+            return closure.contains(to);
+        }
+        List<Node> pair = Collections.unmodifiableList(Arrays.asList(from, to));
+        Boolean cached = memo.pairs.get(pair);
+        if (cached != null) {
+            return cached;
+        }
+        boolean result = search(graph, predicate, from, to);
+        memo.put(memo.pairs, pair, result);
+        return result;
+    }
+
+    /**
+     * fromからpredicateをたどって到達できるノードを返す(from predicate+ ?o)。
+     *
+     * @param graph
+     *            グラフ名。デフォルトグラフはQuad.defaultGraphIRI
+     * @param predicate
+     *            述語
+     * @param from
+     *            始点
+     * @param includeSelf
+     *            「p*」であればtrue、「p+」であればfalse
+     * @return 到達できるノード
+     */
+    public Set<Node> reachableFrom(Node graph, Node predicate, Node from, boolean includeSelf) {
+        Memo memo = memo(graph, predicate);
+        Set<Node> closure = memo.forward.get(from);
+        if (closure == null) {
+            closure = closure(graph, predicate, from, true);
+            memo.put(memo.forward, from, closure);
+        }
+        return withSelf(closure, from, includeSelf);
+    }
+
+    /**
+     * predicateをたどってtoに到達できるノードを返す(?s predicate+ to)。
+     *
+     * @param graph
+     *            グラフ名。デフォルトグラフはQuad.defaultGraphIRI
+     * @param predicate
+     *            述語
+     * @param to
+     *            終点
+     * @param includeSelf
+     *            「p*」であればtrue、「p+」であればfalse
+     * @return toに到達できるノード
+     */
+    public Set<Node> reachableTo(Node graph, Node predicate, Node to, boolean includeSelf) {
+        Memo memo = memo(graph, predicate);
+        Set<Node> closure = memo.backward.get(to);
+        if (closure == null) {
+            closure = closure(graph, predicate, to, false);
+            memo.put(memo.backward, to, closure);
+        }
+        return withSelf(closure, to, includeSelf);
+    }
+
+    @Override
+    public void updateExecuted(UpdateEvent event) {
+        invalidate(Updates.affectedGraphs(event.getUpdate()));
+    }
+
+    /**
+     * 更新されたグラフのキャッシュを捨てる。名前付きグラフが1つでも更新されたら、Quad.unionGraphのキャッシュも捨てる。
+     *
+     * @param graphs
+     *            更新されたグラフ。名前の決まらない名前付きグラフはQuad.unionGraph、nullは全てのグラフ
+     */
+    public void invalidate(Set<Node> graphs) {
+        if (graphs == null) {
+            memos.clear();
+            return;
+        }
+        boolean anyNamed = graphs.contains(Quad.unionGraph);
+        boolean someNamed = false;
+        for (Node graph : graphs) {
+            someNamed |= !Quad.isDefaultGraph(graph);
+        }
+        Iterator<List<Node>> it = memos.keySet().iterator();
+        while (it.hasNext()) {
+            Node graph = it.next().get(0);
+            if (graphs.contains(graph) || (anyNamed && !Quad.isDefaultGraph(graph))
+                    || (someNamed && Quad.isUnionGraph(graph))) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * 両側から幅優先探索する。前向きの探索で見つけたノードは1歩以上進んだもの、
+     * 後ろ向きの探索で見つけたノードはtoか、toまで1歩以上のものなので、出会えば1歩以上の経路がある。
+     */
+    private boolean search(Node graph, Node predicate, Node from, Node to) {
+        Set<Node> seenForward = new HashSet<Node>();
+        Set<Node> seenBackward = new HashSet<Node>();
+        seenBackward.add(to);
+        Set<Node> frontForward = new HashSet<Node>();
+        for (Node next : step(graph, predicate, from, true)) {
+            if (next.equals(to)) {
+                return true;
+            }
+            if (seenForward.add(next)) {
+                frontForward.add(next);
+            }
+        }
+        seenForward.add(from);
+        Set<Node> frontBackward = new HashSet<Node>(seenBackward);
+        while (!frontForward.isEmpty() && !frontBackward.isEmpty()) {
+            boolean forward = frontForward.size() <= frontBackward.size();
+            Set<Node> front = forward ? frontForward : frontBackward;
+            Set<Node> seen = forward ? seenForward : seenBackward;
+            Set<Node> other = forward ? seenBackward : seenForward;
+            Set<Node> nextFront = new HashSet<Node>();
+            for (Node node : front) {
+                for (Node next : step(graph, predicate, node, forward)) {
+                    if (other.contains(next)) {
+                        return true;
+                    }
+                    if (seen.add(next)) {
+                        nextFront.add(next);
+                    }
+                }
+            }
+            if (forward) {
+                frontForward = nextFront;
+            } else {
+                frontBackward = nextFront;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * startから1歩以上で到達できるノード(forwardがfalseなら逆向き)を幅優先探索で求める。
+     */
+    private Set<Node> closure(Node graph, Node predicate, Node start, boolean forward) {
+        Set<Node> seen = new HashSet<Node>();
+        List<Node> front = step(graph, predicate, start, forward);
+        while (!front.isEmpty()) {
+            List<Node> nextFront = new ArrayList<Node>();
+            for (Node node : front) {
+                if (seen.add(node)) {
+                    nextFront.addAll(step(graph, predicate, node, forward));
+                }
+            }
+            front = nextFront;
+        }
+        return Collections.unmodifiableSet(seen);
+    }
+
+    private List<Node> step(Node graph, Node predicate, Node node, boolean forward) {
+        List<Node> nodes = new ArrayList<Node>();
+        Iterator<Quad> it = forward ? dsg.find(graph, node, predicate, Node.ANY)
+                : dsg.find(graph, Node.ANY, predicate, node);
+        while (it.hasNext()) {
+            Quad quad = it.next();
+            nodes.add(forward ? quad.getObject() : quad.getSubject());
+        }
+        return nodes;
+    }
+
+    private Memo memo(Node graph, Node predicate) {
+        if (Quad.isDefaultGraph(graph)) {
+            graph = Quad.defaultGraphIRI;
+        }
+        List<Node> key = Collections.unmodifiableList(Arrays.asList(graph, predicate));
+        Memo memo = memos.get(key);
+        if (memo == null) {
+            Memo created = new Memo();
+            memo = memos.putIfAbsent(key, created);
+            if (memo == null) {
+                memo = created;
+            }
+        }
+        return memo;
+    }
+
+    private static Set<Node> withSelf(Set<Node> closure, Node self, boolean includeSelf) {
+        if (!includeSelf || closure.contains(self)) {
+            return closure;
+        }
+        Set<Node> result = new HashSet<Node>(closure);
+        result.add(self);
+        return Collections.unmodifiableSet(result);
+    }
+
+    /**
+     * 1つのグラフと述語についての探索結果
+     */
+    private static class Memo {
+        final ConcurrentMap<Node, Set<Node>> forward = new ConcurrentHashMap<Node, Set<Node>>();
+        final ConcurrentMap<Node, Set<Node>> backward = new ConcurrentHashMap<Node, Set<Node>>();
+        final ConcurrentMap<List<Node>, Boolean> pairs = new ConcurrentHashMap<List<Node>, Boolean>();
+
+        <K, V> void put(ConcurrentMap<K, V> map, K key, V value) {
+            if (map.size() >= MAX_ENTRIES) {
+                map.clear();
+            }
+            map.put(key, value);
+        }
+    }
+}
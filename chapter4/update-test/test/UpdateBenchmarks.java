@@ -0,0 +1,343 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.sparqlbook.update;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.RDFDataMgr;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.hp.hpl.jena.graph.Factory;
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.NodeFactory;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.query.Dataset;
+import com.hp.hpl.jena.tdb.TDBFactory;
+import com.hp.hpl.jena.update.GraphStore;
+import com.hp.hpl.jena.update.GraphStoreFactory;
+import com.hp.hpl.jena.update.UpdateAction;
+
+/**
+ * 各Examplesクラスのシナリオを対象にしたJMHベンチマーク
+ *
+ * update-data6.ttlと同じ形(:book :author ?author, foaf:givenName, rdf:type)の
+ * データを指定したトリプル数まで増やし、graph1、graph2、デフォルトグラフに投入してから更新を実行する。
+ * 更新はデータを書き換えるため、1回の計測ごとにGraphStoreを作り直し、SingleShotTimeで1回だけ実行する。
+ * 呼び出しごとのSetup(Level.Invocation)は、大きなデータを毎回作り直すうえ、短い処理の計測を歪めるので使わない。
+ * 割り当て速度は「-prof gc」を付けて実行すると出力される。
+ *
+ * 1回の計測が1つの標本なので、標本の数は計測の回数(既定で100回)になる。JMHはp0からp100までの百分位数を出力するが、
+ * 100個の標本のp99は最も遅い2回の間の値で、最大値とほとんど変わらない。そのため結果はp50、p90と最大値(p100)として読み、
+ * p99を求める場合は「-i 1000」のように標本を1000個以上に増やす。triples=1000000は1回の準備に時間がかかるので、
+ * 標本を増やすときは「-p triples=15,1000」のように小さい規模に限る。
+ *
+ * ビルドの設定はないので、次のようにjavacでJMHのアノテーションプロセッサを通してコンパイルし、org.openjdk.jmh.Mainで実行する。
+ * CPにはJena 2.11.1(jena-arq、jena-core、jena-iri)とTDB 1.0.1とそれらの依存ライブラリ(slf4j、log4j、xercesImpl、
+ * xml-apis、httpclient、httpcore、commons-codec)、jmh-core 1.21とその依存ライブラリ(jopt-simple 4.6、commons-math3 3.2)、
+ * jmh-generator-annprocess 1.21のjarを並べる。プロセッサがclassesにベンチマークの一覧(META-INF/BenchmarkList)と
+ * 生成したクラスを書き出し、Mainはそれをクラスパスから読む。
+ *
+ * <pre>
+ * javac -encoding UTF-8 -cp $CP -processor org.openjdk.jmh.generators.BenchmarkProcessor -d classes *.java
+ * java -cp classes:$CP org.openjdk.jmh.Main UpdateBenchmarks -prof gc -p triples=15,100000
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 100)
+@Fork(1)
+public class UpdateBenchmarks {
+
+    private static final String NS = "http://sparqlbook.jp/";
+    private static final String FOAF = "http://xmlns.com/foaf/0.1/";
+    private static final String RDF = "http://www.w3.org/1999/02/22-rdf-syntax-ns#";
+
+    private static final String PREFIXES = "PREFIX : <http://sparqlbook.jp/>"
+                                         + "PREFIX rdf: <http://www.w3.org/1999/02/22-rdf-syntax-ns#>"
+                                         + "PREFIX dbpedia-owl: <http://dbpedia.org/ontology/>";
+
+    /**
+     * 1グラフあたりのトリプル数。15はupdate-data6.ttlと同じ規模。
+     * 計測ごとに3つのグラフへ投入するので、1000000までにとどめる。
+     */
+    @Param({ "15", "1000", "100000", "1000000" })
+    public int triples;
+
+    private GraphStore graphStore;
+
+    private File loadFile;
+
+    /**
+     * LOADの対象とするTurtleファイルを一度だけ書き出す。
+     */
+    @Setup(Level.Trial)
+    public void writeLoadFile() throws IOException {
+        Graph graph = Factory.createDefaultGraph();
+        populate(graph, triples);
+        loadFile = File.createTempFile("update-bench", ".ttl");
+        loadFile.deleteOnExit();
+        try (OutputStream out = new FileOutputStream(loadFile)) {
+            RDFDataMgr.write(out, graph, Lang.TURTLE);
+        }
+    }
+
+    /**
+     * 更新はデータを書き換えるため、計測の回ごとにGraphStoreを作り直す。
+     */
+    @Setup(Level.Iteration)
+    public void setUp() {
+        Dataset ds = TDBFactory.createDataset();
+        graphStore = GraphStoreFactory.create(ds);
+        populate(graphStore.getGraph(NodeFactory.createURI(NS + "graph1")), triples);
+        populate(graphStore.getGraph(NodeFactory.createURI(NS + "graph2")), triples);
+        populate(graphStore.getDefaultGraph(), triples);
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        graphStore.close();
+    }
+
+    /**
+     * update-data6.ttlと同じ形のデータを指定したトリプル数だけグラフに追加する。
+     *
+     * @param graph
+     *            追加先のグラフ
+     * @param triples
+     *            追加するトリプル数
+     */
+    public static void populate(Graph graph, int triples) {
+        Node book = NodeFactory.createURI(NS + "book");
+        Node author = NodeFactory.createURI(NS + "author");
+        Node givenName = NodeFactory.createURI(FOAF + "givenName");
+        Node type = NodeFactory.createURI(RDF + "type");
+        Node person = NodeFactory.createURI(NS + "Person");
+        for (int i = 0; i < triples; i++) {
+            Node a = NodeFactory.createURI(NS + "author" + (i / 3));
+            switch (i % 3) {
+            case 0:
+                graph.add(Triple.create(book, author, a));
+                break;
+            case 1:
+                graph.add(Triple.create(a, givenName, NodeFactory.createLiteral("Author" + (i / 3))));
+                break;
+            default:
+                graph.add(Triple.create(a, type, person));
+                break;
+            }
+        }
+    }
+
+    // ----- InsertDeleteExamples
+
+    @Benchmark
+    public GraphStore insert() {
+        return execute(PREFIXES
+                + "INSERT { GRAPH <http://sparqlbook.jp/graph1> { ?author rdf:type :Person . } }"
+                + "WHERE { GRAPH <http://sparqlbook.jp/graph1> { :book :author ?author . } }");
+    }
+
+    @Benchmark
+    public GraphStore delete() {
+        return execute(PREFIXES
+                + "DELETE { GRAPH <http://sparqlbook.jp/graph1> { ?author ?p ?o . } }"
+                + "WHERE { GRAPH <http://sparqlbook.jp/graph1> { :book :author ?author . ?author ?p ?o . } }");
+    }
+
+    @Benchmark
+    public GraphStore deleteWhere() {
+        return execute(PREFIXES
+                + "DELETE WHERE { GRAPH <http://sparqlbook.jp/graph1> { :book :author ?author . ?author ?p ?o . } }");
+    }
+
+    @Benchmark
+    public GraphStore deleteInsert() {
+        return execute(PREFIXES
+                + "DELETE { GRAPH <http://sparqlbook.jp/graph1> { ?author rdf:type :Person . } }"
+                + "INSERT { GRAPH <http://sparqlbook.jp/graph1> { ?author rdf:type dbpedia-owl:Person . } }"
+                + "WHERE { GRAPH <http://sparqlbook.jp/graph1> { :book :author ?author . } }");
+    }
+
+    @Benchmark
+    public GraphStore with() {
+        return execute(PREFIXES
+                + "WITH <http://sparqlbook.jp/graph1>"
+                + "DELETE { ?author rdf:type :Person . }"
+                + "INSERT { ?author rdf:type dbpedia-owl:Person . }"
+                + "WHERE { :book :author ?author . }");
+    }
+
+    @Benchmark
+    public GraphStore using() {
+        return execute(PREFIXES
+                + "WITH <http://sparqlbook.jp/graph2>"
+                + "DELETE { ?author rdf:type :Person . }"
+                + "INSERT { ?author rdf:type dbpedia-owl:Person . }"
+                + "USING <http://sparqlbook.jp/graph1>"
+                + "WHERE { :book :author ?author . }");
+    }
+
+    // ----- LoadExamples
+
+    @Benchmark
+    public GraphStore load2() {
+        return execute("LOAD <" + loadFile.toURI() + "> INTO GRAPH <http://sparqlbook.jp/graph3>");
+    }
+
+    // ----- InsertDataExamples / DeleteDataExamples
+
+    @Benchmark
+    public GraphStore insertData() {
+        return execute(PREFIXES
+                + "INSERT DATA { GRAPH <http://sparqlbook.jp/graph1> { :book :author :yoko . :book :author :shuichi . } }");
+    }
+
+    @Benchmark
+    public GraphStore deleteData() {
+        return execute(PREFIXES
+                + "DELETE DATA { GRAPH <http://sparqlbook.jp/graph1> { :book :author :author0 . } }");
+    }
+
+    // ----- CopyExamples / MoveExamples / AddExamples
+
+    @Benchmark
+    public GraphStore copy1() {
+        return execute("COPY <http://sparqlbook.jp/graph1> TO <http://sparqlbook.jp/graph2>");
+    }
+
+    @Benchmark
+    public GraphStore copy3() {
+        return execute("COPY <http://sparqlbook.jp/graph1> TO <http://sparqlbook.jp/new_graph>");
+    }
+
+    @Benchmark
+    public GraphStore copy4() {
+        return execute("COPY DEFAULT TO GRAPH <http://sparqlbook.jp/graph2>");
+    }
+
+    @Benchmark
+    public GraphStore copy6() {
+        return execute("COPY SILENT <http://sparqlbook.jp/no_exist_graph> TO <http://sparqlbook.jp/graph2>");
+    }
+
+    @Benchmark
+    public GraphStore copy7() {
+        return execute("CLEAR SILENT GRAPH <http://sparqlbook.jp/graph2>;"
+                + "INSERT { GRAPH <http://sparqlbook.jp/graph2> { ?s ?p ?o } }"
+                + "WHERE { GRAPH <http://sparqlbook.jp/graph1> { ?s ?p ?o } }");
+    }
+
+    @Benchmark
+    public GraphStore move1() {
+        return execute("MOVE <http://sparqlbook.jp/graph1> TO <http://sparqlbook.jp/graph2>");
+    }
+
+    @Benchmark
+    public GraphStore move4() {
+        return execute("MOVE DEFAULT TO GRAPH <http://sparqlbook.jp/graph2>");
+    }
+
+    @Benchmark
+    public GraphStore move7() {
+        return execute("CLEAR SILENT GRAPH <http://sparqlbook.jp/graph2>;"
+                + "INSERT { GRAPH <http://sparqlbook.jp/graph2> { ?s ?p ?o } }"
+                + "WHERE { GRAPH <http://sparqlbook.jp/graph1> { ?s ?p ?o } };"
+                + "DROP GRAPH <http://sparqlbook.jp/graph1>");
+    }
+
+    @Benchmark
+    public GraphStore add1() {
+        return execute("ADD <http://sparqlbook.jp/graph1> TO <http://sparqlbook.jp/graph2>");
+    }
+
+    @Benchmark
+    public GraphStore add4() {
+        return execute("ADD DEFAULT TO GRAPH <http://sparqlbook.jp/graph2>");
+    }
+
+    @Benchmark
+    public GraphStore add7() {
+        return execute("INSERT { GRAPH <http://sparqlbook.jp/graph2> { ?s ?p ?o } }"
+                + "WHERE { GRAPH <http://sparqlbook.jp/graph1> { ?s ?p ?o } }");
+    }
+
+    // ----- ClearExamples / DropExamples / CreateExamples
+
+    @Benchmark
+    public GraphStore clear1() {
+        return execute("CLEAR GRAPH <http://sparqlbook.jp/graph1>");
+    }
+
+    @Benchmark
+    public GraphStore clear3() {
+        return execute("CLEAR NAMED");
+    }
+
+    @Benchmark
+    public GraphStore clear4() {
+        return execute("CLEAR ALL");
+    }
+
+    @Benchmark
+    public GraphStore clear6() {
+        return execute("DELETE { GRAPH <http://sparqlbook.jp/graph1> { ?s ?p ?o } }"
+                + "WHERE { GRAPH <http://sparqlbook.jp/graph1> { ?s ?p ?o } }");
+    }
+
+    @Benchmark
+    public GraphStore drop1() {
+        return execute("DROP GRAPH <http://sparqlbook.jp/graph1>");
+    }
+
+    @Benchmark
+    public GraphStore drop4() {
+        return execute("DROP ALL");
+    }
+
+    @Benchmark
+    public GraphStore create1() {
+        return execute("CREATE GRAPH <http://sparqlbook.jp/newgraph>");
+    }
+
+    private GraphStore execute(String cmd) {
+        UpdateAction.parseExecute(cmd, graphStore);
+        return graphStore;
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.sparqlbook.update;
+
+import com.hp.hpl.jena.update.Update;
+
+/**
+ * 更新リクエスト中の操作1つ分の計測結果
+ *
+ * 時間はナノ秒。追加・削除したクワッド数は、変更しうるグラフごとの件数の実行前後の差で、
+ * 既に存在したクワッドの追加と存在しなかったクワッドの削除は含まない。
+ * COPY/MOVE/CLEAR/DROPの追加・削除数も含む。同じグラフで削除と追加の両方をした場合は差し引いた数になる。
+ */
+public class UpdateEvent {
+
+    private final String form;
+    private final Update update;
+    private final long parseNanos;
+    private final long lockWaitNanos;
+    private final long execNanos;
+    private final long whereNanos;
+    private final long whereBindings;
+    private final long quadsInserted;
+    private final long quadsDeleted;
+    private final RuntimeException error;
+
+    public UpdateEvent(Update update, long parseNanos, long lockWaitNanos, long execNanos, long whereNanos,
+            long whereBindings, long quadsInserted, long quadsDeleted, RuntimeException error) {
+        this.form = Updates.form(update);
+        this.update = update;
+        this.parseNanos = parseNanos;
+        this.lockWaitNanos = lockWaitNanos;
+        this.execNanos = execNanos;
+        this.whereNanos = whereNanos;
+        this.whereBindings = whereBindings;
+        this.quadsInserted = quadsInserted;
+        this.quadsDeleted = quadsDeleted;
+        this.error = error;
+    }
+
+    /**
+     * @return 「INSERT DATA」「DELETE/INSERT」のような更新の種類
+     */
+    public String getForm() {
+        return form;
+    }
+
+    /**
+     * @return 実行した操作
+     */
+    public Update getUpdate() {
+        return update;
+    }
+
+    /**
+     * @return パースにかかった時間。文字列から実行した場合のリクエストの最初の操作にだけ計上し、それ以外は0
+     */
+    public long getParseNanos() {
+        return parseNanos;
+    }
+
+    /**
+     * @return 書き込みロックを取得するまで待った時間
+     */
+    public long getLockWaitNanos() {
+        return lockWaitNanos;
+    }
+
+    /**
+     * @return ロックを取得してから実行が終わるまでの時間。DELETE/INSERTではWHERE句の評価を含む
+     */
+    public long getExecNanos() {
+        return execNanos;
+    }
+
+    /**
+     * @return WHERE句の評価時間(実行時間の内数)。WHERE句のない更新は0
+     */
+    public long getWhereNanos() {
+        return whereNanos;
+    }
+
+    /**
+     * @return WHERE句の解の数。WHERE句のない更新は0
+     */
+    public long getWhereBindings() {
+        return whereBindings;
+    }
+
+    /**
+     * @return 追加したクワッド数
+     */
+    public long getQuadsInserted() {
+        return quadsInserted;
+    }
+
+    /**
+     * @return 削除したクワッド数
+     */
+    public long getQuadsDeleted() {
+        return quadsDeleted;
+    }
+
+    /**
+     * @return 失敗した場合はその例外。成功した場合はnull
+     */
+    public RuntimeException getError() {
+        return error;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s parse=%dus lockWait=%dus exec=%dus where=%dus bindings=%d inserted=%d deleted=%d%s",
+                form, parseNanos / 1000, lockWaitNanos / 1000, execNanos / 1000, whereNanos / 1000, whereBindings,
+                quadsInserted, quadsDeleted,
+                error == null ? "" : " error=" + error.getMessage());
+    }
+}
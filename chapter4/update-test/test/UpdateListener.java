@@ -0,0 +1,36 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.sparqlbook.update;
+
+/**
+ * 更新の実行を通知するリスナー
+ *
+ * InstrumentedUpdateActionに登録すると、更新リクエスト中の操作(LOAD、INSERT DATAなど)を1つ実行するたびに呼ばれる。
+ * 更新を実行したスレッドから呼ばれるので、時間のかかる処理は別のスレッドに渡すこと。
+ */
+public interface UpdateListener {
+
+    /**
+     * 操作を1つ実行した後に呼ばれる。失敗した場合も呼ばれる。
+     *
+     * @param event
+     *            実行した操作の計測結果
+     */
+    void updateExecuted(UpdateEvent event);
+}
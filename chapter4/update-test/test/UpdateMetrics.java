@@ -0,0 +1,207 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.sparqlbook.update;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import com.hp.hpl.jena.shared.JenaException;
+
+/**
+ * 更新の計測結果を種類ごとに集計するUpdateListener
+ *
+ * register()でJMXに登録すると、jconsoleなどから「jp.sparqlbook.update:type=UpdateMetrics」として参照できる。
+ *
+ * <pre>
+ * UpdateMetrics metrics = new UpdateMetrics();
+ * metrics.register("example");
+ * InstrumentedUpdateAction action = new InstrumentedUpdateAction();
+ * action.addListener(metrics);
+ * action.parseExecute(cmd, graphStore);
+ * </pre>
+ */
+public class UpdateMetrics implements UpdateListener, UpdateMetricsMXBean {
+
+    private final ConcurrentMap<String, Stats> stats = new ConcurrentHashMap<String, Stats>();
+
+    @Override
+    public void updateExecuted(UpdateEvent event) {
+        Stats s = stats.get(event.getForm());
+        if (s == null) {
+            Stats created = new Stats();
+            s = stats.putIfAbsent(event.getForm(), created);
+            if (s == null) {
+                s = created;
+            }
+        }
+        s.count.incrementAndGet();
+        if (event.getError() != null) {
+            s.errors.incrementAndGet();
+        }
+        s.parseNanos.addAndGet(event.getParseNanos());
+        s.lockWaitNanos.addAndGet(event.getLockWaitNanos());
+        s.execNanos.addAndGet(event.getExecNanos());
+        s.whereNanos.addAndGet(event.getWhereNanos());
+        s.whereBindings.addAndGet(event.getWhereBindings());
+        s.quadsInserted.addAndGet(event.getQuadsInserted());
+        s.quadsDeleted.addAndGet(event.getQuadsDeleted());
+        long max;
+        while ((max = s.maxExecNanos.get()) < event.getExecNanos()
+                && !s.maxExecNanos.compareAndSet(max, event.getExecNanos())) {
+        }
+    }
+
+    /**
+     * プラットフォームのMBeanServerに登録する。
+     *
+     * @param name
+     *            ObjectNameのname属性
+     */
+    public void register(String name) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+                    new ObjectName("jp.sparqlbook.update:type=UpdateMetrics,name=" + ObjectName.quote(name)));
+        } catch (JMException e) {
+            throw new JenaException(e);
+        }
+    }
+
+    @Override
+    public Map<String, Long> getCount() {
+        Map<String, Long> result = new TreeMap<String, Long>();
+        for (Map.Entry<String, Stats> e : stats.entrySet()) {
+            result.put(e.getKey(), e.getValue().count.get());
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getErrors() {
+        Map<String, Long> result = new TreeMap<String, Long>();
+        for (Map.Entry<String, Stats> e : stats.entrySet()) {
+            result.put(e.getKey(), e.getValue().errors.get());
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getParseMillis() {
+        Map<String, Long> result = new TreeMap<String, Long>();
+        for (Map.Entry<String, Stats> e : stats.entrySet()) {
+            result.put(e.getKey(), millis(e.getValue().parseNanos));
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getLockWaitMillis() {
+        Map<String, Long> result = new TreeMap<String, Long>();
+        for (Map.Entry<String, Stats> e : stats.entrySet()) {
+            result.put(e.getKey(), millis(e.getValue().lockWaitNanos));
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getExecMillis() {
+        Map<String, Long> result = new TreeMap<String, Long>();
+        for (Map.Entry<String, Stats> e : stats.entrySet()) {
+            result.put(e.getKey(), millis(e.getValue().execNanos));
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getMaxExecMillis() {
+        Map<String, Long> result = new TreeMap<String, Long>();
+        for (Map.Entry<String, Stats> e : stats.entrySet()) {
+            result.put(e.getKey(), millis(e.getValue().maxExecNanos));
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getWhereMillis() {
+        Map<String, Long> result = new TreeMap<String, Long>();
+        for (Map.Entry<String, Stats> e : stats.entrySet()) {
+            result.put(e.getKey(), millis(e.getValue().whereNanos));
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getWhereBindings() {
+        Map<String, Long> result = new TreeMap<String, Long>();
+        for (Map.Entry<String, Stats> e : stats.entrySet()) {
+            result.put(e.getKey(), e.getValue().whereBindings.get());
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getQuadsInserted() {
+        Map<String, Long> result = new TreeMap<String, Long>();
+        for (Map.Entry<String, Stats> e : stats.entrySet()) {
+            result.put(e.getKey(), e.getValue().quadsInserted.get());
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getQuadsDeleted() {
+        Map<String, Long> result = new TreeMap<String, Long>();
+        for (Map.Entry<String, Stats> e : stats.entrySet()) {
+            result.put(e.getKey(), e.getValue().quadsDeleted.get());
+        }
+        return result;
+    }
+
+    @Override
+    public void reset() {
+        stats.clear();
+    }
+
+    private static long millis(AtomicLong nanos) {
+        return TimeUnit.NANOSECONDS.toMillis(nanos.get());
+    }
+
+    /**
+     * 1種類の更新の集計値
+     */
+    private static class Stats {
+        final AtomicLong count = new AtomicLong();
+        final AtomicLong errors = new AtomicLong();
+        final AtomicLong parseNanos = new AtomicLong();
+        final AtomicLong lockWaitNanos = new AtomicLong();
+        final AtomicLong execNanos = new AtomicLong();
+        final AtomicLong maxExecNanos = new AtomicLong();
+        final AtomicLong whereNanos = new AtomicLong();
+        final AtomicLong whereBindings = new AtomicLong();
+        final AtomicLong quadsInserted = new AtomicLong();
+        final AtomicLong quadsDeleted = new AtomicLong();
+    }
+}
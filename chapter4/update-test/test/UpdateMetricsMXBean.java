@@ -0,0 +1,62 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.sparqlbook.update;
+
+import java.util.Map;
+
+/**
+ * UpdateMetricsをJMXで公開するためのインターフェース
+ *
+ * 各属性は更新の種類(「INSERT DATA」「DELETE/INSERT」など)ごとの値を持つ。
+ */
+public interface UpdateMetricsMXBean {
+
+    /** @return 実行回数 */
+    Map<String, Long> getCount();
+
+    /** @return 失敗した回数 */
+    Map<String, Long> getErrors();
+
+    /** @return パース時間の合計(ミリ秒) */
+    Map<String, Long> getParseMillis();
+
+    /** @return ロック待ち時間の合計(ミリ秒) */
+    Map<String, Long> getLockWaitMillis();
+
+    /** @return 実行時間の合計(ミリ秒) */
+    Map<String, Long> getExecMillis();
+
+    /** @return 実行時間の最大値(ミリ秒) */
+    Map<String, Long> getMaxExecMillis();
+
+    /** @return WHERE句の評価時間の合計(ミリ秒) */
+    Map<String, Long> getWhereMillis();
+
+    /** @return WHERE句の解の数の合計 */
+    Map<String, Long> getWhereBindings();
+
+    /** @return 追加したクワッド数の合計 */
+    Map<String, Long> getQuadsInserted();
+
+    /** @return 削除したクワッド数の合計 */
+    Map<String, Long> getQuadsDeleted();
+
+    /** 全ての値を0に戻す。 */
+    void reset();
+}
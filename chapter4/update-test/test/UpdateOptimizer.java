@@ -0,0 +1,343 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.sparqlbook.update;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.query.ARQ;
+import com.hp.hpl.jena.sparql.algebra.Op;
+import com.hp.hpl.jena.sparql.algebra.op.OpBGP;
+import com.hp.hpl.jena.sparql.algebra.op.OpQuadPattern;
+import com.hp.hpl.jena.sparql.core.BasicPattern;
+import com.hp.hpl.jena.sparql.core.DatasetGraph;
+import com.hp.hpl.jena.sparql.core.Quad;
+import com.hp.hpl.jena.sparql.core.TriplePath;
+import com.hp.hpl.jena.sparql.engine.ExecutionContext;
+import com.hp.hpl.jena.sparql.engine.QueryIterator;
+import com.hp.hpl.jena.sparql.engine.iterator.QueryIterRoot;
+import com.hp.hpl.jena.sparql.engine.iterator.QueryIterTriplePattern;
+import com.hp.hpl.jena.sparql.engine.main.OpExecutor;
+import com.hp.hpl.jena.sparql.engine.main.OpExecutorFactory;
+import com.hp.hpl.jena.sparql.engine.main.QC;
+import com.hp.hpl.jena.sparql.engine.main.StageBuilder;
+import com.hp.hpl.jena.sparql.engine.main.StageGenerator;
+import com.hp.hpl.jena.sparql.modify.request.QuadAcc;
+import com.hp.hpl.jena.sparql.modify.request.UpdateDeleteWhere;
+import com.hp.hpl.jena.sparql.modify.request.UpdateModify;
+import com.hp.hpl.jena.sparql.syntax.Element;
+import com.hp.hpl.jena.sparql.syntax.ElementGroup;
+import com.hp.hpl.jena.sparql.syntax.ElementMinus;
+import com.hp.hpl.jena.sparql.syntax.ElementNamedGraph;
+import com.hp.hpl.jena.sparql.syntax.ElementOptional;
+import com.hp.hpl.jena.sparql.syntax.ElementPathBlock;
+import com.hp.hpl.jena.sparql.syntax.ElementUnion;
+import com.hp.hpl.jena.sparql.util.Context;
+import com.hp.hpl.jena.tdb.solver.OpExecutorTDB;
+import com.hp.hpl.jena.tdb.solver.SolverLib;
+import com.hp.hpl.jena.tdb.store.DatasetGraphTDB;
+import com.hp.hpl.jena.tdb.store.GraphTDB;
+import com.hp.hpl.jena.tdb.transaction.DatasetGraphTransaction;
+import com.hp.hpl.jena.update.Update;
+import com.hp.hpl.jena.update.UpdateRequest;
+
+/**
+ * DELETE/INSERTのWHERE句とDELETE WHEREのパターンを、PatternStatsの見積もりに従って並べ替える。
+ *
+ * 基本グラフパターンの中で、先に評価したパターンで束縛される変数も考慮しながら、
+ * 見積もり件数の最も少ないトリプルパターンから順に並べる。
+ * FILTERやBINDをまたいだ並べ替えはしない。
+ *
+ * ARQの汎用エンジンは基本グラフパターンを評価する前に独自に並べ替えるので、
+ * 並べ替えた順で評価するにはkeepOrderでコンテキストに書かれた順のまま評価するStageGeneratorを設定する。
+ * TDBのデータセットはStageGeneratorを使わず、独自の並べ替え(stats.optまたは固定の重み付け)を適用するので、
+ * execはTDBの場合に並べ替えをせずに索引を引くOpExecutorで評価する。
+ * PreparedUpdateは統計情報を渡した場合にexecで評価する。
+ */
+public class UpdateOptimizer {
+
+    /** 基本グラフパターンを書かれた順のまま評価するStageGenerator */
+    private static final StageGenerator FIXED_ORDER = new StageGenerator() {
+        @Override
+        public QueryIterator execute(BasicPattern pattern, QueryIterator input, ExecutionContext execCxt) {
+            QueryIterator chain = input;
+            for (Triple triple : pattern) {
+                chain = new QueryIterTriplePattern(chain, triple, execCxt);
+            }
+            return chain;
+        }
+    };
+
+    /** TDBの基本グラフパターンを、書かれた順のままTDBの索引で評価するOpExecutorを作る */
+    private static final OpExecutorFactory FIXED_ORDER_TDB = new OpExecutorFactory() {
+        @Override
+        public OpExecutor create(ExecutionContext execCxt) {
+            return new FixedOrderTDB(execCxt);
+        }
+    };
+
+    /**
+     * OpExecutorTDBの基本グラフパターンの評価から、ReorderTransformationによる並べ替えを除いたもの
+     */
+    private static class FixedOrderTDB extends OpExecutorTDB {
+
+        FixedOrderTDB(ExecutionContext execCxt) {
+            super(execCxt);
+        }
+
+        @Override
+        protected QueryIterator execute(OpBGP opBGP, QueryIterator input) {
+            Graph graph = execCxt.getActiveGraph();
+            if (graph instanceof GraphTDB) {
+                return SolverLib.execute((GraphTDB) graph, opBGP.getPattern(), input, null, execCxt);
+            }
+            return super.execute(opBGP, input);
+        }
+
+        @Override
+        protected QueryIterator execute(OpQuadPattern quadPattern, QueryIterator input) {
+            if (execCxt.getDataset() instanceof DatasetGraphTDB) {
+                Node graphNode = decideGraphNode(quadPattern.getGraphNode(), execCxt);
+                return SolverLib.execute((DatasetGraphTDB) execCxt.getDataset(), graphNode,
+                        quadPattern.getBasicPattern(), input, null, execCxt);
+            }
+            return super.execute(quadPattern, input);
+        }
+    }
+
+    private final PatternStats stats;
+
+    /**
+     * @param stats
+     *            見積もりに使う統計情報
+     */
+    public UpdateOptimizer(PatternStats stats) {
+        this.stats = stats;
+    }
+
+    /**
+     * 更新のWHERE句を並べ替えた新しいUpdateRequestを返す。DELETE/INSERT以外の更新はそのまま使う。
+     *
+     * @param request
+     *            並べ替える更新
+     * @return 並べ替えた更新
+     */
+    public UpdateRequest optimize(UpdateRequest request) {
+        UpdateRequest optimized = new UpdateRequest();
+        optimized.setPrefixMapping(request.getPrefixMapping());
+        for (Update update : request.getOperations()) {
+            optimized.add(optimize(update));
+        }
+        return optimized;
+    }
+
+    /**
+     * 基本グラフパターンを書かれた順のまま評価するStageGeneratorをコンテキストに設定する。
+     * ARQ.getContext()に設定すると、そのあとの全ての問い合わせと更新で並べ替えをしなくなる。
+     *
+     * @param context
+     *            設定するコンテキスト
+     */
+    public static void keepOrder(Context context) {
+        StageBuilder.setGenerator(context, FIXED_ORDER);
+    }
+
+    /**
+     * 代数式を、基本グラフパターンを書かれた順のまま評価する。グローバルのコンテキストは変更しない。
+     * TDBのデータセットは、ラッパーを外したDatasetGraphTDBをFixedOrderTDBで評価する。
+     */
+    static QueryIterator exec(Op op, DatasetGraph dsg) {
+        Context context = ARQ.getContext().copy();
+        keepOrder(context);
+        DatasetGraph base = GraphLevelUpdateEngine.unwrap(dsg);
+        if (base instanceof DatasetGraphTransaction) {
+            base = ((DatasetGraphTransaction) base).get();
+        }
+        if (base instanceof DatasetGraphTDB) {
+            ExecutionContext execCxt = new ExecutionContext(context, base.getDefaultGraph(), base, FIXED_ORDER_TDB);
+            return QC.execute(op, QueryIterRoot.create(execCxt), execCxt);
+        }
+        ExecutionContext execCxt = new ExecutionContext(context, dsg.getDefaultGraph(), dsg, QC.getFactory(context));
+        return QC.execute(op, QueryIterRoot.create(execCxt), execCxt);
+    }
+
+    private Update optimize(Update update) {
+        if (update instanceof UpdateModify) {
+            UpdateModify original = (UpdateModify) update;
+            Node graph = whereGraph(original);
+            return Updates.copyModify(original, original.getWithIRI(), reorder(original.getWherePattern(), graph));
+        }
+        if (update instanceof UpdateDeleteWhere) {
+            QuadAcc acc = new QuadAcc();
+            for (Quad quad : reorder(((UpdateDeleteWhere) update).getQuads())) {
+                acc.addQuad(quad);
+            }
+            return new UpdateDeleteWhere(acc);
+        }
+        return update;
+    }
+
+    /**
+     * WHERE句のデフォルトグラフを返す。複数のUSINGで合成される場合はnull(全てのグラフの合計で見積もる)。
+     */
+    private static Node whereGraph(UpdateModify modify) {
+        if (modify.getUsing().size() == 1) {
+            return modify.getUsing().get(0);
+        }
+        if (!modify.getUsing().isEmpty()) {
+            return null;
+        }
+        return modify.getWithIRI() != null ? modify.getWithIRI() : Quad.defaultGraphIRI;
+    }
+
+    private Element reorder(Element el, Node graph) {
+        if (el instanceof ElementGroup) {
+            ElementGroup group = new ElementGroup();
+            for (Element e : ((ElementGroup) el).getElements()) {
+                group.addElement(reorder(e, graph));
+            }
+            return group;
+        }
+        if (el instanceof ElementNamedGraph) {
+            ElementNamedGraph named = (ElementNamedGraph) el;
+            return new ElementNamedGraph(named.getGraphNameNode(), reorder(named.getElement(), named.getGraphNameNode()));
+        }
+        if (el instanceof ElementOptional) {
+            return new ElementOptional(reorder(((ElementOptional) el).getOptionalElement(), graph));
+        }
+        if (el instanceof ElementMinus) {
+            return new ElementMinus(reorder(((ElementMinus) el).getMinusElement(), graph));
+        }
+        if (el instanceof ElementUnion) {
+            ElementUnion union = new ElementUnion();
+            for (Element e : ((ElementUnion) el).getElements()) {
+                union.addElement(reorder(e, graph));
+            }
+            return union;
+        }
+        if (el instanceof ElementPathBlock) {
+            return reorder((ElementPathBlock) el, graph);
+        }
+        return el;
+    }
+
+    /**
+     * 基本グラフパターンを並べ替える。プロパティパスは元の順序のまま後ろに置く。
+     */
+    private ElementPathBlock reorder(ElementPathBlock block, Node graph) {
+        List<Triple> triples = new ArrayList<Triple>();
+        List<TriplePath> paths = new ArrayList<TriplePath>();
+        for (TriplePath tp : block.getPattern().getList()) {
+            if (tp.isTriple()) {
+                triples.add(tp.asTriple());
+            } else {
+                paths.add(tp);
+            }
+        }
+        ElementPathBlock pattern = new ElementPathBlock();
+        for (Triple triple : order(triples, graph)) {
+            pattern.addTriple(triple);
+        }
+        for (TriplePath tp : paths) {
+            pattern.addTriplePath(tp);
+        }
+        return pattern;
+    }
+
+    /**
+     * 連続する同じグラフのクワッドごとに並べ替える。
+     */
+    private List<Quad> reorder(List<Quad> quads) {
+        List<Quad> result = new ArrayList<Quad>(quads.size());
+        int start = 0;
+        while (start < quads.size()) {
+            Node graph = quads.get(start).getGraph();
+            int end = start;
+            List<Triple> triples = new ArrayList<Triple>();
+            while (end < quads.size() && quads.get(end).getGraph().equals(graph)) {
+                triples.add(quads.get(end).asTriple());
+                end++;
+            }
+            for (Triple triple : order(triples, graph)) {
+                result.add(new Quad(graph, triple));
+            }
+            start = end;
+        }
+        return result;
+    }
+
+    /**
+     * 見積もり件数の少ないものから貪欲に選ぶ。選んだパターンの変数はそれ以降束縛済みとして扱う。
+     */
+    private List<Triple> order(List<Triple> triples, Node graph) {
+        List<Triple> remaining = new ArrayList<Triple>(triples);
+        List<Triple> ordered = new ArrayList<Triple>(triples.size());
+        Set<Node> bound = new HashSet<Node>();
+        while (!remaining.isEmpty()) {
+            // 既に束縛した変数と繋がるパターンを優先し、直積はなるべく後回しにする
+            List<Triple> candidates = new ArrayList<Triple>();
+            for (Triple t : remaining) {
+                if (shares(t, bound)) {
+                    candidates.add(t);
+                }
+            }
+            if (candidates.isEmpty()) {
+                candidates = remaining;
+            }
+            Triple best = null;
+            double bestCost = Double.MAX_VALUE;
+            for (Triple t : candidates) {
+                double cost = stats.estimate(graph, t, isBound(t.getSubject(), bound), isBound(t.getObject(), bound));
+                if (best == null || cost < bestCost) {
+                    best = t;
+                    bestCost = cost;
+                }
+            }
+            remaining.remove(best);
+            ordered.add(best);
+            addVars(best, bound);
+        }
+        return ordered;
+    }
+
+    private static boolean isBound(Node node, Set<Node> bound) {
+        return node.isConcrete() || bound.contains(node);
+    }
+
+    private static boolean shares(Triple t, Set<Node> bound) {
+        return bound.contains(t.getSubject()) || bound.contains(t.getPredicate()) || bound.contains(t.getObject());
+    }
+
+    private static void addVars(Triple t, Set<Node> bound) {
+        if (t.getSubject().isVariable()) {
+            bound.add(t.getSubject());
+        }
+        if (t.getPredicate().isVariable()) {
+            bound.add(t.getPredicate());
+        }
+        if (t.getObject().isVariable()) {
+            bound.add(t.getObject());
+        }
+    }
+}
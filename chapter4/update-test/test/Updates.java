@@ -0,0 +1,202 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.sparqlbook.update;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.RDFLanguages;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.sparql.core.Quad;
+import com.hp.hpl.jena.sparql.modify.request.Target;
+import com.hp.hpl.jena.sparql.modify.request.UpdateAdd;
+import com.hp.hpl.jena.sparql.modify.request.UpdateBinaryOp;
+import com.hp.hpl.jena.sparql.modify.request.UpdateClear;
+import com.hp.hpl.jena.sparql.modify.request.UpdateCopy;
+import com.hp.hpl.jena.sparql.modify.request.UpdateCreate;
+import com.hp.hpl.jena.sparql.modify.request.UpdateData;
+import com.hp.hpl.jena.sparql.modify.request.UpdateDataDelete;
+import com.hp.hpl.jena.sparql.modify.request.UpdateDataInsert;
+import com.hp.hpl.jena.sparql.modify.request.UpdateDeleteWhere;
+import com.hp.hpl.jena.sparql.modify.request.UpdateDrop;
+import com.hp.hpl.jena.sparql.modify.request.UpdateDropClear;
+import com.hp.hpl.jena.sparql.modify.request.UpdateLoad;
+import com.hp.hpl.jena.sparql.modify.request.UpdateModify;
+import com.hp.hpl.jena.sparql.modify.request.UpdateMove;
+import com.hp.hpl.jena.sparql.syntax.Element;
+import com.hp.hpl.jena.update.Update;
+
+/**
+ * パース済みの更新を組み替えるためのユーティリティ
+ */
+class Updates {
+
+    private Updates() {
+    }
+
+    /**
+     * WITH句とWHERE句だけを差し替えたUpdateModifyを返す。テンプレートとUSING句は元のものを使う。
+     *
+     * @param original
+     *            元のDELETE/INSERT
+     * @param withIri
+     *            WITH句のグラフ。nullの場合はWITH句なし
+     * @param where
+     *            WHERE句
+     * @return 新しいUpdateModify
+     */
+    static UpdateModify copyModify(UpdateModify original, Node withIri, Element where) {
+        UpdateModify modify = new UpdateModify();
+        modify.setWithIRI(withIri);
+        for (Quad quad : original.getDeleteQuads()) {
+            modify.getDeleteAcc().addQuad(quad);
+        }
+        for (Quad quad : original.getInsertQuads()) {
+            modify.getInsertAcc().addQuad(quad);
+        }
+        modify.setHasDeleteClause(original.hasDeleteClause());
+        modify.setHasInsertClause(original.hasInsertClause());
+        for (Node using : original.getUsing()) {
+            modify.addUsing(using);
+        }
+        for (Node usingNamed : original.getUsingNamed()) {
+            modify.addUsingNamed(usingNamed);
+        }
+        modify.setElement(where);
+        return modify;
+    }
+
+    /**
+     * 更新の種類を「INSERT DATA」「DELETE/INSERT」のような名前で返す。
+     *
+     * @param update
+     *            更新
+     * @return 更新の種類の名前
+     */
+    static String form(Update update) {
+        if (update instanceof UpdateLoad) {
+            return "LOAD";
+        } else if (update instanceof UpdateCopy) {
+            return "COPY";
+        } else if (update instanceof UpdateMove) {
+            return "MOVE";
+        } else if (update instanceof UpdateAdd) {
+            return "ADD";
+        } else if (update instanceof UpdateClear) {
+            return "CLEAR";
+        } else if (update instanceof UpdateDrop) {
+            return "DROP";
+        } else if (update instanceof UpdateCreate) {
+            return "CREATE";
+        } else if (update instanceof UpdateDataInsert) {
+            return "INSERT DATA";
+        } else if (update instanceof UpdateDataDelete) {
+            return "DELETE DATA";
+        } else if (update instanceof UpdateDeleteWhere) {
+            return "DELETE WHERE";
+        } else if (update instanceof UpdateModify) {
+            return "DELETE/INSERT";
+        }
+        return update.getClass().getSimpleName();
+    }
+
+    /**
+     * 更新が変更しうるグラフを返す。デフォルトグラフはQuad.defaultGraphIRI、
+     * どの名前付きグラフか決まらない場合(GRAPH ?g、CLEAR NAMEDなど)はQuad.unionGraphで表す。
+     *
+     * @param update
+     *            更新
+     * @return 変更しうるグラフ。判断できない種類の更新であればnull
+     */
+    static Set<Node> affectedGraphs(Update update) {
+        Set<Node> graphs = new HashSet<Node>();
+        if (update instanceof UpdateLoad) {
+            UpdateLoad load = (UpdateLoad) update;
+            if (load.getDest() != null) {
+                graphs.add(load.getDest());
+            } else {
+                graphs.add(Quad.defaultGraphIRI);
+                if (mayLoadQuads(load.getSource())) {
+                    graphs.add(Quad.unionGraph);
+                }
+            }
+        } else if (update instanceof UpdateBinaryOp) {
+            UpdateBinaryOp op = (UpdateBinaryOp) update;
+            graphs.add(graph(op.getDest()));
+            if (update instanceof UpdateMove) {
+                graphs.add(graph(op.getSrc()));
+            }
+        } else if (update instanceof UpdateDropClear) {
+            Target target = ((UpdateDropClear) update).getTarget();
+            if (target.isDefault() || target.isOneNamedGraph()) {
+                graphs.add(graph(target));
+            } else {
+                graphs.add(Quad.unionGraph);
+                if (target.isAll()) {
+                    graphs.add(Quad.defaultGraphIRI);
+                }
+            }
+        } else if (update instanceof UpdateCreate) {
+            // 空のグラフは存在しないものとして扱うので、どのグラフの内容も変わらない
+        } else if (update instanceof UpdateData) {
+            addGraphs(graphs, ((UpdateData) update).getQuads(), null);
+        } else if (update instanceof UpdateDeleteWhere) {
+            addGraphs(graphs, ((UpdateDeleteWhere) update).getQuads(), null);
+        } else if (update instanceof UpdateModify) {
+            UpdateModify modify = (UpdateModify) update;
+            addGraphs(graphs, modify.getDeleteQuads(), modify.getWithIRI());
+            addGraphs(graphs, modify.getInsertQuads(), modify.getWithIRI());
+        } else {
+            return null;
+        }
+        return graphs;
+    }
+
+    /**
+     * INTOのないLOADで名前付きグラフにも追加しうるか。N-Quads、TriG、スナップショットのほか、
+     * 拡張子から形式が分からない場合も、コンテントネゴシエーションでクワッドが返りうるのでtrueとする。
+     */
+    private static boolean mayLoadQuads(String source) {
+        if (BinarySnapshot.isSnapshot(source)) {
+            return true;
+        }
+        Lang lang = RDFLanguages.filenameToLang(source);
+        return lang == null || RDFLanguages.isQuads(lang);
+    }
+
+    private static void addGraphs(Set<Node> graphs, List<Quad> quads, Node withIri) {
+        for (Quad quad : quads) {
+            Node g = quad.getGraph();
+            if (g == null || Quad.isDefaultGraph(g)) {
+                graphs.add(withIri != null ? withIri : Quad.defaultGraphIRI);
+            } else if (g.isVariable()) {
+                graphs.add(Quad.unionGraph);
+            } else {
+                graphs.add(g);
+            }
+        }
+    }
+
+    private static Node graph(Target target) {
+        return target.isDefault() ? Quad.defaultGraphIRI : target.getGraph();
+    }
+}